@@ -0,0 +1,247 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing, used after both sides agree on it during the WELCOME handshake.
+ *
+ * Negotiation: the server's greeting is "WELCOME X BINARY" when it supports frames.
+ * A capable client answers with the text line "PROTOCOL BINARY" and sends frames from then on.
+ * The server replies "PROTOCOL BINARY" as its last text line and sends frames after it.
+ * Clients that ignore the extra WELCOME word keep using the text protocol.
+ *
+ * Frame layout: a 2-byte big-endian length (opcode plus payload), a 1-byte opcode, then the payload.
+ * Classic 3x3 boards travel as two 16-bit masks (X, then O) with bit i set for cell i. Larger
+ * boards start with their size, then two bitsets of (cells + 7) / 8 bytes, where byte k holds
+ * cells 8k to 8k + 7, lowest cell in the lowest bit; their payload length is always odd, so
+ * the two layouts can't be confused.
+ *
+ * Games on larger boards announce themselves with "SIZE=n WIN=k" at the end of the WELCOME
+ * line, or two extra bytes after the mark in a WELCOME frame; without them a game is 3x3.
+ *
+ * The handshake also offers DELTA, which works with either encoding: a client that sends
+ * "PROTOCOL DELTA" gets one "DELTA cell mark TURN|WAIT|END" message per move instead of
+ * a full board plus TURN/WAIT, and may send "SYNC" to get a full board again.
+ *
+ * A connection that sends "SPECTATE <game>" instead of playing gets "SPECTATING game SIZE=n WIN=k",
+ * then a full board after every move, and a closing MESSAGE when the game ends.
+ *
+ * A server may send "PING" to a client that has been quiet; the client answers "PONG",
+ * in either encoding, or is eventually disconnected.
+ *
+ * The handshake may also offer REMATCH: a client that sends "PROTOCOL REMATCH" (before
+ * "PROTOCOL BINARY", while it still speaks text) stays connected when a game ends. It then
+ * sends "REMATCH" to play the same opponent again with the marks swapped, once both have
+ * asked, or "NEWGAME [queue]" to be matched with someone new; either way the next game
+ * starts with a new WELCOME on the same connection, in the encoding already agreed.
+ */
+public final class BinaryProtocol {
+
+    public static final String WELCOME_FLAG = "BINARY";
+    public static final String NEGOTIATE_LINE = "PROTOCOL BINARY";
+
+    public static final String DELTA_FLAG = "DELTA";
+    public static final String DELTA_NEGOTIATE_LINE = "PROTOCOL DELTA";
+
+    public static final String REMATCH_FLAG = "REMATCH";
+    public static final String REMATCH_NEGOTIATE_LINE = "PROTOCOL REMATCH";
+
+    public static final int MAX_FRAME_LENGTH = 1024;
+
+    // Server to client
+    public static final int WELCOME = 0x01; // mark, then size and win length unless classic
+    public static final int MESSAGE = 0x02; // UTF-8 text
+    public static final int BOARD = 0x03;   // X mask, O mask; or size, X bitset, O bitset
+    public static final int TURN = 0x04;
+    public static final int WAIT = 0x05;
+    public static final int VICTORY = 0x06; // winner mark
+    public static final int DEFEAT = 0x07;  // winner mark
+    public static final int DRAW = 0x08;
+    public static final int INVALID = 0x09; // UTF-8 text
+    public static final int DELTA = 0x0A;   // cell (16 bits), mark, TURN, WAIT or DELTA_END
+    public static final int SPECTATING = 0x0B; // game id (32 bits), size, win length
+    public static final int PING = 0x0C;
+
+    // Client to server
+    public static final int MOVE = 0x20;    // cell (8 bits, or 16 bits from cell 256 on)
+    public static final int SYNC = 0x21;
+    public static final int SPECTATE = 0x22; // game id (32 bits)
+    public static final int PONG = 0x23;
+    public static final int REMATCH = 0x24;
+    public static final int NEWGAME = 0x25; // queue name in UTF-8, or nothing for the last one
+
+    // Last byte of a DELTA frame when the move ended the game
+    public static final int DELTA_END = 0;
+
+    // Payload-free frames never change, so they are shared
+    private static final byte[] TURN_FRAME = frame(TURN);
+    private static final byte[] WAIT_FRAME = frame(WAIT);
+    private static final byte[] DRAW_FRAME = frame(DRAW);
+    private static final byte[] SYNC_FRAME = frame(SYNC);
+    private static final byte[] PING_FRAME = frame(PING);
+    private static final byte[] PONG_FRAME = frame(PONG);
+    private static final byte[] REMATCH_FRAME = frame(REMATCH);
+
+    private BinaryProtocol() {
+    }
+
+    private static byte[] frame(int opcode) {
+        return new byte[] {0, 1, (byte) opcode};
+    }
+
+    private static byte[] frame(int opcode, int payloadLength) {
+        int length = payloadLength + 1;
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        frame[2] = (byte) opcode;
+        return frame;
+    }
+
+    public static byte[] turn() {
+        return TURN_FRAME;
+    }
+
+    public static byte[] waitFrame() {
+        return WAIT_FRAME;
+    }
+
+    public static byte[] draw() {
+        return DRAW_FRAME;
+    }
+
+    public static byte[] board(Board board) {
+        if (board.isClassic()) {
+            int xMask = board.getXMask();
+            int oMask = board.getOMask();
+            byte[] frame = frame(BOARD, 4);
+            frame[3] = (byte) (xMask >>> 8);
+            frame[4] = (byte) xMask;
+            frame[5] = (byte) (oMask >>> 8);
+            frame[6] = (byte) oMask;
+            return frame;
+        }
+
+        int cells = board.getCells();
+        int bytes = (cells + 7) >>> 3;
+        byte[] frame = frame(BOARD, 1 + 2 * bytes);
+        frame[3] = (byte) board.getSize();
+        for (int cell = 0; cell < cells; cell++) {
+            int bit = 1 << (cell & 7);
+            if (board.isX(cell)) {
+                frame[4 + (cell >>> 3)] |= bit;
+            } else if (board.isO(cell)) {
+                frame[4 + bytes + (cell >>> 3)] |= bit;
+            }
+        }
+        return frame;
+    }
+
+    public static byte[] welcome(String mark, int size, int winLength) {
+        if (size == Board.CLASSIC_SIZE && winLength == Board.CLASSIC_SIZE) {
+            return withMark(WELCOME, mark);
+        }
+        byte[] frame = frame(WELCOME, 3);
+        frame[3] = (byte) mark.charAt(0);
+        frame[4] = (byte) size;
+        frame[5] = (byte) winLength;
+        return frame;
+    }
+
+    public static byte[] spectating(int gameId, int size, int winLength) {
+        byte[] frame = frame(SPECTATING, 6);
+        frame[3] = (byte) (gameId >>> 24);
+        frame[4] = (byte) (gameId >>> 16);
+        frame[5] = (byte) (gameId >>> 8);
+        frame[6] = (byte) gameId;
+        frame[7] = (byte) size;
+        frame[8] = (byte) winLength;
+        return frame;
+    }
+
+    /**
+     * The text form of a SPECTATING message; unlike WELCOME it always gives the board size
+     */
+    public static String spectatingLine(int gameId, int size, int winLength) {
+        return "SPECTATING " + gameId + " SIZE=" + size + " WIN=" + winLength;
+    }
+
+    public static byte[] withMark(int opcode, String mark) {
+        byte[] frame = frame(opcode, 1);
+        frame[3] = (byte) mark.charAt(0);
+        return frame;
+    }
+
+    public static byte[] withText(int opcode, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_FRAME_LENGTH - 1);
+        byte[] frame = frame(opcode, length);
+        System.arraycopy(bytes, 0, frame, 3, length);
+        return frame;
+    }
+
+    public static byte[] delta(int cell, String mark, int status) {
+        byte[] frame = frame(DELTA, 4);
+        frame[3] = (byte) (cell >>> 8);
+        frame[4] = (byte) cell;
+        frame[5] = (byte) mark.charAt(0);
+        frame[6] = (byte) status;
+        return frame;
+    }
+
+    public static byte[] sync() {
+        return SYNC_FRAME;
+    }
+
+    public static byte[] ping() {
+        return PING_FRAME;
+    }
+
+    public static byte[] pong() {
+        return PONG_FRAME;
+    }
+
+    public static byte[] rematch() {
+        return REMATCH_FRAME;
+    }
+
+    /**
+     * A NEWGAME frame; null or "" for the queue of the last game
+     */
+    public static byte[] newGame(String queue) {
+        return queue == null || queue.isEmpty() ? frame(NEWGAME) : withText(NEWGAME, queue);
+    }
+
+    public static byte[] spectate(int gameId) {
+        byte[] frame = frame(SPECTATE, 4);
+        frame[3] = (byte) (gameId >>> 24);
+        frame[4] = (byte) (gameId >>> 16);
+        frame[5] = (byte) (gameId >>> 8);
+        frame[6] = (byte) gameId;
+        return frame;
+    }
+
+    public static byte[] move(int cell) {
+        if (cell > 0xFF) {
+            byte[] frame = frame(MOVE, 2);
+            frame[3] = (byte) (cell >>> 8);
+            frame[4] = (byte) cell;
+            return frame;
+        }
+        byte[] frame = frame(MOVE, 1);
+        frame[3] = (byte) cell;
+        return frame;
+    }
+
+    /**
+     * The " SIZE=n WIN=k" suffix of a WELCOME line, empty for the classic board
+     */
+    public static String welcomeSuffix(int size, int winLength) {
+        if (size == Board.CLASSIC_SIZE && winLength == Board.CLASSIC_SIZE) {
+            return "";
+        }
+        return " SIZE=" + size + " WIN=" + winLength;
+    }
+
+    public static String deltaStatus(int status) {
+        return status == TURN ? "TURN" : status == WAIT ? "WAIT" : "END";
+    }
+}
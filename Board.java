@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+/**
+ * A size x size board where winLength marks in a row win: 3x3 with 3 is classic
+ * tic-tac-toe, 15x15 with 5 is gomoku. Each mark is a bitset, bit i being cell i
+ * (row-major). A move only scans the four lines through the cell just played, so
+ * its cost depends on winLength, not on the size of the board, and nothing is
+ * allocated. Strings are only built for the protocol.
+ */
+public final class Board {
+
+    public static final int CLASSIC_SIZE = 3;
+    public static final int MAX_SIZE = 32;
+
+    // Outcomes returned by outcome()
+    public static final int IN_PROGRESS = 0;
+    public static final int X_WINS = 1;
+    public static final int O_WINS = 2;
+    public static final int DRAW = 3;
+
+    // Row and column steps of the four line directions: across, down, and both diagonals
+    private static final int[] DIRECTION_ROW = {0, 1, 1, 1};
+    private static final int[] DIRECTION_COL = {1, 0, 1, -1};
+
+    private final int size;
+    private final int cells;
+    private final int winLength;
+    private final long[] xBits;
+    private final long[] oBits;
+    private int moves;
+    private int outcome = IN_PROGRESS;
+
+    /**
+     * The classic 3x3 board
+     */
+    public Board() {
+        this(CLASSIC_SIZE, CLASSIC_SIZE);
+    }
+
+    public Board(int size, int winLength) {
+        if (size < 1 || size > MAX_SIZE || winLength < 1 || winLength > size) {
+            throw new IllegalArgumentException("Unsupported board " + size + "x" + size + " with " + winLength + " in a row");
+        }
+        this.size = size;
+        this.cells = size * size;
+        this.winLength = winLength;
+        this.xBits = new long[(cells + 63) >>> 6];
+        this.oBits = new long[xBits.length];
+    }
+
+    private Board(Board other) {
+        this.size = other.size;
+        this.cells = other.cells;
+        this.winLength = other.winLength;
+        this.xBits = other.xBits.clone();
+        this.oBits = other.oBits.clone();
+        this.moves = other.moves;
+        this.outcome = other.outcome;
+    }
+
+    public Board copy() {
+        return new Board(this);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCells() {
+        return cells;
+    }
+
+    public int getWinLength() {
+        return winLength;
+    }
+
+    public boolean isClassic() {
+        return size == CLASSIC_SIZE && winLength == CLASSIC_SIZE;
+    }
+
+    public int getMoveCount() {
+        return moves;
+    }
+
+    /**
+     * The X cells as a mask; only complete for boards of up to 32 cells
+     */
+    public int getXMask() {
+        return (int) xBits[0];
+    }
+
+    public int getOMask() {
+        return (int) oBits[0];
+    }
+
+    public void reset() {
+        Arrays.fill(xBits, 0);
+        Arrays.fill(oBits, 0);
+        moves = 0;
+        outcome = IN_PROGRESS;
+    }
+
+    private static boolean isSet(long[] bits, int cell) {
+        return (bits[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    public boolean isX(int cell) {
+        return isSet(xBits, cell);
+    }
+
+    public boolean isO(int cell) {
+        return isSet(oBits, cell);
+    }
+
+    public boolean isEmpty(int cell) {
+        return !isSet(xBits, cell) && !isSet(oBits, cell);
+    }
+
+    /**
+     * Places a mark on an empty cell and updates the outcome from the lines through it
+     */
+    public void place(int cell, boolean isX) {
+        long[] bits = isX ? xBits : oBits;
+        bits[cell >>> 6] |= 1L << cell;
+        moves++;
+
+        if (outcome != IN_PROGRESS) {
+            return;
+        }
+        if (completesLine(bits, cell)) {
+            outcome = isX ? X_WINS : O_WINS;
+        } else if (moves == cells) {
+            outcome = DRAW;
+        }
+    }
+
+    /**
+     * Takes back the mark on cell, which must be the last one placed; used by SearchEngine
+     */
+    public void undo(int cell) {
+        long keep = ~(1L << cell);
+        xBits[cell >>> 6] &= keep;
+        oBits[cell >>> 6] &= keep;
+        moves--;
+        outcome = IN_PROGRESS;
+    }
+
+    private boolean completesLine(long[] bits, int cell) {
+        int row = cell / size;
+        int col = cell % size;
+        for (int d = 0; d < 4; d++) {
+            int dr = DIRECTION_ROW[d];
+            int dc = DIRECTION_COL[d];
+            int run = 1 + countRun(bits, row, col, dr, dc) + countRun(bits, row, col, -dr, -dc);
+            if (run >= winLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks in a row from (row, col) in one direction, not counting the start, stopping at winLength
+     */
+    private int countRun(long[] bits, int row, int col, int dr, int dc) {
+        int count = 0;
+        int r = row + dr;
+        int c = col + dc;
+        while (count < winLength - 1 && r >= 0 && r < size && c >= 0 && c < size && isSet(bits, r * size + c)) {
+            count++;
+            r += dr;
+            c += dc;
+        }
+        return count;
+    }
+
+    /**
+     * Returns X_WINS, O_WINS, DRAW or IN_PROGRESS
+     */
+    public int outcome() {
+        return outcome;
+    }
+
+    /**
+     * Formats the board as the protocol's comma-separated line, row by row,
+     * with X, O or the 1-based cell number in each position
+     */
+    public String toProtocolString() {
+        StringBuilder line = new StringBuilder(cells * 4);
+        for (int i = 0; i < cells; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            if (isX(i)) {
+                line.append('X');
+            } else if (isO(i)) {
+                line.append('O');
+            } else {
+                line.append(i + 1);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,234 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.util.function.IntConsumer;
+import javax.swing.*;
+
+/**
+ * The GUI's game board: one component that paints every cell itself and works out
+ * which cell a click landed on. A change repaints only the cells it touched, and a
+ * paint only draws the cells inside its clip, so a 19x19 board costs no more per
+ * update than a 3x3 one. Swing merges the dirty cells of updates that arrive
+ * between two frames into one paint. Call it from the EDT only.
+ */
+public class BoardView extends JComponent {
+
+    static final Color BACKGROUND_COLOR = new Color(44, 62, 80);
+    static final Color CELL_COLOR = new Color(52, 73, 94);
+    static final Color CELL_HOVER = new Color(71, 85, 105);
+    static final Color X_COLOR = new Color(231, 76, 60);
+    static final Color O_COLOR = new Color(52, 152, 219);
+    // Marks the server hasn't confirmed yet are drawn faded
+    private static final Color X_PENDING = new Color(X_COLOR.getRed(), X_COLOR.getGreen(), X_COLOR.getBlue(), 110);
+    private static final Color O_PENDING = new Color(O_COLOR.getRed(), O_COLOR.getGreen(), O_COLOR.getBlue(), 110);
+
+    private static final int PADDING = 10;
+
+    private final IntConsumer onClick;
+    private int size;
+    // 'X', 'O' or 0 for every cell
+    private char[] marks;
+    // Cell numbers as drawn on empty cells, made once per board size
+    private String[] labels;
+    private int cellSize;
+    private int gap;
+    private Font markFont;
+    private Font labelFont;
+    private boolean interactive;
+    private int hover = -1;
+    private int pending = -1;
+
+    /**
+     * onClick gets the cell clicked, but only while the board is interactive and the cell is empty
+     */
+    public BoardView(int size, IntConsumer onClick) {
+        this.onClick = onClick;
+        setOpaque(true);
+        setBoardSize(size);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                setHover(cellAt(e.getX(), e.getY()));
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                setHover(-1);
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int cell = cellAt(e.getX(), e.getY());
+                if (cell >= 0 && interactive && marks[cell] == 0) {
+                    onClick.accept(cell);
+                }
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+    }
+
+    /**
+     * Clears the board and lays it out for size x size cells, scaled so the board
+     * keeps roughly the same overall size
+     */
+    public void setBoardSize(int size) {
+        this.size = size;
+        marks = new char[size * size];
+        labels = new String[size * size];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = String.valueOf(i + 1);
+        }
+        gap = size <= 3 ? 10 : 2;
+        cellSize = Math.max(24, 360 / size);
+        markFont = new Font("Arial", Font.BOLD, size <= 3 ? 48 : Math.max(8, cellSize * 2 / 3));
+        labelFont = new Font("Arial", Font.PLAIN, size <= 3 ? 24 : Math.max(7, cellSize / 3));
+        hover = -1;
+        pending = -1;
+        int side = 2 * PADDING + size * cellSize + (size - 1) * gap;
+        setPreferredSize(new Dimension(side, side));
+        revalidate();
+        repaint();
+    }
+
+    public int getBoardSize() {
+        return size;
+    }
+
+    /**
+     * The mark in a cell, or 0 if it is empty
+     */
+    public char getMark(int cell) {
+        return marks[cell];
+    }
+
+    public void setMark(int cell, char mark) {
+        if (marks[cell] != mark) {
+            marks[cell] = mark;
+            repaintCell(cell);
+        }
+    }
+
+    /**
+     * Applies a whole board, repainting only the cells that differ; a board of
+     * another size is ignored
+     */
+    public void setMarks(char[] board) {
+        if (board.length != marks.length) {
+            return;
+        }
+        for (int i = 0; i < board.length; i++) {
+            setMark(i, board[i]);
+        }
+    }
+
+    /**
+     * Draws the mark in a cell faded until the server confirms it; -1 for none
+     */
+    public void setPending(int cell) {
+        if (cell != pending) {
+            int old = pending;
+            pending = cell;
+            if (old >= 0) {
+                repaintCell(old);
+            }
+            if (cell >= 0) {
+                repaintCell(cell);
+            }
+        }
+    }
+
+    /**
+     * Whether empty cells take clicks; shown by how their numbers are drawn
+     */
+    public void setInteractive(boolean interactive) {
+        if (this.interactive != interactive) {
+            this.interactive = interactive;
+            repaint();
+        }
+    }
+
+    private void setHover(int cell) {
+        if (cell != hover) {
+            int old = hover;
+            hover = cell;
+            if (old >= 0) {
+                repaintCell(old);
+            }
+            if (cell >= 0) {
+                repaintCell(cell);
+            }
+        }
+    }
+
+    /**
+     * The cell under a point, or -1 if it is in a gap or off the board
+     */
+    private int cellAt(int x, int y) {
+        int pitch = cellSize + gap;
+        int bx = x - PADDING;
+        int by = y - PADDING;
+        if (bx < 0 || by < 0 || bx % pitch >= cellSize || by % pitch >= cellSize) {
+            return -1;
+        }
+        int column = bx / pitch;
+        int row = by / pitch;
+        return column < size && row < size ? row * size + column : -1;
+    }
+
+    private void repaintCell(int cell) {
+        int pitch = cellSize + gap;
+        repaint(PADDING + (cell % size) * pitch, PADDING + (cell / size) * pitch, cellSize, cellSize);
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics;
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(BACKGROUND_COLOR);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        // Only the rows and columns the clip touches
+        int pitch = cellSize + gap;
+        int firstColumn = Math.max(0, (clip.x - PADDING) / pitch);
+        int lastColumn = Math.min(size - 1, (clip.x + clip.width - PADDING) / pitch);
+        int firstRow = Math.max(0, (clip.y - PADDING) / pitch);
+        int lastRow = Math.min(size - 1, (clip.y + clip.height - PADDING) / pitch);
+        FontMetrics markMetrics = g.getFontMetrics(markFont);
+        FontMetrics labelMetrics = g.getFontMetrics(labelFont);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * size + column;
+                int x = PADDING + column * pitch;
+                int y = PADDING + row * pitch;
+                char mark = marks[cell];
+                g.setColor(cell == hover && interactive && mark == 0 ? CELL_HOVER : CELL_COLOR);
+                g.fillRect(x, y, cellSize, cellSize);
+
+                String text;
+                FontMetrics metrics;
+                if (mark == 0) {
+                    text = labels[cell];
+                    metrics = labelMetrics;
+                    g.setColor(interactive ? Color.LIGHT_GRAY : Color.GRAY);
+                } else {
+                    text = mark == 'X' ? "X" : "O";
+                    metrics = markMetrics;
+                    if (cell == pending) {
+                        g.setColor(mark == 'X' ? X_PENDING : O_PENDING);
+                    } else {
+                        g.setColor(mark == 'X' ? X_COLOR : O_COLOR);
+                    }
+                }
+                g.setFont(metrics.getFont());
+                g.drawString(text, x + (cellSize - metrics.stringWidth(text)) / 2,
+                    y + (cellSize - metrics.getHeight()) / 2 + metrics.getAscent());
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The connection of a server-side bot player. Instead of a socket it answers each
+ * TURN with a move sent back through the player as an ordinary MOVE. On the classic
+ * board that is the PerfectPlay move, and all such bots share one thread, since a
+ * move is a table lookup. Larger boards are searched by the server's SearchEngine
+ * for up to the configured think time.
+ */
+public class BotConnection extends Connection {
+
+    private static final ExecutorService botThread = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "bot-player");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TicTacToeServer.Player player;
+    private volatile boolean closed;
+
+    BotConnection() {
+        this.player = new TicTacToeServer.Player(this);
+    }
+
+    TicTacToeServer.Player getPlayer() {
+        return player;
+    }
+
+    @Override
+    public void send(String line) {
+        // Moves are played from another thread, so the sender's locks are never re-entered
+        if (!line.equals("TURN") || closed) {
+            return;
+        }
+        GameSession session = player.session;
+        if (session != null && (session.getBoardSize() != Board.CLASSIC_SIZE
+                || session.getWinLength() != Board.CLASSIC_SIZE)) {
+            // The think time starts now, so a bot that waits for a search thread thinks less
+            long deadline = System.nanoTime() + TicTacToeServer.config.botThinkMillis * 1_000_000L;
+            TicTacToeServer.searchEngine.execute(() -> search(deadline));
+        } else {
+            botThread.execute(this::lookUp);
+        }
+    }
+
+    private void lookUp() {
+        GameSession session = player.session;
+        if (closed || session == null || !session.isActive()) {
+            return;
+        }
+        Board board = session.getBoardSnapshot();
+        int cell = PerfectPlay.bestMove(board.getXMask(), board.getOMask());
+        if (cell >= 0) {
+            play(cell);
+        }
+    }
+
+    private void search(long deadline) {
+        GameSession session = player.session;
+        if (closed || session == null || !session.isActive()) {
+            return;
+        }
+        SearchEngine.Result result = TicTacToeServer.searchEngine.search(session.getBoardSnapshot(), deadline);
+        ServerLog.info("Game " + session.id + ": bot searched depth " + result.depth + ", "
+            + result.nodes + " positions in " + result.millis + " ms.");
+        if (result.move >= 0 && !closed) {
+            play(result.move);
+        }
+    }
+
+    /**
+     * Sends a MOVE through the player; one at a time, as they share the connection's decoder
+     */
+    private synchronized void play(int cell) {
+        dispatchLine("MOVE " + cell);
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) {
+        // The bot never negotiates BinaryProtocol
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "bot";
+    }
+}
@@ -0,0 +1,305 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+/**
+ * A client connection as the game logic sees it, independent of the transport
+ * that carries it. Lines are passed around without their trailing newline.
+ */
+public abstract class Connection {
+
+    /**
+     * What happens to a message that would take a client's queued output past its
+     * limit: the message is dropped, the client is disconnected, or, for replies to the
+     * client's own messages, it is queued and the client's input waits for room
+     */
+    public enum Overflow { DROP, DISCONNECT, BLOCK }
+
+    /**
+     * Receives the messages read from a connection and the notice that it closed
+     */
+    public interface Handler {
+        /**
+         * Receives one line or frame, decoded. The codec is reused for the next
+         * message, so it is only valid during the call.
+         */
+        void onMessage(ProtocolCodec message);
+
+        void onClose();
+    }
+
+    private final AtomicBoolean closeNotified = new AtomicBoolean();
+    private volatile Handler handler;
+
+    // The thread handing one of this client's messages to the handler, null between messages
+    private volatile Thread handling;
+
+    // Set by the handler once BinaryProtocol has been negotiated; read by the transport
+    protected volatile boolean binaryInput;
+
+    // Output that may wait for a slow client before overflow applies; set before sending
+    protected volatile int maxQueuedBytes = Integer.MAX_VALUE;
+    protected volatile Overflow overflow = Overflow.DISCONNECT;
+    private volatile boolean overflowLogged;
+
+    // When the client last sent anything; heartbeats and the reaper go by this
+    private volatile long lastReadNanos = System.nanoTime();
+
+    // Decodes everything the client sends; only the thread reading the connection uses it
+    protected final ProtocolCodec decoder = new ProtocolCodec();
+
+    // How fast the client may send; null for connections without limits, such as bots
+    private volatile RateLimiter.Limit inboundLimit;
+
+    // Callbacks waiting for the output queued before them to reach the socket, oldest
+    // first, and the bytes queued and written so far; guarded by this, like the
+    // transport's own queue
+    private final ArrayDeque<WriteMark> writeMarks = new ArrayDeque<>(2);
+    private long bytesQueued;
+    private long bytesWritten;
+
+    private static final class WriteMark {
+        final long position;
+        final long sinceNanos;
+        final LongConsumer callback;
+
+        WriteMark(long position, long sinceNanos, LongConsumer callback) {
+            this.position = position;
+            this.sinceNanos = sinceNanos;
+            this.callback = callback;
+        }
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void setOutboundLimit(int maxQueuedBytes, Overflow overflow) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Set before the connection starts reading
+     */
+    public void setInboundLimit(RateLimiter.Limit limit) {
+        this.inboundLimit = limit;
+    }
+
+    /**
+     * Charges the client for extra messages on top of the one being handled, for
+     * commands that cost the server more than one message should
+     */
+    public void penalize(int messages) {
+        RateLimiter.Limit limit = inboundLimit;
+        if (limit != null) {
+            limit.charge(System.nanoTime(), messages);
+        }
+    }
+
+    /**
+     * Asked by the transport after each message: how long to stop reading before the
+     * next one, 0 to carry on, or -1 if the client has flooded for too long and must be
+     * disconnected
+     */
+    protected long inboundPauseNanos() {
+        RateLimiter.Limit limit = inboundLimit;
+        return limit == null ? 0 : limit.pauseNanos(getRemoteAddress());
+    }
+
+    /**
+     * True if a message of length bytes may join queuedBytes already waiting. An empty
+     * queue always takes a message, so no message is too big to send.
+     */
+    protected boolean fits(long queuedBytes, int length) {
+        return queuedBytes == 0 || queuedBytes + length <= maxQueuedBytes;
+    }
+
+    /**
+     * The overflow policy for a message sent from the calling thread. No sender ever
+     * waits for another client's socket, so BLOCK only holds while the client's own
+     * message is being handled: the reply is queued anyway, and the transport stops
+     * reading from the client until its output has drained. Everything else, such as
+     * an opponent's move, a spectator update or a lobby message, disconnects instead.
+     */
+    protected Overflow overflowFor(boolean shared) {
+        Overflow policy = overflow;
+        if (policy == Overflow.BLOCK && (shared || handling != Thread.currentThread())) {
+            return Overflow.DISCONNECT;
+        }
+        return policy;
+    }
+
+    /**
+     * True if BLOCK has let the client's queued output run past its limit, so reading
+     * from it should wait until that has been written
+     */
+    protected boolean outputBlocked(long queuedBytes) {
+        return overflow == Overflow.BLOCK && queuedBytes > maxQueuedBytes;
+    }
+
+    /**
+     * Logs the first overflow on this connection, rather than one line per message
+     */
+    protected void logOverflow(long queuedBytes, Overflow policy) {
+        if (!overflowLogged) {
+            overflowLogged = true;
+            ServerLog.info("Client " + getRemoteAddress() + " is not keeping up (" + queuedBytes / 1024
+                + " KB queued); " + (policy == Overflow.DROP ? "dropping messages." : "disconnecting."));
+        }
+    }
+
+    /**
+     * Sends one protocol line to the client
+     */
+    public abstract void send(String line);
+
+    /**
+     * Sends one complete binary frame, length prefix included
+     */
+    public abstract void sendFrame(byte[] frame);
+
+    /**
+     * Sends bytes already encoded for the client: text lines with their newlines,
+     * or whole frames. The array may be shared with other connections, so it is
+     * never modified.
+     */
+    public void sendEncoded(byte[] encoded) {
+        sendFrame(encoded);
+    }
+
+    /**
+     * Calls callback with sinceNanos once everything sent to this connection so far
+     * has been written to its socket, on the thread that writes it, or at once if it
+     * already has been. Never called if the output is thrown away by a close.
+     */
+    public void whenWritten(long sinceNanos, LongConsumer callback) {
+        synchronized (this) {
+            if (bytesWritten < bytesQueued) {
+                writeMarks.add(new WriteMark(bytesQueued, sinceNanos, callback));
+                return;
+            }
+        }
+        callback.accept(sinceNanos);
+    }
+
+    /**
+     * Counts bytes the transport has queued for the socket; call holding this
+     */
+    protected void queued(long count) {
+        bytesQueued += count;
+    }
+
+    /**
+     * Counts bytes written to the socket and runs the whenWritten() callbacks they
+     * complete; call holding this
+     */
+    protected void written(long count) {
+        bytesWritten += count;
+        while (!writeMarks.isEmpty() && writeMarks.peek().position <= bytesWritten) {
+            WriteMark mark = writeMarks.poll();
+            mark.callback.accept(mark.sinceNanos);
+        }
+    }
+
+    /**
+     * Forgets queued output that will never be written; call holding this
+     */
+    protected void discarded() {
+        writeMarks.clear();
+        bytesQueued = bytesWritten;
+    }
+
+    /**
+     * Switches the incoming side to binary frames, starting with the next message.
+     * Must be called from the handler while it processes the negotiating line.
+     */
+    public void setBinaryInput(boolean binaryInput) {
+        this.binaryInput = binaryInput;
+    }
+
+    /**
+     * Closes the connection after any output already sent has been written
+     */
+    public abstract void close();
+
+    /**
+     * Closes the connection at once, dropping any unsent output, for a client that
+     * has stopped responding. Never blocks, however stuck the socket is.
+     */
+    public void abort() {
+        close();
+    }
+
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public abstract String getRemoteAddress();
+
+    /**
+     * The client's address without the port, for limits shared by all its connections
+     */
+    public String getRemoteHost() {
+        return getRemoteAddress();
+    }
+
+    protected void dispatchLine(String line) {
+        decoder.decode(line);
+        dispatchMessage();
+    }
+
+    /**
+     * Dispatches a line held in a buffer, without its newline
+     */
+    protected void dispatchLine(byte[] bytes, int offset, int length) {
+        decoder.decode(bytes, offset, length);
+        dispatchMessage();
+    }
+
+    /**
+     * Dispatches a frame held in a buffer, without its length prefix
+     */
+    protected void dispatchFrame(byte[] bytes, int offset, int length) {
+        decoder.decodeFrame(bytes, offset, length);
+        dispatchMessage();
+    }
+
+    /**
+     * Hands the message last decoded into decoder to the handler
+     */
+    protected void dispatchMessage() {
+        long now = System.nanoTime();
+        lastReadNanos = now;
+        RateLimiter.Limit limit = inboundLimit;
+        if (limit != null) {
+            limit.charge(now, 1);
+        }
+        Handler h = handler;
+        if (h != null) {
+            handling = Thread.currentThread();
+            try {
+                h.onMessage(decoder);
+            } finally {
+                handling = null;
+            }
+        }
+    }
+
+    /**
+     * Tells the handler that the connection is gone, at most once
+     */
+    protected void dispatchClose() {
+        Handler h = handler;
+        if (!closeNotified.compareAndSet(false, true)) {
+            return;
+        }
+        RateLimiter.Limit limit = inboundLimit;
+        if (limit != null) {
+            limit.release();
+        }
+        if (h != null) {
+            h.onClose();
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline reports over a GameArchive directory: results and first-mover advantage for
+ * each board, game lengths, the most played openings, and how humans and bots do on
+ * each side (players have no names, so that is as personal as the stats get).
+ *
+ * Archive files are memory-mapped a chunk at a time. The chunks are cut at block
+ * boundaries and parsed in parallel into one Totals each, which are merged at the end,
+ * so any number of games is read in one pass without holding them in memory. The totals
+ * and how far each file was read are saved in a state file, and the next run only reads
+ * what was appended since; --full ignores the state and re-scans everything.
+ *
+ * Usage: java GameAnalytics <archive dir> [--full] [--state=file] [--threads=n] [--top=n]
+ */
+public class GameAnalytics {
+
+    // Bytes mapped and parsed by one task; a whole number of archive blocks
+    private static final long CHUNK_BYTES = 1024L * GameArchive.BLOCK_SIZE;
+
+    private static final int STATE_MAGIC = 0x54544741;
+    private static final int STATE_VERSION = 1;
+
+    // Stands in for the second cell of one-move games in an opening key
+    private static final int NO_MOVE = 0xFFFF;
+
+    /**
+     * Counts for one board size and win length
+     */
+    static final class Variant {
+        final int size;
+        final int winLength;
+        long games;
+        long xWins;
+        long oWins;
+        long draws;
+        long moves;
+        // Games by number of moves
+        final long[] lengths;
+        // First two cells (first << 16 | second) to games, X wins, O wins, draws
+        final Map<Integer, long[]> openings = new HashMap<>();
+
+        Variant(int size, int winLength) {
+            this.size = size;
+            this.winLength = winLength;
+            this.lengths = new long[size * size + 1];
+        }
+
+        void merge(Variant other) {
+            games += other.games;
+            xWins += other.xWins;
+            oWins += other.oWins;
+            draws += other.draws;
+            moves += other.moves;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            for (Map.Entry<Integer, long[]> entry : other.openings.entrySet()) {
+                long[] counts = openings.computeIfAbsent(entry.getKey(), key -> new long[4]);
+                for (int i = 0; i < 4; i++) {
+                    counts[i] += entry.getValue()[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything counted over some part of the archive; parts are merged into one
+     */
+    static final class Totals {
+        final Map<Integer, Variant> variants = new TreeMap<>();
+        // By side (X, O) and kind (human, bot): games, wins, losses, draws
+        final long[] players = new long[16];
+        long badRecords;
+        private Variant last;
+
+        long games() {
+            long games = 0;
+            for (Variant variant : variants.values()) {
+                games += variant.games;
+            }
+            return games;
+        }
+
+        private Variant variant(int size, int winLength) {
+            if (last == null || last.size != size || last.winLength != winLength) {
+                last = variants.computeIfAbsent(size << 8 | winLength, key -> new Variant(size, winLength));
+            }
+            return last;
+        }
+
+        /**
+         * Counts the record of length bytes at offset; false if it is not a valid record
+         */
+        boolean add(ByteBuffer buffer, int offset, int length) {
+            int size = buffer.get(offset + 2) & 0xFF;
+            int winLength = buffer.get(offset + 3) & 0xFF;
+            int result = buffer.get(offset + 4);
+            int flags = buffer.get(offset + 5);
+            int moveCount = buffer.getShort(offset + 10) & 0xFFFF;
+            if (size < 1 || size > Board.MAX_SIZE || winLength < 1 || winLength > size
+                    || result < GameArchive.X_WINS || result > GameArchive.DRAW
+                    || moveCount > size * size || length != GameArchive.HEADER_LENGTH + 2 * moveCount) {
+                return false;
+            }
+
+            Variant variant = variant(size, winLength);
+            variant.games++;
+            variant.moves += moveCount;
+            variant.lengths[moveCount]++;
+            if (result == GameArchive.X_WINS) {
+                variant.xWins++;
+            } else if (result == GameArchive.O_WINS) {
+                variant.oWins++;
+            } else {
+                variant.draws++;
+            }
+
+            int first = moveCount > 0 ? buffer.getShort(offset + GameArchive.HEADER_LENGTH) & 0xFFFF : NO_MOVE;
+            int second = moveCount > 1 ? buffer.getShort(offset + GameArchive.HEADER_LENGTH + 2) & 0xFFFF : NO_MOVE;
+            long[] opening = variant.openings.computeIfAbsent(first << 16 | second, key -> new long[4]);
+            opening[0]++;
+            opening[result]++;
+
+            // Each side's result: column 1 a win, 2 a loss, 3 a draw
+            int xColumn = result;
+            int oColumn = result == GameArchive.DRAW ? result : 3 - result;
+            int x = (flags & GameArchive.X_BOT) != 0 ? 4 : 0;
+            int o = (flags & GameArchive.O_BOT) != 0 ? 12 : 8;
+            players[x]++;
+            players[x + xColumn]++;
+            players[o]++;
+            players[o + oColumn]++;
+            return true;
+        }
+
+        void merge(Totals other) {
+            for (Variant variant : other.variants.values()) {
+                variant(variant.size, variant.winLength).merge(variant);
+            }
+            for (int i = 0; i < players.length; i++) {
+                players[i] += other.players[i];
+            }
+            badRecords += other.badRecords;
+        }
+    }
+
+    /**
+     * One piece of an archive file, parsed on its own
+     */
+    private static final class Chunk {
+        final Path file;
+        final long start;
+        final long end;
+        final Totals totals = new Totals();
+        // Where the next run should start: after the last complete record
+        long readTo;
+
+        Chunk(Path file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+
+        Chunk scan() throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                int limit = buffer.limit();
+                int offset = 0;
+                while (offset + 2 <= limit) {
+                    int length = buffer.getShort(offset) & 0xFFFF;
+                    int blockLeft = GameArchive.BLOCK_SIZE - (int) ((start + offset) % GameArchive.BLOCK_SIZE);
+                    if (length == 0) {
+                        offset += blockLeft;
+                    } else if (length < GameArchive.HEADER_LENGTH || length > blockLeft) {
+                        // Can't be a record; carry on from the next block
+                        totals.badRecords++;
+                        offset += blockLeft;
+                    } else if (length > limit - offset) {
+                        break; // Not all written yet
+                    } else {
+                        if (!totals.add(buffer, offset, length)) {
+                            totals.badRecords++;
+                        }
+                        offset += length;
+                    }
+                }
+                readTo = start + Math.min(offset, limit);
+            }
+            return this;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args[0].startsWith("--")) {
+            System.out.println("Usage: java GameAnalytics <archive dir> [--full] [--state=file] [--threads=n] [--top=n]");
+            return;
+        }
+        Path directory = Paths.get(args[0]);
+        Path statePath = directory.resolve("analytics.state");
+        boolean full = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 10;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--full")) {
+                full = true;
+            } else if (arg.startsWith("--state=")) {
+                statePath = Paths.get(arg.substring(8));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Math.max(1, Integer.parseInt(arg.substring(10)));
+            } else if (arg.startsWith("--top=")) {
+                top = Integer.parseInt(arg.substring(6));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        Totals totals = new Totals();
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        if (!full && Files.exists(statePath)) {
+            if (!readState(statePath, totals, offsets)) {
+                System.out.println("Unreadable state in " + statePath + ", re-scanning everything.");
+                totals = new Totals();
+                offsets.clear();
+            }
+        }
+
+        // Cut what is new in every file into chunks; a shrunken file means the state is stale
+        List<Chunk> chunks = new ArrayList<>();
+        long bytes = 0;
+        List<Path> files = GameArchive.files(directory);
+        for (Path file : files) {
+            long from = offsets.getOrDefault(file.getFileName().toString(), 0L);
+            long size = Files.size(file);
+            if (from > size) {
+                System.out.println(file.getFileName() + " is shorter than when it was last read; use --full.");
+                return;
+            }
+            for (long start = from; start < size; ) {
+                long end = Math.min(size, (start / CHUNK_BYTES + 1) * CHUNK_BYTES);
+                chunks.add(new Chunk(file, start, end));
+                start = end;
+            }
+            bytes += size - from;
+        }
+
+        long began = System.nanoTime();
+        Totals added = new Totals();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Chunk>> results = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                results.add(pool.submit(chunk::scan));
+            }
+            for (Future<Chunk> result : results) {
+                Chunk chunk = result.get();
+                added.merge(chunk.totals);
+                offsets.merge(chunk.file.getFileName().toString(), chunk.readTo, Math::max);
+            }
+        } catch (ExecutionException e) {
+            System.out.println("Reading the archive failed: " + e.getCause());
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long millis = (System.nanoTime() - began) / 1_000_000;
+        totals.merge(added);
+        writeState(statePath, totals, offsets);
+
+        System.out.printf("Archive %s: %d files, %,d games%n", directory, files.size(), totals.games());
+        System.out.printf("This run: %,d new games in %,d MB, read by %d threads in %,d ms%s%n",
+            added.games(), bytes >> 20, threads, millis, full ? " (full re-scan)" : "");
+        if (added.badRecords > 0) {
+            System.out.printf("Skipped %,d damaged records%n", added.badRecords);
+        }
+        report(totals, top);
+    }
+
+    static void report(Totals totals, int top) {
+        for (Variant variant : totals.variants.values()) {
+            double games = variant.games;
+            System.out.printf("%n%dx%d, %d in a row: %,d games%n", variant.size, variant.size, variant.winLength, variant.games);
+            System.out.printf("  Results: X wins %.1f%%, O wins %.1f%%, draws %.1f%%%n",
+                100 * variant.xWins / games, 100 * variant.oWins / games, 100 * variant.draws / games);
+            // X always moves first; a draw counts as half a win
+            System.out.printf("  First-mover advantage: X scores %.1f%% (O %.1f%%)%n",
+                100 * (variant.xWins + variant.draws / 2.0) / games, 100 * (variant.oWins + variant.draws / 2.0) / games);
+            System.out.printf("  Moves per game: average %.2f, median %d, shortest %d, longest %d%n",
+                variant.moves / games, percentile(variant.lengths, 0.5), percentile(variant.lengths, 0),
+                percentile(variant.lengths, 1));
+
+            List<Map.Entry<Integer, long[]>> openings = new ArrayList<>(variant.openings.entrySet());
+            // Most games first, ties in cell order so every run lists them the same way
+            openings.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0]) : Integer.compare(a.getKey(), b.getKey()));
+            System.out.println("  Most played openings (X's cell, O's reply):");
+            System.out.println("    opening        games   X wins   O wins    draws");
+            for (int i = 0; i < Math.min(top, openings.size()); i++) {
+                int key = openings.get(i).getKey();
+                long[] counts = openings.get(i).getValue();
+                System.out.printf("    %-9s %,10d %7.1f%% %7.1f%% %7.1f%%%n", cells(key), counts[0],
+                    100.0 * counts[1] / counts[0], 100.0 * counts[2] / counts[0], 100.0 * counts[3] / counts[0]);
+            }
+        }
+
+        System.out.println("\nPlayers:");
+        System.out.println("                 games     wins   losses    draws");
+        String[] names = {"human as X", "bot as X", "human as O", "bot as O"};
+        for (int i = 0; i < names.length; i++) {
+            long games = totals.players[i * 4];
+            if (games > 0) {
+                System.out.printf("  %-10s %,10d %7.1f%% %7.1f%% %7.1f%%%n", names[i], games,
+                    100.0 * totals.players[i * 4 + 1] / games, 100.0 * totals.players[i * 4 + 2] / games,
+                    100.0 * totals.players[i * 4 + 3] / games);
+            }
+        }
+    }
+
+    /**
+     * An opening key as 1-based cells, as the protocol numbers them
+     */
+    private static String cells(int key) {
+        int first = key >>> 16;
+        int second = key & 0xFFFF;
+        if (first == NO_MOVE) {
+            return "-";
+        }
+        return (first + 1) + (second == NO_MOVE ? "" : ", " + (second + 1));
+    }
+
+    /**
+     * The move count below which the given fraction of games fall
+     */
+    private static int percentile(long[] lengths, double fraction) {
+        long total = 0;
+        for (long count : lengths) {
+            total += count;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int moves = 0; moves < lengths.length; moves++) {
+            seen += lengths[moves];
+            if (seen >= rank) {
+                return moves;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the totals and file offsets left by the last run; false if they don't make sense
+     */
+    static boolean readState(Path path, Totals totals, Map<String, Long> offsets) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                return false;
+            }
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                offsets.put(in.readUTF(), in.readLong());
+            }
+            for (int i = 0; i < totals.players.length; i++) {
+                totals.players[i] = in.readLong();
+            }
+            int variants = in.readInt();
+            for (int v = 0; v < variants; v++) {
+                Variant variant = totals.variant(in.readUnsignedByte(), in.readUnsignedByte());
+                variant.games = in.readLong();
+                variant.xWins = in.readLong();
+                variant.oWins = in.readLong();
+                variant.draws = in.readLong();
+                variant.moves = in.readLong();
+                for (int i = 0; i < variant.lengths.length; i++) {
+                    variant.lengths[i] = in.readLong();
+                }
+                int openings = in.readInt();
+                for (int i = 0; i < openings; i++) {
+                    long[] counts = new long[4];
+                    variant.openings.put(in.readInt(), counts);
+                    for (int c = 0; c < 4; c++) {
+                        counts[c] = in.readLong();
+                    }
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the state for the next run, replacing the old one only once it is complete
+     */
+    static void writeState(Path path, Totals totals, Map<String, Long> offsets) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeInt(offsets.size());
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            for (long count : totals.players) {
+                out.writeLong(count);
+            }
+            out.writeInt(totals.variants.size());
+            for (Variant variant : totals.variants.values()) {
+                out.writeByte(variant.size);
+                out.writeByte(variant.winLength);
+                out.writeLong(variant.games);
+                out.writeLong(variant.xWins);
+                out.writeLong(variant.oWins);
+                out.writeLong(variant.draws);
+                out.writeLong(variant.moves);
+                for (long count : variant.lengths) {
+                    out.writeLong(count);
+                }
+                out.writeInt(variant.openings.size());
+                for (Map.Entry<Integer, long[]> entry : variant.openings.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    for (long count : entry.getValue()) {
+                        out.writeLong(count);
+                    }
+                }
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
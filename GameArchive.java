@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only archive of finished games for offline analysis with GameAnalytics: one
+ * record for every game that ended in a win or a draw. Unlike the MoveJournal nothing
+ * is ever deleted; a new file is started every segmentMegabytes and on every start.
+ *
+ * Files are written in BLOCK_SIZE blocks and no record crosses a block boundary (a
+ * zero length pads out the rest of a block), so a reader can cut a file at any block
+ * boundary and parse the pieces in parallel. A record is its length (16 bits, whole
+ * record), board size, win length, result (X_WINS, O_WINS or DRAW), flags (X_BOT,
+ * O_BOT), game id (32 bits), move count (16 bits), then every cell played, in order
+ * (16 bits each). Records are collected in memory and written out whenever a block
+ * fills up, and by a background thread every FLUSH_MILLIS.
+ */
+public class GameArchive {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final int HEADER_LENGTH = 12;
+
+    // Results
+    public static final int X_WINS = 1;
+    public static final int O_WINS = 2;
+    public static final int DRAW = 3;
+
+    // Flags
+    public static final int X_BOT = 1;
+    public static final int O_BOT = 2;
+
+    private static final long FLUSH_MILLIS = 1000;
+    private static final String PREFIX = "games-";
+    private static final String SUFFIX = ".archive";
+
+    private final Path directory;
+    private final long segmentBytes;
+
+    // Guarded by this: the block being filled, how much of it is already in the file, and the file
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private int written;
+    private FileChannel file;
+    private int fileIndex;
+    private long fileBytes;
+
+    public GameArchive(Path directory, int segmentMegabytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(1, segmentMegabytes) * (1L << 20);
+        Files.createDirectories(directory);
+        List<Path> files = files(directory);
+        openFile(files.isEmpty() ? 0 : index(files.get(files.size() - 1)) + 1);
+
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flush();
+            }
+        }, "archive-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * The archive files in directory, oldest first
+     */
+    public static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static int index(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private void openFile(int index) throws IOException {
+        fileIndex = index;
+        fileBytes = 0;
+        file = FileChannel.open(directory.resolve(String.format("%s%08d%s", PREFIX, index, SUFFIX)),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Adds a finished game; moves are the cells played, in order
+     */
+    public synchronized void record(int id, int size, int winLength, int result, int flags, int[] moves) {
+        int length = HEADER_LENGTH + 2 * moves.length;
+        try {
+            if (block.remaining() < length) {
+                // Pad out the block so the next record starts on a boundary
+                while (block.hasRemaining()) {
+                    block.put((byte) 0);
+                }
+                writeBlock();
+            }
+        } catch (IOException e) {
+            ServerLog.info("Game archive write failed: " + e.getMessage());
+            return;
+        }
+        block.putShort((short) length);
+        block.put((byte) size);
+        block.put((byte) winLength);
+        block.put((byte) result);
+        block.put((byte) flags);
+        block.putInt(id);
+        block.putShort((short) moves.length);
+        for (int cell : moves) {
+            block.putShort((short) cell);
+        }
+    }
+
+    /**
+     * Writes out what has been recorded so far
+     */
+    public synchronized void flush() {
+        try {
+            writeBlock();
+        } catch (IOException e) {
+            ServerLog.info("Game archive write failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the part of the block not yet in the file; a full block is then
+     * reset, and the file rolled over once it has reached segmentBytes
+     */
+    private void writeBlock() throws IOException {
+        ByteBuffer unwritten = block.duplicate();
+        unwritten.flip();
+        unwritten.position(written);
+        while (unwritten.hasRemaining()) {
+            file.write(unwritten);
+        }
+        fileBytes += block.position() - written;
+        written = block.position();
+        if (block.hasRemaining()) {
+            return;
+        }
+        block.clear();
+        written = 0;
+        if (fileBytes >= segmentBytes) {
+            file.close();
+            openFile(fileIndex + 1);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * The rules of one game with nothing else attached: whose turn it is, which moves are
+ * legal, and how the game ends. GameSession plays its games through one, and anything
+ * that wants to play games in-process, such as TicTacToeTournament, can use it directly.
+ * X always moves first. Not thread-safe; reset() starts the next game without allocating.
+ */
+public final class GameEngine {
+
+    /**
+     * Picks the moves of one side. A strategy is only used by one thread at a time,
+     * so it may keep state between moves; see TicTacToeTournament for the built-in ones.
+     */
+    public interface Strategy {
+        /**
+         * A cell for the side to move in a game that is still in progress;
+         * an illegal cell loses the game
+         */
+        int chooseMove(GameEngine game);
+    }
+
+    private final Board board;
+    // Cells played, in order
+    private final int[] moves;
+
+    /**
+     * A classic 3x3 game
+     */
+    public GameEngine() {
+        this(new Board());
+    }
+
+    public GameEngine(int size, int winLength) {
+        this(new Board(size, winLength));
+    }
+
+    private GameEngine(Board board) {
+        this.board = board;
+        this.moves = new int[board.getCells()];
+    }
+
+    /**
+     * Continues a game already on board; playedMoves are its cells in the order they
+     * were played, as far as they are known
+     */
+    public GameEngine(Board board, int[] playedMoves) {
+        this(board);
+        System.arraycopy(playedMoves, 0, moves, 0, Math.min(playedMoves.length, board.getMoveCount()));
+    }
+
+    /**
+     * Clears the board for a new game of the same size
+     */
+    public void reset() {
+        board.reset();
+    }
+
+    /**
+     * The board itself, for reading; it changes as moves are played
+     */
+    public Board getBoard() {
+        return board;
+    }
+
+    public int getCells() {
+        return board.getCells();
+    }
+
+    public boolean isXTurn() {
+        return (board.getMoveCount() & 1) == 0;
+    }
+
+    /**
+     * Board.IN_PROGRESS, X_WINS, O_WINS or DRAW
+     */
+    public int outcome() {
+        return board.outcome();
+    }
+
+    public boolean isOver() {
+        return board.outcome() != Board.IN_PROGRESS;
+    }
+
+    public int getMoveCount() {
+        return board.getMoveCount();
+    }
+
+    /**
+     * The cell played as move number index, counting from 0
+     */
+    public int getMove(int index) {
+        return moves[index];
+    }
+
+    /**
+     * The cells played so far, in order
+     */
+    public int[] getMoves() {
+        int[] played = new int[board.getMoveCount()];
+        System.arraycopy(moves, 0, played, 0, played.length);
+        return played;
+    }
+
+    /**
+     * True if the side to move may play cell: the game is in progress and the cell is on the board and empty
+     */
+    public boolean isLegal(int cell) {
+        return board.outcome() == Board.IN_PROGRESS && cell >= 0 && cell < board.getCells() && board.isEmpty(cell);
+    }
+
+    /**
+     * Plays cell for the side to move and returns the outcome
+     */
+    public int play(int cell) {
+        if (!isLegal(cell)) {
+            throw new IllegalArgumentException("Illegal move " + cell);
+        }
+        moves[board.getMoveCount()] = cell;
+        board.place(cell, isXTurn());
+        return board.outcome();
+    }
+
+    /**
+     * True if playing the empty cell would win the game for X (or O), which must be in progress
+     */
+    public boolean winsAt(int cell, boolean isX) {
+        board.place(cell, isX);
+        boolean wins = board.outcome() == (isX ? Board.X_WINS : Board.O_WINS);
+        board.undo(cell);
+        return wins;
+    }
+
+    /**
+     * Plays a whole game from the current position and returns the outcome. A side
+     * that picks an illegal cell loses.
+     */
+    public int playOut(Strategy x, Strategy o) {
+        while (board.outcome() == Board.IN_PROGRESS) {
+            boolean xTurn = isXTurn();
+            int cell = (xTurn ? x : o).chooseMove(this);
+            if (!isLegal(cell)) {
+                return xTurn ? Board.O_WINS : Board.X_WINS;
+            }
+            play(cell);
+        }
+        return board.outcome();
+    }
+}
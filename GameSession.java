@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the board and turn state of a single game.
+ * Each session locks only itself, so many games can run side by side.
+ */
+public class GameSession {
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    // What tryMove returns for a move it turns down; any other result is a Board outcome
+    static final int GAME_OVER = -1;
+    static final int NOT_YOUR_TURN = -2;
+    static final int ILLEGAL_MOVE = -3;
+
+    final int id;
+    // The rules; everything else here is about the players and the server
+    private final GameEngine game;
+    private Board snapshot;
+    // When the player to move got the turn, for the turn timeout
+    private long turnStartedNanos = System.nanoTime();
+    private volatile boolean gameActive = true;
+    TicTacToeServer.Player playerX;
+    TicTacToeServer.Player playerO;
+    final SpectatorGroup spectators = new SpectatorGroup(this);
+
+    /**
+     * A classic 3x3 game
+     */
+    public GameSession(TicTacToeServer.Player playerX, TicTacToeServer.Player playerO) {
+        this(playerX, playerO, new Board());
+    }
+
+    public GameSession(TicTacToeServer.Player playerX, TicTacToeServer.Player playerO, Board board) {
+        this(nextId.getAndIncrement(), playerX, playerO, board, new int[0]);
+    }
+
+    /**
+     * A game picked up where it left off, e.g. one rebuilt from the MoveJournal;
+     * moves are the cells already played on board, in order
+     */
+    public GameSession(int id, TicTacToeServer.Player playerX, TicTacToeServer.Player playerO, Board board, int[] moves) {
+        this.id = id;
+        this.playerX = playerX;
+        this.playerO = playerO;
+        this.game = new GameEngine(board, moves);
+    }
+
+    /**
+     * Makes sure new games get ids above this one
+     */
+    static void reserveIds(int highestUsed) {
+        nextId.accumulateAndGet(highestUsed + 1, Math::max);
+    }
+
+    public int getBoardSize() {
+        return game.getBoard().getSize();
+    }
+
+    public int getWinLength() {
+        return game.getBoard().getWinLength();
+    }
+
+    public boolean isActive() {
+        return gameActive;
+    }
+
+    /**
+     * Marks the game over; returns true only for the call that actually ended it
+     */
+    public synchronized boolean end() {
+        boolean wasActive = gameActive;
+        gameActive = false;
+        MoveJournal journal = TicTacToeServer.journal;
+        if (wasActive && journal != null) {
+            journal.end(id);
+        }
+        TicTacToeServer.games.remove(id, this);
+        return wasActive;
+    }
+
+    public synchronized String getTurn() {
+        return game.isXTurn() ? "X" : "O";
+    }
+
+    public synchronized long getTurnStartedNanos() {
+        return turnStartedNanos;
+    }
+
+    /**
+     * Ends the game if the turn that started at turnStartedNanos is still being played;
+     * returns true if it did
+     */
+    public synchronized boolean endTurnStartedAt(long turnStartedNanos) {
+        return gameActive && this.turnStartedNanos == turnStartedNanos && end();
+    }
+
+    /**
+     * Gets the current board state as a comma-separated string
+     */
+    public synchronized String getBoardState() {
+        return game.getBoard().toProtocolString();
+    }
+
+    /**
+     * A copy of the board as of the last move, shared by everyone who asks until the
+     * next move, so it must not be modified. Only made when someone needs a full board.
+     */
+    public synchronized Board getBoardSnapshot() {
+        if (snapshot == null) {
+            snapshot = game.getBoard().copy();
+        }
+        return snapshot;
+    }
+
+    /**
+     * The cells played so far, in order
+     */
+    public synchronized int[] getMoves() {
+        return game.getMoves();
+    }
+
+    /**
+     * Plays location for player if the game is still running, it is the player's turn and
+     * the cell is free, all under one lock, so a timeout can't end the game halfway
+     * through. A move that decides the game also ends it. Returns the Board outcome after
+     * the move, or GAME_OVER, NOT_YOUR_TURN or ILLEGAL_MOVE if it was turned down.
+     */
+    public synchronized int tryMove(int location, TicTacToeServer.Player player) {
+        if (!gameActive) {
+            return GAME_OVER;
+        }
+        if (player.playerMark.equals("X") != game.isXTurn()) {
+            return NOT_YOUR_TURN;
+        }
+        if (!game.isLegal(location)) {
+            return ILLEGAL_MOVE;
+        }
+        int outcome = game.play(location);
+        snapshot = null;
+        MoveJournal journal = TicTacToeServer.journal;
+        if (journal != null) {
+            journal.move(id, location);
+        }
+        turnStartedNanos = System.nanoTime();
+        if (outcome != Board.IN_PROGRESS) {
+            end();
+        }
+        return outcome;
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: log-linear buckets
+ * with 32 sub-buckets per power of two, so any recorded value is reported within
+ * about 3% of its true size. Recording is one array index computation, one atomic
+ * increment and one striped adder, cheap enough to leave on everywhere. The buckets
+ * are striped too: each thread counts into one of several arrays picked by its
+ * id, so threads recording the same latency don't all contend on one bucket.
+ * The stripes are only added up when someone reads them.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    // A power of two, about one per core; each stripe's array is about 15 KB
+    private static final int STRIPES =
+        Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records one value, normally a duration in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        stripeOf(Thread.currentThread()).incrementAndGet(indexOf(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    private AtomicLongArray stripeOf(Thread thread) {
+        return stripes[(int) thread.getId() & (STRIPES - 1)];
+    }
+
+    /**
+     * Every bucket's count, added up across the stripes
+     */
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    private static long total(long[] counts) {
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * The smallest value that falls in the given bucket
+     */
+    static long lowestValueAt(int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT;
+        return (SUB_COUNT + sub) << shift;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                count += stripe.get(i);
+            }
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100), or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = counts();
+        long count = total(counts);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Report the middle of the bucket, capped by the true maximum
+                long low = lowestValueAt(i);
+                long high = i + 1 < BUCKETS ? lowestValueAt(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(low + (high - low) / 2, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds everything recorded in another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        long[] counts = other.counts();
+        AtomicLongArray stripe = stripeOf(Thread.currentThread());
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                stripe.addAndGet(i, counts[i]);
+            }
+        }
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Summary such as "n=1200 p50=1.2ms p99=3.4ms p99.9=8.1ms max=9.0ms"
+     */
+    public String summary() {
+        return "n=" + getCount()
+            + " p50=" + formatNanos(getPercentile(50))
+            + " p99=" + formatNanos(getPercentile(99))
+            + " p99.9=" + formatNanos(getPercentile(99.9))
+            + " max=" + formatNanos(getMax());
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Matchmaking: connected players wait in a named queue, and each queue's matcher
+ * thread pairs them into new games as soon as two live players are waiting.
+ * Players who leave while queued are skipped without holding up anyone else.
+ * A player left waiting alone for too long, or who asks for it, plays a bot instead.
+ *
+ * Each queue plays one board variant, given as "name:size/winLength" (e.g. "gomoku:15/5");
+ * a plain name means the classic 3x3 board.
+ */
+public class Lobby {
+
+    /**
+     * A matched pair of players is handed here; the first one queued plays X.
+     * waitNanos is how long the longer-waiting of the two spent in the queue.
+     */
+    public interface MatchHandler {
+        void onMatch(TicTacToeServer.Player playerX, TicTacToeServer.Player playerO, MatchQueue queue, long waitNanos);
+    }
+
+    private final Map<String, MatchQueue> queues = new LinkedHashMap<>();
+    private final String defaultQueue;
+
+    public Lobby(String[] queueNames, MatchHandler handler) {
+        this(queueNames, handler, 0, null);
+    }
+
+    /**
+     * botAfterMillis is how long a player may wait alone before botFactory supplies
+     * an opponent (0 = never).
+     */
+    public Lobby(String[] queueSpecs, MatchHandler handler, long botAfterMillis,
+                 Supplier<TicTacToeServer.Player> botFactory) {
+        for (String spec : queueSpecs) {
+            int colon = spec.indexOf(':');
+            String name = colon < 0 ? spec : spec.substring(0, colon);
+            int[] variant = parseVariant(spec);
+            queues.put(name, new MatchQueue(name, variant[0], variant[1], handler, botFactory,
+                botFactory != null ? TimeUnit.MILLISECONDS.toNanos(botAfterMillis) : 0));
+        }
+        defaultQueue = queues.keySet().iterator().next();
+    }
+
+    /**
+     * Board size and win length of a queue spec such as "gomoku:15/5"; throws
+     * IllegalArgumentException if the variant is malformed or unsupported
+     */
+    static int[] parseVariant(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            return new int[] {Board.CLASSIC_SIZE, Board.CLASSIC_SIZE};
+        }
+        String variant = spec.substring(colon + 1);
+        int slash = variant.indexOf('/');
+        int size = Integer.parseInt(slash < 0 ? variant : variant.substring(0, slash));
+        int winLength = slash < 0 ? Math.min(size, 5) : Integer.parseInt(variant.substring(slash + 1));
+        new Board(size, winLength); // Validates
+        return new int[] {size, winLength};
+    }
+
+    public void start() {
+        for (MatchQueue queue : queues.values()) {
+            Thread matcher = new Thread(queue::matchLoop, "matcher-" + queue.name);
+            matcher.setDaemon(true);
+            matcher.start();
+        }
+    }
+
+    public String getDefaultQueue() {
+        return defaultQueue;
+    }
+
+    public Iterable<MatchQueue> getQueues() {
+        return queues.values();
+    }
+
+    /**
+     * Puts a player in the named queue, taking it out of any queue it was waiting in.
+     * Returns false if there is no such queue or the player is already matched.
+     */
+    public boolean join(TicTacToeServer.Player player, String queueName) {
+        MatchQueue queue = queues.get(queueName);
+        if (queue == null) {
+            return false;
+        }
+
+        Ticket previous = player.ticket;
+        if (previous != null && !previous.cancel()) {
+            return false; // Already matched
+        }
+        Ticket ticket = new Ticket(player, queue);
+        player.ticket = ticket;
+        queue.depth.incrementAndGet();
+        queue.waiting.add(ticket);
+        return true;
+    }
+
+    /**
+     * Takes a player out of its queue, e.g. when it disconnects. Returns false if
+     * it has already been matched.
+     */
+    public boolean leave(TicTacToeServer.Player player) {
+        Ticket ticket = player.ticket;
+        return ticket == null || ticket.cancel();
+    }
+
+    /**
+     * Takes a waiting player out of its queue and starts a game against a bot
+     * right away, with the player as X or O. Returns false if the player is not
+     * waiting any more (usually because it was just matched) or there are no bots.
+     */
+    public boolean playBot(TicTacToeServer.Player player, boolean playerIsX) {
+        Ticket ticket = player.ticket;
+        return ticket != null && ticket.queue.matchWithBot(ticket, playerIsX);
+    }
+
+    /**
+     * One player's place in a queue. cancel() and claim() race through one state
+     * field, so a player is never both matched and removed.
+     */
+    static final class Ticket {
+        private static final int WAITING = 0;
+        private static final int MATCHED = 1;
+        private static final int CANCELLED = 2;
+
+        final TicTacToeServer.Player player;
+        final MatchQueue queue;
+        final long enqueuedAt = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Ticket(TicTacToeServer.Player player, MatchQueue queue) {
+            this.player = player;
+            this.queue = queue;
+        }
+
+        boolean isWaiting() {
+            return state.get() == WAITING && player.connected;
+        }
+
+        boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                queue.depth.decrementAndGet();
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        boolean claim() {
+            return state.compareAndSet(WAITING, MATCHED);
+        }
+
+        void release() {
+            state.set(WAITING);
+        }
+    }
+
+    /**
+     * A named queue with its own matcher thread and statistics
+     */
+    public static final class MatchQueue {
+        final String name;
+        private final int boardSize;
+        private final int winLength;
+        private final MatchHandler handler;
+        private final Supplier<TicTacToeServer.Player> botFactory;
+        private final long botAfterNanos;
+        private final LinkedBlockingQueue<Ticket> waiting = new LinkedBlockingQueue<>();
+
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicLong matches = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong botMatches = new AtomicLong();
+
+        MatchQueue(String name, int boardSize, int winLength, MatchHandler handler,
+                   Supplier<TicTacToeServer.Player> botFactory, long botAfterNanos) {
+            this.name = name;
+            this.boardSize = boardSize;
+            this.winLength = winLength;
+            this.handler = handler;
+            this.botFactory = botFactory;
+            this.botAfterNanos = botAfterNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getBoardSize() {
+            return boardSize;
+        }
+
+        public int getWinLength() {
+            return winLength;
+        }
+
+        /**
+         * Players currently waiting in this queue
+         */
+        public int getDepth() {
+            return depth.get();
+        }
+
+        public long getMatches() {
+            return matches.get();
+        }
+
+        /**
+         * Average time a matched player waited, in milliseconds
+         */
+        public double getAverageWaitMillis() {
+            long count = matches.get() * 2;
+            return count == 0 ? 0 : totalWaitNanos.get() / (count * 1e6);
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1e6;
+        }
+
+        /**
+         * Games started against a bot; not included in the wait statistics
+         */
+        public long getBotMatches() {
+            return botMatches.get();
+        }
+
+        private void matchLoop() {
+            Ticket first = null;
+            while (true) {
+                Ticket next;
+                try {
+                    if (first != null && botAfterNanos > 0) {
+                        // Only the head of the line can be waiting alone; give it a bot when its time is up
+                        long remaining = first.enqueuedAt + botAfterNanos - System.nanoTime();
+                        next = waiting.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            matchWithBot(first, true);
+                            first = null;
+                            continue;
+                        }
+                    } else {
+                        next = waiting.take();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (!next.isWaiting()) {
+                    next.cancel(); // Drops players that left without being cancelled yet
+                    continue;
+                }
+                if (first == null || !first.isWaiting()) {
+                    if (first != null) {
+                        first.cancel();
+                    }
+                    first = next;
+                    continue;
+                }
+
+                if (!first.claim()) {
+                    first = next;
+                    continue;
+                }
+                if (!next.claim()) {
+                    first.release();
+                    continue;
+                }
+
+                depth.addAndGet(-2);
+                long waitNanos = recordMatch(first, next);
+                try {
+                    handler.onMatch(first.player, next.player, this, waitNanos);
+                } catch (RuntimeException e) {
+                    ServerLog.info("Match in queue " + name + " failed: " + e.getMessage());
+                }
+                first = null;
+            }
+        }
+
+        private boolean matchWithBot(Ticket ticket, boolean playerIsX) {
+            if (botFactory == null || !ticket.isWaiting() || !ticket.claim()) {
+                return false;
+            }
+            depth.decrementAndGet();
+            botMatches.incrementAndGet();
+            long waitNanos = System.nanoTime() - ticket.enqueuedAt;
+            TicTacToeServer.Player bot = botFactory.get();
+            try {
+                if (playerIsX) {
+                    handler.onMatch(ticket.player, bot, this, waitNanos);
+                } else {
+                    handler.onMatch(bot, ticket.player, this, waitNanos);
+                }
+            } catch (RuntimeException e) {
+                ServerLog.info("Bot match in queue " + name + " failed: " + e.getMessage());
+            }
+            return true;
+        }
+
+        private long recordMatch(Ticket first, Ticket second) {
+            long now = System.nanoTime();
+            long firstWait = now - first.enqueuedAt;
+            long secondWait = now - second.enqueuedAt;
+            matches.incrementAndGet();
+            totalWaitNanos.addAndGet(firstWait + secondWait);
+            long longest = Math.max(firstWait, secondWait);
+            maxWaitNanos.accumulateAndGet(longest, Math::max);
+            return longest;
+        }
+    }
+}
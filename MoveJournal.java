@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only journal of game starts, moves and ends, from which the games that were
+ * running when the server died are rebuilt on the next start.
+ *
+ * Records go straight into a memory-mapped segment file: a writer reserves its bytes
+ * with one atomic add and writes them in place, so logging a move is a few memory
+ * writes with no system call or lock, and once written it survives the JVM dying.
+ * A sync thread forces the mapping to disk every syncMillis, committing all records
+ * written since as one group, so an operating system crash loses at most that much.
+ * Full segments roll over to the next file, prepared ahead by the sync thread, and
+ * are deleted once every game started in them has ended.
+ *
+ * Records are 8-byte aligned and end with a check byte: START (id, size, win length,
+ * X and O resume tokens; 24 bytes), MOVE (id, cell; 8) and END (id; 8). Recovery skips
+ * zeroed gaps left by writers that never finished and records torn by a crash.
+ */
+public class MoveJournal {
+
+    private static final byte START = 1;
+    private static final byte MOVE = 2;
+    private static final byte END = 3;
+
+    private static final int START_LENGTH = 24;
+    private static final int MOVE_LENGTH = 8;
+    private static final int END_LENGTH = 8;
+
+    private static final int CHECK_SEED = 0x5A;
+    private static final String PREFIX = "moves-";
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long syncMillis;
+    private final SecureRandom tokens = new SecureRandom();
+
+    private volatile Segment current;
+
+    // Guarded by this: the next segment, mapped ahead, and full ones not forced yet
+    private Segment spare;
+    private final List<Segment> sealed = new ArrayList<>();
+
+    // Segment index holding the START of each running game; older segments are deleted
+    private final Map<Integer, Integer> startSegments = new ConcurrentHashMap<>();
+    private int oldestSegment;
+
+    private final List<RecoveredGame> recovered;
+    private final long recoveredRecords;
+    private final long recoveryMillis;
+
+    /**
+     * A segment file, mapped whole; bytes are handed out by reserve()
+     */
+    private static final class Segment {
+        final int index;
+        final MappedByteBuffer buffer;
+        final AtomicInteger reserved = new AtomicInteger();
+        int synced;
+
+        Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        /**
+         * The offset of length free bytes, or -1 if the segment is full
+         */
+        int reserve(int length) {
+            int at = reserved.getAndAdd(length);
+            return at + length <= buffer.capacity() ? at : -1;
+        }
+    }
+
+    /**
+     * A game that had not ended when the journal was last written
+     */
+    public static final class RecoveredGame {
+        public final int id;
+        public final int size;
+        public final int winLength;
+        public final long tokenX; // 0 for a bot
+        public final long tokenO;
+        private int[] moves = new int[16];
+        private int moveCount;
+
+        RecoveredGame(int id, int size, int winLength, long tokenX, long tokenO) {
+            this.id = id;
+            this.size = size;
+            this.winLength = winLength;
+            this.tokenX = tokenX;
+            this.tokenO = tokenO;
+        }
+
+        void addMove(int cell) {
+            if (moveCount == moves.length) {
+                int[] grown = new int[moveCount * 2];
+                System.arraycopy(moves, 0, grown, 0, moveCount);
+                moves = grown;
+            }
+            moves[moveCount++] = cell;
+        }
+
+        public int getMoveCount() {
+            return moveCount;
+        }
+
+        /**
+         * The cells played, in order; toBoard() keeps the ones that make a consistent game
+         */
+        public int[] getMoves() {
+            return Arrays.copyOf(moves, moveCount);
+        }
+
+        /**
+         * The board with every recorded move replayed
+         */
+        public Board toBoard() {
+            Board board = new Board(size, winLength);
+            for (int i = 0; i < moveCount; i++) {
+                int cell = moves[i];
+                if (cell < 0 || cell >= board.getCells() || !board.isEmpty(cell)
+                        || board.outcome() != Board.IN_PROGRESS) {
+                    break; // Can't come from a real game; keep what is consistent
+                }
+                board.place(cell, i % 2 == 0);
+            }
+            return board;
+        }
+    }
+
+    /**
+     * Opens the journal in directory, first reading back the games left running in it.
+     * Those are written again to a fresh segment, so the old ones can go right away.
+     */
+    public MoveJournal(Path directory, int segmentMegabytes, long syncMillis) throws IOException {
+        this.directory = directory;
+        // One mapping per segment, so they stay under 2 GB
+        this.segmentBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, segmentMegabytes) * (1L << 20));
+        this.syncMillis = Math.max(1, syncMillis);
+        Files.createDirectories(directory);
+
+        long start = System.nanoTime();
+        List<Integer> indexes = segmentIndexes();
+        Map<Integer, RecoveredGame> running = new LinkedHashMap<>();
+        long records = 0;
+        for (int index : indexes) {
+            records += read(segmentPath(index), running);
+        }
+        List<RecoveredGame> games = new ArrayList<>();
+        for (RecoveredGame game : running.values()) {
+            if (game.toBoard().outcome() == Board.IN_PROGRESS) {
+                games.add(game);
+            }
+        }
+        this.recovered = Collections.unmodifiableList(games);
+        this.recoveredRecords = records;
+
+        int first = indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1) + 1;
+        current = openSegment(first);
+        for (RecoveredGame game : games) {
+            start(game.id, game.size, game.winLength, game.tokenX, game.tokenO);
+            for (int i = 0; i < game.moveCount; i++) {
+                move(game.id, game.moves[i]);
+            }
+        }
+        current.buffer.force();
+        for (int index : indexes) {
+            Files.deleteIfExists(segmentPath(index));
+        }
+        oldestSegment = current.index;
+        this.recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Thread sync = new Thread(this::syncLoop, "journal-sync");
+        sync.setDaemon(true);
+        sync.start();
+    }
+
+    public List<RecoveredGame> getRecoveredGames() {
+        return recovered;
+    }
+
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * A random, non-zero token a player can later prove its seat with
+     */
+    public long newToken() {
+        long token;
+        do {
+            token = tokens.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    public void start(int gameId, int size, int winLength, long tokenX, long tokenO) {
+        // Claimed before reserving, so the segment cannot be deleted under the record
+        Segment segment = current;
+        startSegments.put(gameId, segment.index);
+        int at;
+        while ((at = segment.reserve(START_LENGTH)) < 0) {
+            segment = roll(segment);
+        }
+        startSegments.put(gameId, segment.index);
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(at, START);
+        buffer.putInt(at + 1, gameId);
+        buffer.put(at + 5, (byte) size);
+        buffer.put(at + 6, (byte) winLength);
+        buffer.putLong(at + 7, tokenX);
+        buffer.putLong(at + 15, tokenO);
+        buffer.put(at + 23, (byte) (CHECK_SEED ^ START ^ fold(gameId) ^ size ^ winLength ^ fold(tokenX) ^ fold(tokenO)));
+    }
+
+    /**
+     * Records an accepted move; called in move order for each game
+     */
+    public void move(int gameId, int cell) {
+        Segment segment = current;
+        int at;
+        while ((at = segment.reserve(MOVE_LENGTH)) < 0) {
+            segment = roll(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(at, MOVE);
+        buffer.putInt(at + 1, gameId);
+        buffer.putShort(at + 5, (short) cell);
+        buffer.put(at + 7, (byte) (CHECK_SEED ^ MOVE ^ fold(gameId) ^ fold(cell)));
+    }
+
+    public void end(int gameId) {
+        Segment segment = current;
+        int at;
+        while ((at = segment.reserve(END_LENGTH)) < 0) {
+            segment = roll(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(at, END);
+        buffer.putInt(at + 1, gameId);
+        buffer.put(at + 7, (byte) (CHECK_SEED ^ END ^ fold(gameId)));
+        startSegments.remove(gameId);
+    }
+
+    /**
+     * XOR of a value's bytes, matching the bytes written for it
+     */
+    private static int fold(long value) {
+        value ^= value >>> 32;
+        value ^= value >>> 16;
+        value ^= value >>> 8;
+        return (int) value & 0xFF;
+    }
+
+    /**
+     * Moves writers from a full segment to the next, returning the segment to use
+     */
+    private synchronized Segment roll(Segment full) {
+        if (current != full) {
+            return current; // Another writer rolled first
+        }
+        Segment next = spare;
+        spare = null;
+        if (next == null) {
+            try {
+                next = openSegment(full.index + 1);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open journal segment: " + e.getMessage(), e);
+            }
+        }
+        sealed.add(full);
+        current = next;
+        return next;
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%08d%s", PREFIX, index, SUFFIX));
+    }
+
+    private Segment openSegment(int index) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    private List<Integer> segmentIndexes() throws IOException {
+        List<Integer> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    indexes.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Applies one segment's records to the running games; returns how many were read
+     */
+    private static long read(Path file, Map<Integer, RecoveredGame> running) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        long records = 0;
+        int limit = buffer.capacity();
+        int at = 0;
+        while (at + 8 <= limit) {
+            byte type = buffer.get(at);
+            int length = type == START ? START_LENGTH : type == MOVE ? MOVE_LENGTH : type == END ? END_LENGTH : 0;
+            if (length == 0 || at + length > limit || !checks(buffer, at, length)) {
+                at += 8; // A gap or a torn record
+                continue;
+            }
+
+            int gameId = buffer.getInt(at + 1);
+            if (type == START) {
+                int size = buffer.get(at + 5);
+                int winLength = buffer.get(at + 6);
+                if (size >= 1 && size <= Board.MAX_SIZE && winLength >= 1 && winLength <= size) {
+                    running.put(gameId, new RecoveredGame(gameId, size, winLength,
+                        buffer.getLong(at + 7), buffer.getLong(at + 15)));
+                }
+            } else if (type == MOVE) {
+                RecoveredGame game = running.get(gameId);
+                if (game != null) {
+                    game.addMove(buffer.getShort(at + 5) & 0xFFFF);
+                }
+            } else {
+                running.remove(gameId);
+            }
+            records++;
+            at += length;
+        }
+        return records;
+    }
+
+    private static boolean checks(MappedByteBuffer buffer, int at, int length) {
+        int check = CHECK_SEED;
+        for (int i = 0; i < length - 1; i++) {
+            check ^= buffer.get(at + i) & 0xFF;
+        }
+        return check == (buffer.get(at + length - 1) & 0xFF);
+    }
+
+    /**
+     * Group commit: forces whatever was written since the last pass, keeps a spare
+     * segment ready, and deletes segments no running game needs
+     */
+    private void syncLoop() {
+        while (true) {
+            try {
+                Thread.sleep(syncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            List<Segment> full;
+            synchronized (this) {
+                full = new ArrayList<>(sealed);
+                sealed.clear();
+            }
+            for (Segment segment : full) {
+                segment.buffer.force();
+            }
+            Segment segment = current;
+            int written = Math.min(segment.reserved.get(), segmentBytes);
+            if (written != segment.synced) {
+                segment.buffer.force();
+                segment.synced = written;
+            }
+
+            try {
+                prepareSpare(segment);
+                deleteUnneeded(segment);
+            } catch (IOException e) {
+                ServerLog.info("Journal maintenance failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void prepareSpare(Segment segment) throws IOException {
+        if (spare == null && current == segment) {
+            spare = openSegment(segment.index + 1);
+        }
+    }
+
+    private void deleteUnneeded(Segment segment) throws IOException {
+        if (oldestSegment == segment.index) {
+            return;
+        }
+        int needed = segment.index;
+        for (int index : startSegments.values()) {
+            needed = Math.min(needed, index);
+        }
+        while (oldestSegment < needed) {
+            Files.deleteIfExists(segmentPath(oldestSegment));
+            oldestSegment++;
+        }
+    }
+}
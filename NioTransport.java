@@ -0,0 +1,614 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking transport: a fixed set of selector event loops serve every
+ * connection, so idle clients cost a few hundred bytes instead of a thread.
+ * Speaks the same newline-terminated protocol as ThreadConnection.
+ */
+public class NioTransport {
+
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_FRAME_BYTES = BinaryProtocol.MAX_FRAME_LENGTH + 2;
+
+    private final int port;
+    private final int maxLineLength;
+    private final EventLoop[] loops;
+    private final Consumer<Connection> acceptHandler;
+    private ServerSocketChannel server;
+
+    /**
+     * maxLineLength bounds an incoming line; a longer one closes the connection before any of it is parsed
+     */
+    public NioTransport(int port, int eventLoops, int maxLineLength, Consumer<Connection> acceptHandler) {
+        this.port = port;
+        this.maxLineLength = maxLineLength;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        this.acceptHandler = acceptHandler;
+    }
+
+    /**
+     * Binds the port and starts the acceptor and event loop threads
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            loops[i].thread = thread;
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(() -> acceptLoop(server), "nio-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * The port actually bound, which differs from the requested one when that was 0
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private void acceptLoop(ServerSocketChannel server) {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                NioConnection connection = new NioConnection(channel, loop, maxLineLength);
+                acceptHandler.accept(connection);
+                loop.execute(connection::register);
+            } catch (IOException e) {
+                ServerLog.info("Accept failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                ServerLog.info("Connection setup failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One selector thread. All socket I/O for its connections happens here;
+     * other threads hand work over through the task queue.
+     */
+    static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Tasks waiting for their time, soonest first; only touched by this loop
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        volatile Thread thread;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Runs task on this loop once delayNanos have passed; call from the loop itself
+         */
+        void schedule(long delayNanos, Runnable task) {
+            delayed.add(new Delayed(System.nanoTime() + delayNanos, task));
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    // Tasks queued from this thread skip the wakeup, so never block while any are pending
+                    runTasks();
+                    long waitMillis = runDelayed();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.select();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    ServerLog.info("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Runs the delayed tasks that are due; returns the milliseconds until the
+         * next one, or 0 if there are none
+         */
+        private long runDelayed() {
+            long now = System.nanoTime();
+            while (!delayed.isEmpty()) {
+                long wait = delayed.peek().deadline - now;
+                if (wait > 0) {
+                    return (wait + 999_999) / 1_000_000;
+                }
+                try {
+                    delayed.poll().task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info("Event loop task failed: " + e.getMessage());
+                }
+            }
+            return 0;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info("Event loop task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Delayed {
+        final long deadline;
+        final Runnable task;
+
+        Delayed(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A non-blocking connection owned by one event loop
+     */
+    static final class NioConnection extends Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final int maxLineLength;
+        private final String remoteAddress;
+        private final String remoteHost;
+        private SelectionKey key;
+
+        // Guarded by this; written by the event loop, filled by any thread
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>(4);
+        private long pendingBytes;
+        // Reused to hand everything pending to one gathering write
+        private ByteBuffer[] batch = new ByteBuffer[4];
+        private boolean flushScheduled;
+        private boolean closing;
+        private boolean closed;
+
+        // Bytes of the message being assembled; only allocated while one is in progress
+        private byte[] partial;
+        private int partialLength;
+
+        // While the client is over its message budget, or BLOCK has let its output run
+        // past the limit, reading stops; input already read waits in backlog
+        private boolean throttled;
+        private boolean blocked;
+        private ByteBuffer backlog;
+
+        NioConnection(SocketChannel channel, EventLoop loop, int maxLineLength) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.maxLineLength = maxLineLength;
+            InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+            this.remoteAddress = String.valueOf(address);
+            this.remoteHost = address.getAddress().getHostAddress();
+        }
+
+        void register() {
+            try {
+                int ops = SelectionKey.OP_READ;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (!pending.isEmpty()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                }
+                key = channel.register(loop.selector, ops, this);
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        @Override
+        public void send(String line) {
+            enqueue(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            boolean schedule;
+            synchronized (this) {
+                if (!admit(buffer.remaining(), false)) {
+                    return;
+                }
+                pending.add(buffer);
+                pendingBytes += buffer.remaining();
+                queued(buffer.remaining());
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.execute(this::flush);
+            }
+        }
+
+        /**
+         * Applies the overflow policy to a message of length bytes, shared with other
+         * connections or not; true if it may be queued. Called holding this. Never
+         * waits: BLOCK queues the message, and handle() stops reading from the client
+         * until flush() has written it.
+         */
+        private boolean admit(int length, boolean shared) {
+            if (closing || closed) {
+                return false;
+            }
+            if (fits(pendingBytes, length)) {
+                return true;
+            }
+            Overflow policy = overflowFor(shared);
+            if (policy == Overflow.BLOCK) {
+                return true;
+            }
+            logOverflow(pendingBytes, policy);
+            if (policy == Overflow.DISCONNECT) {
+                closing = true;
+                loop.execute(this::closeNow);
+            }
+            return false;
+        }
+
+        @Override
+        public void sendFrame(byte[] frame) {
+            enqueue(ByteBuffer.wrap(frame));
+        }
+
+        /**
+         * Shared updates are written straight from the calling thread when nothing is
+         * queued ahead of them, so fanning one out to thousands of spectators doesn't
+         * put thousands of flushes on the event loop in front of the players' moves.
+         * Whatever the socket doesn't take goes through the queue as usual.
+         */
+        @Override
+        public void sendEncoded(byte[] encoded) {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            boolean schedule;
+            synchronized (this) {
+                if (!admit(encoded.length, true)) {
+                    return;
+                }
+                queued(encoded.length);
+                if (pending.isEmpty() && !flushScheduled) {
+                    try {
+                        written(channel.write(buffer));
+                    } catch (IOException e) {
+                        // The event loop sees the broken socket on its next read
+                        return;
+                    }
+                    if (!buffer.hasRemaining()) {
+                        return;
+                    }
+                }
+                pending.add(buffer);
+                pendingBytes += buffer.remaining();
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if (schedule) {
+                loop.execute(this::flush);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closing || closed) {
+                    return;
+                }
+                closing = true;
+                flushScheduled = true;
+            }
+            loop.execute(this::flush);
+        }
+
+        @Override
+        public void abort() {
+            loop.execute(this::closeNow);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return remoteHost;
+        }
+
+        /**
+         * Writes as much pending output as the socket takes; runs on the event loop
+         */
+        void flush() {
+            boolean closeAfter;
+            boolean unblock;
+            synchronized (this) {
+                flushScheduled = false;
+                if (closed) {
+                    return;
+                }
+                try {
+                    while (!pending.isEmpty()) {
+                        // Everything pending goes to the socket in one gathering write
+                        int count = pending.size();
+                        batch = pending.toArray(batch);
+                        long written = channel.write(batch, 0, count);
+                        pendingBytes -= written;
+                        written(written);
+                        while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                            pending.poll();
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                        if (!pending.isEmpty()) {
+                            if (key != null) {
+                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            }
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    pending.clear();
+                    pendingBytes = 0;
+                    discarded();
+                    closing = true;
+                }
+                unblock = blocked && !outputBlocked(pendingBytes);
+                if (!pending.isEmpty()) {
+                    // The rest goes when the socket has room again
+                    closeAfter = false;
+                } else {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    }
+                    closeAfter = closing;
+                }
+            }
+            if (closeAfter) {
+                closeNow();
+            } else if (unblock) {
+                blocked = false;
+                continueReading();
+            }
+        }
+
+        /**
+         * Reads what is available and hands every complete line or frame to the handler
+         */
+        void read(ByteBuffer buffer) {
+            int count;
+            buffer.clear();
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if (count < 0) {
+                closeNow();
+                return;
+            }
+            buffer.flip();
+
+            handle(buffer);
+            if ((throttled || blocked) && buffer.hasRemaining()) {
+                // The read buffer is shared by the loop's connections, so keep a copy
+                backlog = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+            }
+
+            // Idle connections keep no read buffer
+            if (partialLength == 0) {
+                partial = null;
+            }
+        }
+
+        /**
+         * Dispatches the complete messages in buffer, stopping early if the client has
+         * to be throttled or disconnected
+         */
+        private void handle(ByteBuffer buffer) {
+            // The handler may switch to binary input while handling a line, so check per message
+            while (buffer.hasRemaining() && !closed && !throttled && !blocked) {
+                boolean complete = binaryInput ? readFrame(buffer) : readLine(buffer);
+                if (!complete) {
+                    break;
+                }
+                synchronized (this) {
+                    blocked = outputBlocked(pendingBytes);
+                }
+                if (blocked) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                long pause = inboundPauseNanos();
+                if (pause < 0) {
+                    closeNow();
+                } else if (pause > 0) {
+                    throttled = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.schedule(pause, this::resumeReading);
+                }
+            }
+        }
+
+        /**
+         * Ends a throttle
+         */
+        private void resumeReading() {
+            throttled = false;
+            continueReading();
+        }
+
+        /**
+         * Handles the backlog, then reads from the socket again, unless the client is
+         * still throttled or blocked
+         */
+        private void continueReading() {
+            if (closed || throttled || blocked) {
+                return;
+            }
+            if (backlog != null) {
+                handle(backlog);
+                if (!backlog.hasRemaining()) {
+                    backlog = null;
+                }
+                if (partialLength == 0) {
+                    partial = null;
+                }
+            }
+            if (!throttled && !blocked && !closed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Dispatches one line, or keeps its unterminated start and returns false
+         */
+        private boolean readLine(ByteBuffer buffer) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    int length = i - start;
+                    if (!appendPartial(buffer, length, maxLineLength)) {
+                        return false;
+                    }
+                    buffer.get(); // Skip the newline
+
+                    int total = partialLength;
+                    if (total > 0 && partial[total - 1] == '\r') {
+                        total--;
+                    }
+                    partialLength = 0;
+                    dispatchLine(partial, 0, total);
+                    return true;
+                }
+            }
+            appendPartial(buffer, limit - start, maxLineLength);
+            return false;
+        }
+
+        /**
+         * Dispatches one frame, or keeps the bytes received so far and returns false
+         */
+        private boolean readFrame(ByteBuffer buffer) {
+            if (partialLength < 2) {
+                appendPartial(buffer, Math.min(2 - partialLength, buffer.remaining()), MAX_FRAME_BYTES);
+                if (partialLength < 2) {
+                    return false;
+                }
+            }
+
+            int length = ((partial[0] & 0xFF) << 8) | (partial[1] & 0xFF);
+            if (length == 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                ServerLog.info("Bad frame length from " + remoteAddress + ", closing connection.");
+                closeNow();
+                return false;
+            }
+
+            int missing = 2 + length - partialLength;
+            appendPartial(buffer, Math.min(missing, buffer.remaining()), MAX_FRAME_BYTES);
+            if (partialLength < 2 + length) {
+                return false;
+            }
+
+            partialLength = 0;
+            dispatchFrame(partial, 2, length);
+            return true;
+        }
+
+        /**
+         * Moves count bytes from the buffer into the partial message,
+         * closing the connection if that would exceed max bytes
+         */
+        private boolean appendPartial(ByteBuffer buffer, int count, int max) {
+            if (partialLength + count > max) {
+                ServerLog.info("Message too long from " + remoteAddress + ", closing connection.");
+                closeNow();
+                return false;
+            }
+            if (partial == null || partialLength + count > partial.length) {
+                byte[] grown = new byte[Math.max(128, Integer.highestOneBit(partialLength + count) << 1)];
+                if (partialLength > 0) {
+                    System.arraycopy(partial, 0, grown, 0, partialLength);
+                }
+                partial = grown;
+            }
+            buffer.get(partial, partialLength, count);
+            partialLength += count;
+            return true;
+        }
+
+        private void closeNow() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending.clear();
+                pendingBytes = 0;
+                discarded();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.info("Error closing socket: " + e.getMessage());
+            }
+            dispatchClose();
+        }
+    }
+}
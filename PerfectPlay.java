@@ -0,0 +1,179 @@
+import java.util.Arrays;
+
+/**
+ * Perfect-play move table for the 3x3 board, solved once when the class loads.
+ *
+ * Positions are stored under a canonical key: of the 8 rotations and reflections
+ * of a board, the one with the smallest x | o << 9 value. That folds the 5,478
+ * reachable positions into 765. A lookup tries the 8 symmetries with table reads
+ * only, then reads the move and maps it back to the caller's orientation.
+ */
+public final class PerfectPlay {
+
+    private static final int CELLS = 9;
+    private static final int FULL = (1 << CELLS) - 1;
+    private static final int KEYS = 1 << (2 * CELLS);
+
+    // Rows, columns and diagonals as masks
+    private static final int[] LINES = {
+        0b000000111, 0b000111000, 0b111000000, // Rows
+        0b001001001, 0b010010010, 0b100100100, // Columns
+        0b100010001, 0b001010100               // Diagonals
+    };
+
+    // WINS[mask] is true when the mask holds three in a row
+    private static final boolean[] WINS = new boolean[1 << CELLS];
+    private static final byte UNSOLVED = Byte.MIN_VALUE;
+
+    // PERMUTATION[s][cell] is where cell lands under symmetry s; INVERSE undoes it
+    private static final int[][] PERMUTATION = new int[8][CELLS];
+    private static final int[][] INVERSE = new int[8][CELLS];
+
+    // TRANSFORM[s][mask] is mask with every cell moved by symmetry s
+    private static final int[][] TRANSFORM = new int[8][1 << CELLS];
+
+    // Indexed by canonical key: the best cell in canonical orientation, and its score
+    private static final byte[] BEST_MOVE = new byte[KEYS];
+    private static final byte[] SCORE = new byte[KEYS];
+
+    private static final int POSITIONS;
+    private static final long BUILD_NANOS;
+
+    static {
+        long start = System.nanoTime();
+        for (int mask = 0; mask < WINS.length; mask++) {
+            for (int line : LINES) {
+                if ((mask & line) == line) {
+                    WINS[mask] = true;
+                    break;
+                }
+            }
+        }
+        buildSymmetries();
+        Arrays.fill(SCORE, UNSOLVED);
+        solve(0, 0);
+
+        int positions = 0;
+        for (byte score : SCORE) {
+            if (score != UNSOLVED) {
+                positions++;
+            }
+        }
+        POSITIONS = positions;
+        BUILD_NANOS = System.nanoTime() - start;
+    }
+
+    private PerfectPlay() {
+    }
+
+    private static void buildSymmetries() {
+        for (int s = 0; s < 8; s++) {
+            for (int cell = 0; cell < CELLS; cell++) {
+                int row = cell / 3;
+                int col = cell % 3;
+                if (s >= 4) {
+                    col = 2 - col; // Mirror first, then rotate
+                }
+                for (int turn = 0; turn < s % 4; turn++) {
+                    int rotated = col;
+                    col = 2 - row;
+                    row = rotated;
+                }
+                PERMUTATION[s][cell] = row * 3 + col;
+                INVERSE[s][row * 3 + col] = cell;
+            }
+            for (int mask = 0; mask < 1 << CELLS; mask++) {
+                int moved = 0;
+                for (int cell = 0; cell < CELLS; cell++) {
+                    if ((mask & 1 << cell) != 0) {
+                        moved |= 1 << PERMUTATION[s][cell];
+                    }
+                }
+                TRANSFORM[s][mask] = moved;
+            }
+        }
+    }
+
+    /**
+     * The symmetry that takes this position to its canonical form
+     */
+    private static int canonicalSymmetry(int x, int o) {
+        int best = 0;
+        int bestKey = Integer.MAX_VALUE;
+        for (int s = 0; s < 8; s++) {
+            int key = TRANSFORM[s][x] | TRANSFORM[s][o] << CELLS;
+            if (key < bestKey) {
+                bestKey = key;
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Negamax over canonical positions. The score is from the side to move's point of
+     * view: positive wins, negative losses, and faster wins score higher.
+     */
+    private static int solve(int x, int o) {
+        int s = canonicalSymmetry(x, o);
+        x = TRANSFORM[s][x];
+        o = TRANSFORM[s][o];
+        int key = x | o << CELLS;
+        if (SCORE[key] != UNSOLVED) {
+            return SCORE[key];
+        }
+
+        int occupied = x | o;
+        int plies = Integer.bitCount(occupied);
+        int score;
+        int bestMove = -1;
+        if (WINS[x] || WINS[o]) {
+            score = plies - 10; // The previous player just won
+        } else if (occupied == FULL) {
+            score = 0;
+        } else {
+            boolean xToMove = plies % 2 == 0;
+            score = Integer.MIN_VALUE;
+            for (int cell = 0; cell < CELLS; cell++) {
+                if ((occupied & 1 << cell) != 0) {
+                    continue;
+                }
+                int childScore = xToMove ? -solve(x | 1 << cell, o) : -solve(x, o | 1 << cell);
+                if (childScore > score) {
+                    score = childScore;
+                    bestMove = cell;
+                }
+            }
+        }
+
+        SCORE[key] = (byte) score;
+        BEST_MOVE[key] = (byte) bestMove;
+        return score;
+    }
+
+    /**
+     * The best cell for the side to move, or -1 if the game is already over
+     */
+    public static int bestMove(int xMask, int oMask) {
+        int s = canonicalSymmetry(xMask, oMask);
+        int key = TRANSFORM[s][xMask] | TRANSFORM[s][oMask] << CELLS;
+        if (SCORE[key] == UNSOLVED) {
+            // Not reachable in a legal game; any free cell will do
+            int free = ~(xMask | oMask) & FULL;
+            return free == 0 ? -1 : Integer.numberOfTrailingZeros(free);
+        }
+        int move = BEST_MOVE[key];
+        return move < 0 ? -1 : INVERSE[s][move];
+    }
+
+    /**
+     * Distinct positions in the table, after folding symmetries
+     */
+    public static int positions() {
+        return POSITIONS;
+    }
+
+    public static long buildMillis() {
+        return BUILD_NANOS / 1_000_000;
+    }
+}
@@ -0,0 +1,694 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes protocol messages, text lines and binary frames alike, into one typed event,
+ * for the server and both clients. A codec is made once per connection and reused for
+ * every message: a line is copied into its char buffer and parsed in place, with no
+ * regex, split or substring, so decoding a line allocates nothing. Text payloads
+ * (MESSAGE, INVALID, a QUEUE name) only become Strings when text() is called.
+ * The accessors describe the last message decoded. Not thread-safe.
+ */
+public final class ProtocolCodec {
+
+    public enum Type {
+        UNKNOWN,
+        // Server to client
+        WELCOME, MESSAGE, BOARD, TURN, WAIT, VICTORY, DEFEAT, DRAW, INVALID, DELTA, SPECTATING, PING,
+        // Client to server
+        MOVE, SYNC, SPECTATE, PONG, QUEUE, RESUME, BOT, REMATCH, NEWGAME,
+        // Either way
+        PROTOCOL_BINARY, PROTOCOL_DELTA, PROTOCOL_REMATCH
+    }
+
+    private char[] chars = new char[256];
+    private int length;
+    // The frame last decoded, at frame[frameOffset, frameOffset + frameLength), or null for a line
+    private byte[] frame;
+    private int frameOffset;
+    private int frameLength;
+
+    private Type type = Type.UNKNOWN;
+    private int cell;
+    private char mark;
+    private int status;
+    private int gameId;
+    private long resumeCode;
+    private int size;
+    private int winLength;
+    private boolean offersBinary;
+    private boolean offersDelta;
+    private boolean offersRematch;
+    private int textStart;
+    private int textEnd;
+    // A BOARD's marks, 'X', 'O' or 0; only the first cellCount are this board's
+    private char[] marks = new char[Board.CLASSIC_SIZE * Board.CLASSIC_SIZE];
+    private int cellCount;
+
+    /**
+     * Decodes a line from UTF-8 bytes, without its newline; a trailing '\r' is ignored
+     */
+    public Type decode(byte[] bytes, int offset, int count) {
+        if (count > 0 && bytes[offset + count - 1] == '\r') {
+            count--;
+        }
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            byte b = bytes[offset + i];
+            if (b < 0) {
+                // Not ASCII, which only text payloads may be; worth a String to get right
+                String line = new String(bytes, offset, count, StandardCharsets.UTF_8);
+                ensureCapacity(line.length());
+                line.getChars(0, line.length(), chars, 0);
+                length = line.length();
+                return parseLine();
+            }
+            chars[i] = (char) b;
+        }
+        length = count;
+        return parseLine();
+    }
+
+    /**
+     * Decodes a line without its newline
+     */
+    public Type decode(String line) {
+        ensureCapacity(line.length());
+        line.getChars(0, line.length(), chars, 0);
+        length = line.length();
+        return parseLine();
+    }
+
+    /**
+     * Decodes a binary frame without its length prefix, opcode first. A frame too
+     * short for its opcode is UNKNOWN.
+     */
+    public Type decodeFrame(byte[] body) {
+        return decodeFrame(body, 0, body.length);
+    }
+
+    /**
+     * Decodes the frame at buf[off, off + len) in place, so a transport can hand over
+     * its read buffer rather than copy each frame out. The bytes must stay put while
+     * the message is in use.
+     */
+    public Type decodeFrame(byte[] buf, int off, int len) {
+        reset();
+        frame = buf;
+        frameOffset = off;
+        frameLength = len;
+        int n = len;
+        if (n == 0) {
+            return type;
+        }
+        int opcode = buf[off] & 0xFF;
+        switch (opcode) {
+            case BinaryProtocol.WELCOME:
+                if (n >= 2) {
+                    mark = frameMark();
+                    if (n >= 4) {
+                        size = u8(1);
+                        winLength = u8(2);
+                    }
+                    type = Type.WELCOME;
+                }
+                break;
+            case BinaryProtocol.MESSAGE:
+                setFrameText();
+                type = Type.MESSAGE;
+                break;
+            case BinaryProtocol.INVALID:
+                setFrameText();
+                type = Type.INVALID;
+                break;
+            case BinaryProtocol.BOARD:
+                int boardSize = n == 5 ? Board.CLASSIC_SIZE : n >= 2 ? u8(0) : 0;
+                if (n == 5 || (boardSize > 0 && n == 2 + 2 * ((boardSize * boardSize + 7) >>> 3))) {
+                    size = boardSize;
+                    ensureCells(size * size);
+                    decodeBoardFrame();
+                    type = Type.BOARD;
+                }
+                break;
+            case BinaryProtocol.TURN:
+                type = Type.TURN;
+                break;
+            case BinaryProtocol.WAIT:
+                type = Type.WAIT;
+                break;
+            case BinaryProtocol.DRAW:
+                type = Type.DRAW;
+                break;
+            case BinaryProtocol.PING:
+                type = Type.PING;
+                break;
+            case BinaryProtocol.SYNC:
+                type = Type.SYNC;
+                break;
+            case BinaryProtocol.PONG:
+                type = Type.PONG;
+                break;
+            case BinaryProtocol.VICTORY:
+            case BinaryProtocol.DEFEAT:
+                if (n >= 2) {
+                    mark = frameMark();
+                    type = opcode == BinaryProtocol.VICTORY ? Type.VICTORY : Type.DEFEAT;
+                }
+                break;
+            case BinaryProtocol.DELTA:
+                int deltaStatus = n >= 5 ? u8(3) : -1;
+                if (deltaStatus == BinaryProtocol.TURN || deltaStatus == BinaryProtocol.WAIT
+                    || deltaStatus == BinaryProtocol.DELTA_END) {
+                    cell = u16(0);
+                    mark = u8(2) == 'X' ? 'X' : 'O';
+                    status = deltaStatus;
+                    type = Type.DELTA;
+                }
+                break;
+            case BinaryProtocol.SPECTATING:
+                if (n >= 7) {
+                    gameId = (u16(0) << 16) | u16(2);
+                    size = u8(4);
+                    winLength = u8(5);
+                    type = Type.SPECTATING;
+                }
+                break;
+            case BinaryProtocol.MOVE:
+                cell = n == 2 ? u8(0) : n == 3 ? u16(0) : -1;
+                if (cell >= 0) {
+                    type = Type.MOVE;
+                }
+                break;
+            case BinaryProtocol.REMATCH:
+                type = Type.REMATCH;
+                break;
+            case BinaryProtocol.NEWGAME:
+                setFrameText();
+                type = Type.NEWGAME;
+                break;
+            case BinaryProtocol.SPECTATE:
+                if (n == 5) {
+                    gameId = (u16(0) << 16) | u16(2);
+                    type = Type.SPECTATE;
+                }
+                break;
+            default:
+                break;
+        }
+        return type;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    /**
+     * True if the message was a binary frame rather than a line
+     */
+    public boolean isFrame() {
+        return frame != null;
+    }
+
+    /**
+     * The cell of a MOVE or DELTA; -1 if a MOVE line's number is missing or malformed
+     */
+    public int cell() {
+        return cell;
+    }
+
+    /**
+     * 'X' or 'O': the player of a WELCOME, the winner of a VICTORY or DEFEAT, the mark
+     * placed by a DELTA, or the mark a player asks for with "BOT X" or "BOT O"; 0 if absent
+     */
+    public char mark() {
+        return mark;
+    }
+
+    /**
+     * What follows a DELTA: BinaryProtocol.TURN, WAIT or DELTA_END
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * The game of a SPECTATING, SPECTATE or RESUME; -1 if a line's number is malformed
+     */
+    public int gameId() {
+        return gameId;
+    }
+
+    /**
+     * The seat code of a RESUME
+     */
+    public long resumeCode() {
+        return resumeCode;
+    }
+
+    /**
+     * Board size of a WELCOME, SPECTATING or BOARD; 3 unless given
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Win length of a WELCOME or SPECTATING; 3 unless given
+     */
+    public int winLength() {
+        return winLength;
+    }
+
+    /**
+     * Whether a WELCOME line offers BinaryProtocol framing, per-move deltas and rematches
+     */
+    public boolean offersBinary() {
+        return offersBinary;
+    }
+
+    public boolean offersDelta() {
+        return offersDelta;
+    }
+
+    public boolean offersRematch() {
+        return offersRematch;
+    }
+
+    /**
+     * The cells of a BOARD
+     */
+    public int cellCount() {
+        return cellCount;
+    }
+
+    /**
+     * 'X', 'O' or 0 for one cell of a BOARD
+     */
+    public char cellMark(int cell) {
+        return marks[cell];
+    }
+
+    /**
+     * A BOARD's marks in an array of their own, for handing to another thread
+     */
+    public char[] copyMarks() {
+        char[] copy = new char[cellCount];
+        System.arraycopy(marks, 0, copy, 0, cellCount);
+        return copy;
+    }
+
+    /**
+     * The text of a MESSAGE or INVALID, or what follows the command in a QUEUE,
+     * NEWGAME, SPECTATE or RESUME line (trimmed); empty for anything else
+     */
+    public String text() {
+        if (frame != null) {
+            return new String(frame, textStart, textEnd - textStart, StandardCharsets.UTF_8);
+        }
+        return new String(chars, textStart, textEnd - textStart);
+    }
+
+    /**
+     * The message as received, for logging
+     */
+    @Override
+    public String toString() {
+        return frame != null ? "frame " + (frameLength > 0 ? frame[frameOffset] & 0xFF : -1)
+            : new String(chars, 0, length);
+    }
+
+    private void reset() {
+        type = Type.UNKNOWN;
+        frame = null;
+        cell = -1;
+        mark = 0;
+        status = BinaryProtocol.DELTA_END;
+        gameId = -1;
+        resumeCode = 0;
+        size = Board.CLASSIC_SIZE;
+        winLength = Board.CLASSIC_SIZE;
+        offersBinary = false;
+        offersDelta = false;
+        offersRematch = false;
+        textStart = 0;
+        textEnd = 0;
+        cellCount = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > chars.length) {
+            chars = new char[Math.max(count, chars.length * 2)];
+        }
+    }
+
+    private void ensureCells(int count) {
+        if (count > marks.length) {
+            marks = new char[Math.max(count, marks.length * 2)];
+        }
+        cellCount = count;
+    }
+
+    // Frame parsing: at counts payload bytes, which start after the opcode
+
+    private int u8(int at) {
+        return frame[frameOffset + 1 + at] & 0xFF;
+    }
+
+    private int u16(int at) {
+        return (u8(at) << 8) | u8(at + 1);
+    }
+
+    private char frameMark() {
+        return u8(0) == 'X' ? 'X' : 'O';
+    }
+
+    private void setFrameText() {
+        textStart = frameOffset + 1;
+        textEnd = frameOffset + frameLength;
+    }
+
+    /**
+     * Fills marks from a BOARD frame: two 9-bit masks for the classic board,
+     * otherwise an X bitmap then an O bitmap, one bit per cell
+     */
+    private void decodeBoardFrame() {
+        if (frameLength == 5) {
+            int x = u16(0);
+            int o = u16(2);
+            for (int i = 0; i < cellCount; i++) {
+                marks[i] = (x & 1 << i) != 0 ? 'X' : (o & 1 << i) != 0 ? 'O' : 0;
+            }
+            return;
+        }
+        int xBits = frameOffset + 2;
+        int oBits = xBits + ((cellCount + 7) >>> 3);
+        for (int i = 0; i < cellCount; i++) {
+            int bit = 1 << (i & 7);
+            marks[i] = (frame[xBits + (i >>> 3)] & bit) != 0 ? 'X' : (frame[oBits + (i >>> 3)] & bit) != 0 ? 'O' : 0;
+        }
+    }
+
+    // Line parsing: chars[0, length) holds the line
+
+    private Type parseLine() {
+        reset();
+        if (length == 0) {
+            return type;
+        }
+        char first = chars[0];
+        if (isDigit(first) || ((first == 'X' || first == 'O') && length > 1 && chars[1] == ',')) {
+            // A board: the only message that starts with a cell
+            parseBoard();
+            return type;
+        }
+
+        int end = tokenEnd(0);
+        int next = end + 1;
+        if (isWord(end, "MOVE")) {
+            cell = number(next, tokenEnd(next));
+            type = Type.MOVE;
+        } else if (isWord(end, "DELTA")) {
+            parseDelta(next);
+        } else if (isWord(end, "TURN")) {
+            type = Type.TURN;
+        } else if (isWord(end, "WAIT")) {
+            type = Type.WAIT;
+        } else if (isWord(end, "PING")) {
+            type = Type.PING;
+        } else if (isWord(end, "PONG")) {
+            type = Type.PONG;
+        } else if (isWord(end, "SYNC")) {
+            type = Type.SYNC;
+        } else if (isWord(end, "MESSAGE")) {
+            setText(next, false);
+            type = Type.MESSAGE;
+        } else if (isWord(end, "INVALID")) {
+            setText(next, false);
+            type = Type.INVALID;
+        } else if (isWord(end, "WELCOME")) {
+            parseWelcome(next);
+        } else if (isWord(end, "VICTORY") || isWord(end, "DEFEAT")) {
+            mark = markToken(next, tokenEnd(next));
+            if (mark != 0) {
+                type = chars[0] == 'V' ? Type.VICTORY : Type.DEFEAT;
+            }
+        } else if (isWord(end, "DRAW")) {
+            type = Type.DRAW;
+        } else if (isWord(end, "SPECTATING")) {
+            gameId = number(next, tokenEnd(next));
+            parseSettings(tokenEnd(next) + 1);
+            if (gameId >= 0) {
+                type = Type.SPECTATING;
+            }
+        } else if (isWord(end, "QUEUE")) {
+            setText(next, true);
+            type = Type.QUEUE;
+        } else if (isWord(end, "SPECTATE")) {
+            setText(next, true);
+            gameId = number(textStart, textEnd);
+            type = Type.SPECTATE;
+        } else if (isWord(end, "RESUME")) {
+            parseResume(next);
+        } else if (isWord(end, "REMATCH")) {
+            type = Type.REMATCH;
+        } else if (isWord(end, "NEWGAME")) {
+            setText(next, true);
+            type = Type.NEWGAME;
+        } else if (isWord(end, "BOT")) {
+            mark = markToken(next, length);
+            type = Type.BOT;
+        } else if (isWord(end, "PROTOCOL")) {
+            if (isWordAt(next, length, "BINARY")) {
+                type = Type.PROTOCOL_BINARY;
+            } else if (isWordAt(next, length, "DELTA")) {
+                type = Type.PROTOCOL_DELTA;
+            } else if (isWordAt(next, length, "REMATCH")) {
+                type = Type.PROTOCOL_REMATCH;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * "DELTA cell mark TURN|WAIT|END"
+     */
+    private void parseDelta(int from) {
+        int cellEnd = tokenEnd(from);
+        int markEnd = tokenEnd(cellEnd + 1);
+        int deltaCell = number(from, cellEnd);
+        char deltaMark = markToken(cellEnd + 1, markEnd);
+        int statusStart = markEnd + 1;
+        int deltaStatus;
+        if (isWordAt(statusStart, length, "TURN")) {
+            deltaStatus = BinaryProtocol.TURN;
+        } else if (isWordAt(statusStart, length, "WAIT")) {
+            deltaStatus = BinaryProtocol.WAIT;
+        } else if (isWordAt(statusStart, length, "END")) {
+            deltaStatus = BinaryProtocol.DELTA_END;
+        } else {
+            return;
+        }
+        if (deltaCell >= 0 && deltaMark != 0) {
+            cell = deltaCell;
+            mark = deltaMark;
+            status = deltaStatus;
+            type = Type.DELTA;
+        }
+    }
+
+    /**
+     * "WELCOME mark [BINARY] [DELTA] [REMATCH] [SIZE=n WIN=k]"
+     */
+    private void parseWelcome(int from) {
+        mark = markToken(from, tokenEnd(from));
+        if (mark == 0) {
+            return;
+        }
+        parseSettings(tokenEnd(from) + 1);
+        type = Type.WELCOME;
+    }
+
+    /**
+     * The flags and SIZE=n, WIN=k settings from a position to the end of the line;
+     * a malformed value leaves the classic one
+     */
+    private void parseSettings(int from) {
+        int start = from;
+        while (start < length) {
+            int end = tokenEnd(start);
+            if (isWordAt(start, end, BinaryProtocol.WELCOME_FLAG)) {
+                offersBinary = true;
+            } else if (isWordAt(start, end, BinaryProtocol.DELTA_FLAG)) {
+                offersDelta = true;
+            } else if (isWordAt(start, end, BinaryProtocol.REMATCH_FLAG)) {
+                offersRematch = true;
+            } else if (startsWith(start, end, "SIZE=")) {
+                int value = number(start + 5, end);
+                size = value > 0 ? value : Board.CLASSIC_SIZE;
+            } else if (startsWith(start, end, "WIN=")) {
+                int value = number(start + 4, end);
+                winLength = value > 0 ? value : Board.CLASSIC_SIZE;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * "RESUME game code", the code in hex
+     */
+    private void parseResume(int from) {
+        setText(from, true);
+        type = Type.RESUME;
+        int idEnd = tokenEnd(textStart);
+        int codeEnd = tokenEnd(idEnd + 1);
+        if (codeEnd != textEnd) {
+            return;
+        }
+        int id = number(textStart, idEnd);
+        int digits = codeEnd - idEnd - 1;
+        if (id < 0 || digits < 1 || digits > 16) {
+            return;
+        }
+        long code = 0;
+        for (int i = idEnd + 1; i < codeEnd; i++) {
+            char c = chars[i];
+            int digit = isDigit(c) ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0) {
+                return;
+            }
+            code = code << 4 | digit;
+        }
+        gameId = id;
+        resumeCode = code;
+    }
+
+    /**
+     * A board line: every cell "X", "O" or its number, separated by commas. Anything
+     * else, or a cell count that isn't square, leaves the message UNKNOWN.
+     */
+    private void parseBoard() {
+        int count = 0;
+        int start = 0;
+        while (start <= length) {
+            int end = start;
+            while (end < length && chars[end] != ',') {
+                end++;
+            }
+            char value = boardCell(start, end);
+            if (value == 1) {
+                return;
+            }
+            if (count == marks.length) {
+                char[] grown = new char[count * 2];
+                System.arraycopy(marks, 0, grown, 0, count);
+                marks = grown;
+            }
+            marks[count++] = value;
+            start = end + 1;
+        }
+        int side = (int) Math.sqrt(count);
+        if (side * side == count) {
+            size = side;
+            cellCount = count;
+            type = Type.BOARD;
+        }
+    }
+
+    /**
+     * 'X', 'O' or 0 for one cell of a board line, or 1 if it is malformed;
+     * spaces around it are ignored
+     */
+    private char boardCell(int start, int end) {
+        while (start < end && chars[start] == ' ') {
+            start++;
+        }
+        while (end > start && chars[end - 1] == ' ') {
+            end--;
+        }
+        if (end - start == 1 && (chars[start] == 'X' || chars[start] == 'O')) {
+            return chars[start];
+        }
+        return number(start, end) >= 0 ? 0 : (char) 1;
+    }
+
+    /**
+     * Marks chars[from, length) as the text payload, optionally trimmed
+     */
+    private void setText(int from, boolean trim) {
+        int start = Math.min(from, length);
+        int end = length;
+        if (trim) {
+            while (start < end && chars[start] == ' ') {
+                start++;
+            }
+            while (end > start && chars[end - 1] == ' ') {
+                end--;
+            }
+        }
+        textStart = start;
+        textEnd = end;
+    }
+
+    /**
+     * Where the token starting at from ends: the next space, or the end of the line
+     */
+    private int tokenEnd(int from) {
+        int i = from;
+        while (i < length && chars[i] != ' ') {
+            i++;
+        }
+        return Math.max(i, Math.min(from, length));
+    }
+
+    private boolean isWord(int end, String word) {
+        return isWordAt(0, end, word);
+    }
+
+    private boolean isWordAt(int start, int end, String word) {
+        return end - start == word.length() && startsWith(start, end, word);
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (chars[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 'X' or 'O' if chars[start, end) is that one letter, otherwise 0
+     */
+    private char markToken(int start, int end) {
+        if (end - start == 1 && (chars[start] == 'X' || chars[start] == 'O')) {
+            return chars[start];
+        }
+        return 0;
+    }
+
+    /**
+     * The decimal number in chars[start, end), or -1 if it is empty, has anything
+     * but digits or doesn't fit an int
+     */
+    private int number(int start, int end) {
+        if (start >= end || end - start > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = chars[i];
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
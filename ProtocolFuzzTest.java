@@ -0,0 +1,381 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fuzz test for ProtocolCodec, runnable on its own without a server or any libraries.
+ * Usage: java ProtocolFuzzTest [--name=value ...]
+ *
+ * Every message the encoders can make must decode the same from its frame, from the
+ * frame in the middle of a larger buffer (as the transports hand it over), from its
+ * text line and from the line as a String. Randomly corrupted lines and frames must
+ * never make the codec throw or leave an inconsistent message. Stops at the first
+ * failure and exits with status 1; prints the inputs checked otherwise.
+ */
+public class ProtocolFuzzTest {
+
+    /**
+     * Command-line options, parsed the same way as ServerConfig
+     */
+    static final class Options {
+        int messages = 1_000_000;
+        long seed = 7;
+    }
+
+    private static final String FUZZ_CHARS = "abcXO019 ,=-.!é€🎉";
+
+    private final Random random;
+    private final ProtocolCodec fromFrame = new ProtocolCodec();
+    private final ProtocolCodec inPlace = new ProtocolCodec();
+    private final ProtocolCodec fromLine = new ProtocolCodec();
+
+    ProtocolFuzzTest(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        Options options = parse(args);
+        ProtocolFuzzTest test = new ProtocolFuzzTest(options.seed);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < options.messages; i++) {
+                test.checkOne();
+            }
+        } catch (IllegalStateException e) {
+            System.out.println("FAILED (seed " + options.seed + "): " + e.getMessage());
+            if (e.getCause() != null) {
+                e.getCause().printStackTrace(System.out);
+            }
+            System.exit(1);
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("OK: " + options.messages + " messages and " + 2L * options.messages
+            + " corrupted inputs in " + millis + " ms (seed " + options.seed + ")");
+    }
+
+    /**
+     * Checks one random message, then one corruption each of its frame and its line
+     */
+    void checkOne() {
+        byte[] frame = randomFrame();
+        byte[] body = Arrays.copyOfRange(frame, 2, frame.length);
+        String line = textLine(body);
+        byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+
+        fromFrame.decodeFrame(body);
+        String expected = describe(fromFrame);
+        if (fromFrame.type() == ProtocolCodec.Type.UNKNOWN) {
+            throw new IllegalStateException("Encoded message did not decode: " + line);
+        }
+        decodeInPlace(body);
+        if (!expected.equals(describe(inPlace))) {
+            throw new IllegalStateException("Decoded differently in place: " + line + "\n  frame:    " + expected
+                + "\n  in place: " + describe(inPlace));
+        }
+        fromLine.decode(lineBytes, 0, lineBytes.length);
+        if (!expected.equals(describe(fromLine))) {
+            throw new IllegalStateException("Decoded differently: " + line + "\n  frame: " + expected
+                + "\n  line:  " + describe(fromLine));
+        }
+        fromLine.decode(line);
+        if (!expected.equals(describe(fromLine))) {
+            throw new IllegalStateException("Decoded differently from a String: " + line);
+        }
+
+        checkDecodes(mutate(body), true);
+        checkDecodes(mutate(lineBytes), false);
+    }
+
+    /**
+     * Decodes body into inPlace from a random offset in a buffer of random bytes
+     */
+    private void decodeInPlace(byte[] body) {
+        byte[] buffer = new byte[body.length + random.nextInt(16) + random.nextInt(16)];
+        random.nextBytes(buffer);
+        int offset = random.nextInt(buffer.length - body.length + 1);
+        System.arraycopy(body, 0, buffer, offset, body.length);
+        inPlace.decodeFrame(buffer, offset, body.length);
+    }
+
+    /**
+     * A random message of any kind, as the encoders make it, length prefix included
+     */
+    private byte[] randomFrame() {
+        String mark = random.nextBoolean() ? "X" : "O";
+        int size = 3 + random.nextInt(29);
+        int winLength = 3 + random.nextInt(size - 2);
+        int gameId = random.nextInt(Integer.MAX_VALUE);
+        switch (random.nextInt(17)) {
+            case 0:
+                return random.nextBoolean() ? BinaryProtocol.welcome(mark, 3, 3)
+                    : BinaryProtocol.welcome(mark, size, winLength);
+            case 1:
+                return BinaryProtocol.withText(BinaryProtocol.MESSAGE, randomText());
+            case 2:
+                return BinaryProtocol.withText(BinaryProtocol.INVALID, randomText());
+            case 3:
+                Board board = random.nextBoolean() ? new Board() : new Board(size, winLength);
+                int moves = random.nextInt(board.getCells());
+                for (int m = 0; m < moves && board.outcome() == Board.IN_PROGRESS; m++) {
+                    int cell = random.nextInt(board.getCells());
+                    if (board.isEmpty(cell)) {
+                        board.place(cell, m % 2 == 0);
+                    }
+                }
+                return BinaryProtocol.board(board);
+            case 4:
+                return BinaryProtocol.turn();
+            case 5:
+                return BinaryProtocol.waitFrame();
+            case 6:
+                return BinaryProtocol.withMark(random.nextBoolean() ? BinaryProtocol.VICTORY : BinaryProtocol.DEFEAT, mark);
+            case 7:
+                return BinaryProtocol.draw();
+            case 8:
+                int[] statuses = {BinaryProtocol.TURN, BinaryProtocol.WAIT, BinaryProtocol.DELTA_END};
+                return BinaryProtocol.delta(random.nextInt(size * size), mark, statuses[random.nextInt(3)]);
+            case 9:
+                return BinaryProtocol.spectating(gameId, size, winLength);
+            case 10:
+                return BinaryProtocol.ping();
+            case 11:
+                return BinaryProtocol.move(random.nextInt(0x10000));
+            case 12:
+                return BinaryProtocol.sync();
+            case 13:
+                return BinaryProtocol.spectate(gameId);
+            case 14:
+                return BinaryProtocol.rematch();
+            case 15:
+                // Queue names are single words, which a NEWGAME line trims
+                String[] queues = {"", "casual", "gomoku"};
+                return BinaryProtocol.newGame(queues[random.nextInt(queues.length)]);
+            default:
+                return BinaryProtocol.pong();
+        }
+    }
+
+    private String randomText() {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(40);
+        for (int i = 0; i < length; i++) {
+            int index = random.nextInt(FUZZ_CHARS.length() - 1);
+            if (Character.isHighSurrogate(FUZZ_CHARS.charAt(index))) {
+                text.append(FUZZ_CHARS, index, index + 2);
+            } else if (!Character.isLowSurrogate(FUZZ_CHARS.charAt(index))) {
+                text.append(FUZZ_CHARS.charAt(index));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * A copy of the bytes with a few random bytes changed, inserted, removed or cut off
+     */
+    private byte[] mutate(byte[] bytes) {
+        byte[] mutated = bytes;
+        int changes = 1 + random.nextInt(4);
+        for (int c = 0; c < changes; c++) {
+            int at = random.nextInt(mutated.length + 1);
+            byte value = random.nextInt(4) == 0 ? (byte) random.nextInt(256)
+                : (byte) " ,XO0123456789=-\r".charAt(random.nextInt(17));
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (at < mutated.length) {
+                        mutated = mutated.clone();
+                        mutated[at] = value;
+                    }
+                    break;
+                case 1:
+                    byte[] longer = new byte[mutated.length + 1];
+                    System.arraycopy(mutated, 0, longer, 0, at);
+                    longer[at] = value;
+                    System.arraycopy(mutated, at, longer, at + 1, mutated.length - at);
+                    mutated = longer;
+                    break;
+                case 2:
+                    if (at < mutated.length) {
+                        byte[] shorter = new byte[mutated.length - 1];
+                        System.arraycopy(mutated, 0, shorter, 0, at);
+                        System.arraycopy(mutated, at + 1, shorter, at, mutated.length - at - 1);
+                        mutated = shorter;
+                    }
+                    break;
+                default:
+                    mutated = Arrays.copyOf(mutated, at);
+                    break;
+            }
+        }
+        return mutated;
+    }
+
+    /**
+     * Decodes corrupted input, which must not throw and must leave a consistent message;
+     * a corrupted frame must also decode the same in place
+     */
+    private void checkDecodes(byte[] bytes, boolean asFrame) {
+        ProtocolCodec.Type type;
+        String decoded;
+        try {
+            type = asFrame ? fromFrame.decodeFrame(bytes) : fromFrame.decode(bytes, 0, bytes.length);
+            decoded = describe(fromFrame);
+            if (asFrame) {
+                decodeInPlace(bytes);
+                if (!decoded.equals(describe(inPlace))) {
+                    throw new IllegalStateException("Corrupted frame decoded differently in place: "
+                        + Arrays.toString(bytes));
+                }
+            }
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalStateException) {
+                throw e;
+            }
+            throw new IllegalStateException("Codec failed on " + (asFrame ? "frame " : "line ")
+                + Arrays.toString(bytes), e);
+        }
+        boolean consistent = type != ProtocolCodec.Type.BOARD || fromFrame.cellCount() == fromFrame.size() * fromFrame.size();
+        if (type == ProtocolCodec.Type.DELTA || (type == ProtocolCodec.Type.MOVE && asFrame)) {
+            consistent &= fromFrame.cell() >= 0;
+        }
+        if (!consistent) {
+            throw new IllegalStateException("Inconsistent " + type + " from " + Arrays.toString(bytes));
+        }
+    }
+
+    /**
+     * The text line carrying the same message as a frame body, worked out byte by byte
+     * here rather than with the codec under test
+     */
+    static String textLine(byte[] body) {
+        switch (body[0] & 0xFF) {
+            case BinaryProtocol.WELCOME:
+                int size = body.length >= 4 ? u8(body, 1) : Board.CLASSIC_SIZE;
+                int winLength = body.length >= 4 ? u8(body, 2) : Board.CLASSIC_SIZE;
+                return "WELCOME " + mark(body) + BinaryProtocol.welcomeSuffix(size, winLength);
+            case BinaryProtocol.MESSAGE:
+                return "MESSAGE " + text(body);
+            case BinaryProtocol.BOARD:
+                return boardLine(body);
+            case BinaryProtocol.TURN:
+                return "TURN";
+            case BinaryProtocol.WAIT:
+                return "WAIT";
+            case BinaryProtocol.VICTORY:
+                return "VICTORY " + mark(body);
+            case BinaryProtocol.DEFEAT:
+                return "DEFEAT " + mark(body);
+            case BinaryProtocol.DRAW:
+                return "DRAW";
+            case BinaryProtocol.INVALID:
+                return "INVALID " + text(body);
+            case BinaryProtocol.DELTA:
+                return "DELTA " + u16(body, 0) + " " + (char) u8(body, 2) + " " + BinaryProtocol.deltaStatus(u8(body, 3));
+            case BinaryProtocol.SPECTATING:
+                return BinaryProtocol.spectatingLine((u16(body, 0) << 16) | u16(body, 2), u8(body, 4), u8(body, 5));
+            case BinaryProtocol.PING:
+                return "PING";
+            case BinaryProtocol.MOVE:
+                return "MOVE " + (body.length == 2 ? u8(body, 0) : u16(body, 0));
+            case BinaryProtocol.SYNC:
+                return "SYNC";
+            case BinaryProtocol.SPECTATE:
+                return "SPECTATE " + ((u16(body, 0) << 16) | u16(body, 2));
+            case BinaryProtocol.PONG:
+                return "PONG";
+            case BinaryProtocol.REMATCH:
+                return "REMATCH";
+            case BinaryProtocol.NEWGAME:
+                return body.length > 1 ? "NEWGAME " + text(body) : "NEWGAME";
+            default:
+                return "";
+        }
+    }
+
+    private static String boardLine(byte[] body) {
+        boolean classic = body.length == 5;
+        int size = classic ? Board.CLASSIC_SIZE : u8(body, 0);
+        int bytes = (size * size + 7) >>> 3;
+        StringBuilder line = new StringBuilder();
+        for (int cell = 0; cell < size * size; cell++) {
+            if (cell > 0) {
+                line.append(',');
+            }
+            boolean x;
+            boolean o;
+            if (classic) {
+                x = (u16(body, 0) & 1 << cell) != 0;
+                o = (u16(body, 2) & 1 << cell) != 0;
+            } else {
+                int bit = 1 << (cell & 7);
+                x = (body[2 + (cell >>> 3)] & bit) != 0;
+                o = (body[2 + bytes + (cell >>> 3)] & bit) != 0;
+            }
+            line.append(x ? "X" : o ? "O" : String.valueOf(cell + 1));
+        }
+        return line.toString();
+    }
+
+    // Payload bytes, which start after the opcode
+
+    private static int u8(byte[] body, int offset) {
+        return body[1 + offset] & 0xFF;
+    }
+
+    private static int u16(byte[] body, int offset) {
+        return (u8(body, offset) << 8) | u8(body, offset + 1);
+    }
+
+    private static String mark(byte[] body) {
+        return body[1] == 'X' ? "X" : "O";
+    }
+
+    private static String text(byte[] body) {
+        return new String(body, 1, body.length - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Everything the codec says about its last message, for comparing two decodes
+     */
+    static String describe(ProtocolCodec message) {
+        StringBuilder d = new StringBuilder().append(message.type())
+            .append(" cell=").append(message.cell())
+            .append(" mark=").append((int) message.mark())
+            .append(" status=").append(message.status())
+            .append(" game=").append(message.gameId())
+            .append(" size=").append(message.size())
+            .append(" win=").append(message.winLength());
+        if (message.type() == ProtocolCodec.Type.MESSAGE || message.type() == ProtocolCodec.Type.INVALID
+            || message.type() == ProtocolCodec.Type.NEWGAME) {
+            d.append(" text=").append(message.text());
+        }
+        for (int i = 0; i < message.cellCount(); i++) {
+            d.append(i == 0 ? " board=" : ",").append((int) message.cellMark(i));
+        }
+        return d.toString();
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = !arg.startsWith("--") ? "" : equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+
+            try {
+                switch (name) {
+                    case "messages":
+                        options.messages = Integer.parseInt(value);
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        System.out.println("Unknown option " + arg + " ignored.");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for --" + name + " (" + e.getMessage() + "). Using default.");
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads protocol messages from a blocking stream: newline-terminated text lines,
+ * or binary frames once both sides have switched to BinaryProtocol.
+ * Both kinds share one buffer, so switching mid-stream never loses bytes.
+ */
+public class ProtocolReader {
+
+    private final InputStream in;
+    private final int maxLineLength;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] line;
+    // Holds a frame split across two reads; others are decoded straight from buffer
+    private byte[] frame;
+
+    public ProtocolReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        // Never larger than a line may be, so the limit is checked when it fills
+        this.line = new byte[Math.min(256, maxLineLength)];
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * Decodes the next line into codec without making a String; false at end of stream
+     */
+    public boolean readLine(ProtocolCodec codec) throws IOException {
+        int length = readLineBytes();
+        if (length < 0) {
+            return false;
+        }
+        codec.decode(line, 0, length);
+        return true;
+    }
+
+    /**
+     * Decodes the next frame into codec without copying it out, unless it arrived in
+     * two reads; false at end of stream
+     */
+    public boolean readFrame(ProtocolCodec codec) throws IOException {
+        int length = readFrameLength();
+        if (length < 0) {
+            return false;
+        }
+        if (limit - position >= length) {
+            codec.decodeFrame(buffer, position, length);
+            position += length;
+            return true;
+        }
+        if (frame == null) {
+            frame = new byte[BinaryProtocol.MAX_FRAME_LENGTH];
+        }
+        readFully(frame, length);
+        codec.decodeFrame(frame, 0, length);
+        return true;
+    }
+
+    /**
+     * Reads the next line into line, returning its length without the newline,
+     * or -1 at end of stream
+     */
+    private int readLineBytes() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return length > 0 ? length : -1;
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                return length;
+            }
+            if (length == line.length) {
+                if (length >= maxLineLength) {
+                    throw new IOException("Line longer than " + maxLineLength + " bytes");
+                }
+                byte[] grown = new byte[Math.min(maxLineLength, length * 2)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            line[length++] = b;
+        }
+    }
+
+    /**
+     * Reads a frame's length prefix, or returns -1 at end of stream
+     */
+    private int readFrameLength() throws IOException {
+        int high = readByte();
+        if (high < 0) {
+            return -1;
+        }
+        int low = readByte();
+        if (low < 0) {
+            throw new EOFException("Truncated frame");
+        }
+        int length = (high << 8) | low;
+        if (length == 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        return length;
+    }
+
+    private void readFully(byte[] body, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Truncated frame");
+            }
+            int count = Math.min(length - read, limit - position);
+            System.arraycopy(buffer, position, body, read, count);
+            position += count;
+            read += count;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast clients may send: a token bucket per connection and, if configured,
+ * one shared by every connection from the same address. A client over budget is
+ * throttled, meaning its transport stops reading until the debt is paid, so the
+ * pressure backs up into the client's socket instead of onto the game threads. A
+ * client that stays over budget for floodSeconds is disconnected.
+ */
+public class RateLimiter {
+
+    // An INVALID reply costs the client this many messages on top of the one that caused
+    // it, since the server writes two lines for it (INVALID and TURN) and logs it
+    static final int INVALID_PENALTY = 4;
+
+    /**
+     * A token bucket of burst messages refilled at rate a second, kept as the single
+     * time at which it will be full again (the GCRA form), so spending is one CAS and
+     * nothing has to refill it
+     */
+    static final class Bucket {
+        private final long interval;
+        private final long capacity;
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+        // Connections sharing the bucket; only changed inside the limiter's map
+        int users;
+
+        Bucket(double rate, int burst) {
+            interval = Math.max(1, (long) (1e9 / rate));
+            capacity = interval * Math.max(1, burst);
+        }
+
+        /**
+         * Takes tokens whether or not they are there
+         */
+        void spend(long now, int tokens) {
+            long cost = interval * tokens;
+            long current;
+            do {
+                current = fullAt.get();
+            } while (!fullAt.compareAndSet(current, Math.max(current, now) + cost));
+        }
+
+        /**
+         * How long the bucket stays overdrawn, in nanoseconds; 0 or less if it isn't
+         */
+        long debt(long now) {
+            return fullAt.get() - now - capacity;
+        }
+    }
+
+    /**
+     * One connection's limits. Only the thread reading the connection uses it,
+     * apart from the buckets themselves.
+     */
+    final class Limit {
+        private final String host;
+        private final Bucket own;
+        // Null when there is no per-address limit
+        private final Bucket shared;
+        private long throttledSince;
+        private boolean throttling;
+        private boolean logged;
+
+        Limit(String host, Bucket own, Bucket shared) {
+            this.host = host;
+            this.own = own;
+            this.shared = shared;
+        }
+
+        void charge(long now, int messages) {
+            own.spend(now, messages);
+            if (shared != null) {
+                shared.spend(now, messages);
+            }
+        }
+
+        /**
+         * How long to stop reading before the next message: 0 if the client is within
+         * its budget, or -1 if it has been over budget for too long and must go
+         */
+        long pauseNanos(String client) {
+            long now = System.nanoTime();
+            long debt = own.debt(now);
+            if (shared != null) {
+                debt = Math.max(debt, shared.debt(now));
+            }
+            if (debt <= 0) {
+                throttling = false;
+                return 0;
+            }
+
+            TicTacToeServer.metrics.messagesThrottled();
+            if (!throttling) {
+                throttling = true;
+                throttledSince = now;
+                if (!logged) {
+                    logged = true;
+                    ServerLog.info("Client " + client + " is sending too fast; throttling.");
+                }
+            } else if (floodNanos > 0 && now - throttledSince > floodNanos) {
+                TicTacToeServer.metrics.floodDisconnected();
+                ServerLog.info("Client " + client + " kept flooding for " + floodNanos / 1_000_000_000L
+                    + " s; disconnecting.");
+                return -1;
+            }
+            return debt;
+        }
+
+        /**
+         * Gives up the share of the per-address bucket once the connection is closed
+         */
+        void release() {
+            if (shared != null) {
+                addresses.computeIfPresent(host, (key, bucket) -> --bucket.users == 0 ? null : bucket);
+            }
+        }
+    }
+
+    private final double rate;
+    private final int burst;
+    private final double addressRate;
+    private final int addressBurst;
+    private final long floodNanos;
+    // Per-address buckets, while the address has connections open
+    private final Map<String, Bucket> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * Limits of rate messages a second with bursts of up to burst per connection, and the
+     * same for all connections from one address together (addressRate 0 = no such limit)
+     */
+    public RateLimiter(double rate, int burst, double addressRate, int addressBurst, int floodSeconds) {
+        this.rate = rate;
+        this.burst = burst;
+        this.addressRate = addressRate;
+        this.addressBurst = addressBurst;
+        this.floodNanos = floodSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * The limits for a new connection from host
+     */
+    Limit open(String host) {
+        Bucket shared = null;
+        if (addressRate > 0) {
+            shared = addresses.compute(host, (key, bucket) -> {
+                if (bucket == null) {
+                    bucket = new Bucket(addressRate, addressBurst);
+                }
+                bucket.users++;
+                return bucket;
+            });
+        }
+        return new Limit(host, new Bucket(rate, burst), shared);
+    }
+}
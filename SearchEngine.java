@@ -0,0 +1,592 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Game-tree search for boards of any size: iterative-deepening negamax with alpha-beta
+ * pruning, and a TranspositionTable keyed by Zobrist hashes.
+ *
+ * Each iteration searches the best root move so far on the calling thread, then lets
+ * the pool's threads take the remaining root moves one at a time, each starting from
+ * the best score found so far. A search stops at its deadline and plays the best move
+ * of the deepest iteration it finished. All games share one pool and one table, so
+ * the pool size caps how much CPU bots can take from player traffic, and a bot that
+ * waited for a thread simply gets less time to think.
+ *
+ * Positions are scored over every window of winLength cells in a row: a window held by
+ * one side alone counts for that side, more the more marks it holds. Only the windows
+ * through the cell just played change, so the score is updated per move. Below the
+ * root, only the most promising moves next to existing marks are searched.
+ */
+public final class SearchEngine {
+
+    public static final int WIN = 1 << 22;
+    private static final int INFINITY = WIN + 1;
+
+    // Scores this close to WIN are forced wins, adjusted by ply in the table
+    private static final int MATE_RANGE = 256;
+
+    private static final int MAX_PLY = 64;
+    private static final int MAX_BRANCHING = 16;
+    private static final int NEIGHBOURHOOD = 2;
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+
+    private static final int MAX_CELLS = Board.MAX_SIZE * Board.MAX_SIZE;
+
+    // One random key per (cell, mark): X at cell, O at MAX_CELLS + cell
+    private static final long[] ZOBRIST = new long[2 * MAX_CELLS];
+
+    // Row and column steps of the four line directions, as in Board
+    private static final int[] DIRECTION_ROW = {0, 1, 1, 1};
+    private static final int[] DIRECTION_COL = {1, 0, 1, -1};
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EA7C4L);
+        for (int i = 0; i < ZOBRIST.length; i++) {
+            ZOBRIST[i] = random.nextLong();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final TranspositionTable table;
+
+    public SearchEngine(int threads, int tableMegabytes) {
+        this.pool = new ForkJoinPool(Math.max(1, threads), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("bot-search-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        this.table = new TranspositionTable(tableMegabytes);
+    }
+
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    public int getTableEntries() {
+        return table.capacity();
+    }
+
+    /**
+     * Runs a task on the search threads, e.g. a bot move that calls search()
+     */
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * The outcome of one search
+     */
+    public static final class Result {
+        public final int move;  // -1 if the game is over
+        public final int score; // for the side to move; WIN minus plies for a forced win
+        public final int depth; // deepest iteration finished
+        public final long nodes;
+        public final long millis;
+
+        Result(int move, int score, int depth, long nodes, long millis) {
+            this.move = move;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Finds the best move for the side to move before deadlineNanos (a System.nanoTime()
+     * value). The first iteration always finishes, even after the deadline.
+     */
+    public Result search(Board position, long deadlineNanos) {
+        return pool.invoke(new RootSearch(position, deadlineNanos, MAX_PLY - 1));
+    }
+
+    /**
+     * Finds the best move for the side to move, searching exactly depth plies however
+     * long that takes. With one thread and its own engine, the same position always
+     * gets the same move.
+     */
+    public Result search(Board position, int depth) {
+        return pool.invoke(new RootSearch(position, Long.MAX_VALUE, Math.max(1, Math.min(MAX_PLY - 1, depth))));
+    }
+
+    /**
+     * Stops the search threads once they are idle; for engines that aren't shared
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Score weights by marks in a window; a full window is only used for move ordering
+     */
+    private static int[] windowWeights(int winLength) {
+        int[] weights = new int[winLength + 1];
+        for (int count = 1; count < winLength; count++) {
+            weights[count] = 1 << Math.min(3 * (count - 1), 12);
+        }
+        weights[winLength] = 1 << 20;
+        return weights;
+    }
+
+    private static long variantKey(int size, int winLength) {
+        return new SplittableRandom(size * 64L + winLength).nextLong();
+    }
+
+    private static int toTable(int score, int ply) {
+        return score > WIN - MATE_RANGE ? score + ply : score < -WIN + MATE_RANGE ? score - ply : score;
+    }
+
+    private static int fromTable(int score, int ply) {
+        return score > WIN - MATE_RANGE ? score - ply : score < -WIN + MATE_RANGE ? score + ply : score;
+    }
+
+    /**
+     * Shared state of one iteration: the next root move to take and the best so far
+     */
+    private static final class Iteration {
+        final int depth;
+        final int[] moves;
+        final AtomicInteger next = new AtomicInteger(1);
+        volatile int alpha;
+        int bestMove;
+
+        Iteration(int depth, int[] moves, int firstScore) {
+            this.depth = depth;
+            this.moves = moves;
+            this.alpha = firstScore;
+            this.bestMove = moves[0];
+        }
+
+        synchronized void offer(int move, int score) {
+            if (score > alpha) {
+                alpha = score;
+                bestMove = move;
+            }
+        }
+    }
+
+    private final class RootSearch extends RecursiveTask<Result> {
+        private final Board position;
+        private final long deadline;
+        private final int depthLimit;
+
+        RootSearch(Board position, long deadline, int depthLimit) {
+            this.position = position;
+            this.deadline = deadline;
+            this.depthLimit = depthLimit;
+        }
+
+        @Override
+        protected Result compute() {
+            long start = System.nanoTime();
+            table.nextGeneration();
+            Searcher main = new Searcher(position, deadline);
+            int[] moves = main.rootMoves();
+            if (moves.length <= 1) {
+                return new Result(moves.length == 0 ? -1 : moves[0], 0, 0, 0, 0);
+            }
+
+            Searcher[] helpers = new Searcher[Math.min(getThreads(), moves.length - 1)];
+            int bestMove = moves[0];
+            int bestScore = 0;
+            int finished = 0;
+            int maxDepth = Math.min(depthLimit, position.getCells() - position.getMoveCount());
+
+            for (int depth = 1; depth <= maxDepth; depth++) {
+                boolean mayStop = depth > 1;
+                main.mayStop = mayStop;
+                int firstScore = main.searchRootMove(moves[0], depth, -INFINITY, INFINITY);
+                if (main.stopped) {
+                    break;
+                }
+
+                Iteration iteration = new Iteration(depth, moves, firstScore);
+                RootMoves[] tasks = new RootMoves[helpers.length];
+                for (int i = 0; i < helpers.length; i++) {
+                    if (helpers[i] == null) {
+                        helpers[i] = new Searcher(position, deadline);
+                    }
+                    helpers[i].mayStop = mayStop;
+                    tasks[i] = new RootMoves(helpers[i], iteration);
+                }
+                invokeAll(tasks);
+                if (anyStopped(helpers)) {
+                    break;
+                }
+
+                bestMove = iteration.bestMove;
+                bestScore = iteration.alpha;
+                finished = depth;
+                moveToFront(moves, bestMove);
+                if (Math.abs(bestScore) > WIN - MATE_RANGE) {
+                    break; // Forced result; deeper iterations can't change it
+                }
+            }
+
+            long nodes = main.nodes;
+            for (Searcher helper : helpers) {
+                nodes += helper == null ? 0 : helper.nodes;
+            }
+            return new Result(bestMove, bestScore, finished, nodes, (System.nanoTime() - start) / 1_000_000);
+        }
+
+        private boolean anyStopped(Searcher[] helpers) {
+            for (Searcher helper : helpers) {
+                if (helper.stopped) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static void moveToFront(int[] moves, int move) {
+        int i = 0;
+        while (moves[i] != move) {
+            i++;
+        }
+        System.arraycopy(moves, 0, moves, 1, i);
+        moves[0] = move;
+    }
+
+    /**
+     * Searches root moves, taken one at a time from the iteration, until none are left
+     */
+    private static final class RootMoves extends RecursiveAction {
+        private final Searcher searcher;
+        private final Iteration iteration;
+
+        RootMoves(Searcher searcher, Iteration iteration) {
+            this.searcher = searcher;
+            this.iteration = iteration;
+        }
+
+        @Override
+        protected void compute() {
+            int i;
+            while ((i = iteration.next.getAndIncrement()) < iteration.moves.length) {
+                int move = iteration.moves[i];
+                int score = searcher.searchRootMove(move, iteration.depth, iteration.alpha, INFINITY);
+                if (searcher.stopped) {
+                    return;
+                }
+                iteration.offer(move, score);
+            }
+        }
+    }
+
+    /**
+     * One thread's copy of the position, with the hash, score and move lists it keeps
+     * up to date while it walks the tree
+     */
+    private final class Searcher {
+        private final Board board;
+        private final int size;
+        private final int winLength;
+        private final int[] weights;
+        private final long deadline;
+        private final boolean rootXToMove;
+        private final int rootEval;
+
+        // 1 for X, 2 for O, 0 for empty: the board again, laid out for scanning lines
+        private final byte[] marks;
+        // Marks within NEIGHBOURHOOD cells of each cell; moves are only tried where this is non-zero
+        private final int[] near;
+        private final int[] line;
+        private final int[] moves = new int[MAX_PLY * MAX_BRANCHING];
+        private final int[] keys = new int[MAX_PLY * MAX_BRANCHING];
+        private long hash;
+
+        // Set by windowGains(): what playing a cell is worth to X and to O
+        private int gainX;
+        private int gainO;
+
+        long nodes;
+        boolean mayStop;
+        boolean stopped;
+
+        Searcher(Board position, long deadline) {
+            this.board = position.copy();
+            this.size = board.getSize();
+            this.winLength = board.getWinLength();
+            this.weights = windowWeights(winLength);
+            this.deadline = deadline;
+            this.rootXToMove = board.getMoveCount() % 2 == 0;
+            this.marks = new byte[board.getCells()];
+            this.near = new int[board.getCells()];
+            this.line = new int[2 * winLength];
+
+            hash = variantKey(size, winLength);
+            for (int cell = 0; cell < board.getCells(); cell++) {
+                if (!board.isEmpty(cell)) {
+                    marks[cell] = (byte) (board.isX(cell) ? 1 : 2);
+                    hash ^= ZOBRIST[board.isX(cell) ? cell : MAX_CELLS + cell];
+                    addNear(cell, 1);
+                }
+            }
+            this.rootEval = staticEval();
+        }
+
+        /**
+         * Every candidate move at the root, most promising first; the centre on an empty board
+         */
+        int[] rootMoves() {
+            if (board.outcome() != Board.IN_PROGRESS) {
+                return new int[0];
+            }
+            if (board.getMoveCount() == 0) {
+                return new int[] {(size / 2) * size + size / 2};
+            }
+            int count = 0;
+            int[] candidates = new int[board.getCells()];
+            int[] order = new int[board.getCells()];
+            for (int cell = 0; cell < board.getCells(); cell++) {
+                if (near[cell] > 0 && marks[cell] == 0) {
+                    count = insert(candidates, order, 0, count, candidates.length, cell, orderKey(cell, rootXToMove));
+                }
+            }
+            int[] result = new int[count];
+            System.arraycopy(candidates, 0, result, 0, count);
+            return result;
+        }
+
+        int searchRootMove(int cell, int depth, int alpha, int beta) {
+            return play(cell, depth, alpha, beta, 0, rootXToMove, rootEval);
+        }
+
+        /**
+         * Plays cell, scores the result for the side that played it, and takes it back.
+         * eval is the position's score from X's point of view.
+         */
+        private int play(int cell, int depth, int alpha, int beta, int ply, boolean xToMove, int eval) {
+            windowGains(cell);
+            int childEval = eval + (xToMove ? gainX : -gainO);
+            long key = ZOBRIST[xToMove ? cell : MAX_CELLS + cell];
+
+            board.place(cell, xToMove);
+            marks[cell] = (byte) (xToMove ? 1 : 2);
+            hash ^= key;
+            addNear(cell, 1);
+
+            int score;
+            int outcome = board.outcome();
+            if (outcome == Board.X_WINS || outcome == Board.O_WINS) {
+                score = WIN - ply - 1;
+            } else if (outcome == Board.DRAW) {
+                score = 0;
+            } else {
+                score = -search(depth - 1, -beta, -alpha, ply + 1, !xToMove, childEval);
+            }
+
+            addNear(cell, -1);
+            hash ^= key;
+            marks[cell] = 0;
+            board.undo(cell);
+            return score;
+        }
+
+        private int search(int depth, int alpha, int beta, int ply, boolean xToMove, int eval) {
+            if (++nodes % DEADLINE_CHECK_INTERVAL == 0 && mayStop && System.nanoTime() > deadline) {
+                stopped = true;
+            }
+            if (stopped) {
+                return 0;
+            }
+
+            int originalAlpha = alpha;
+            int tableMove = -1;
+            long entry = table.probe(hash);
+            if (entry != 0) {
+                tableMove = TranspositionTable.move(entry);
+                if (TranspositionTable.depth(entry) >= depth) {
+                    int score = fromTable(TranspositionTable.score(entry), ply);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                        || bound == TranspositionTable.LOWER && score >= beta
+                        || bound == TranspositionTable.UPPER && score <= alpha) {
+                        return score;
+                    }
+                }
+            }
+
+            if (depth == 0 || ply >= MAX_PLY - 1) {
+                int score = xToMove ? eval : -eval;
+                return Math.max(-WIN / 2, Math.min(WIN / 2, score));
+            }
+
+            int base = ply * MAX_BRANCHING;
+            int count = 0;
+            for (int cell = 0; cell < near.length; cell++) {
+                if (near[cell] > 0 && marks[cell] == 0) {
+                    int order = cell == tableMove ? Integer.MAX_VALUE : orderKey(cell, xToMove);
+                    count = insert(moves, keys, base, count, MAX_BRANCHING, cell, order);
+                }
+            }
+
+            int best = -INFINITY;
+            int bestMove = -1;
+            for (int i = 0; i < count; i++) {
+                int cell = moves[base + i];
+                int score = play(cell, depth, alpha, beta, ply, xToMove, eval);
+                if (stopped) {
+                    return 0;
+                }
+                if (score > best) {
+                    best = score;
+                    bestMove = cell;
+                    if (score > alpha) {
+                        alpha = score;
+                        if (alpha >= beta) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            int bound = best <= originalAlpha ? TranspositionTable.UPPER
+                : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            table.store(hash, toTable(best, ply), bestMove, depth, bound);
+            return best;
+        }
+
+        /**
+         * Adds cell to a list kept sorted by descending key, holding at most limit entries
+         */
+        private int insert(int[] cells, int[] order, int base, int count, int limit, int cell, int key) {
+            int i;
+            if (count < limit) {
+                i = count++;
+            } else if (order[base + limit - 1] < key) {
+                i = limit - 1;
+            } else {
+                return count;
+            }
+            while (i > 0 && order[base + i - 1] < key) {
+                cells[base + i] = cells[base + i - 1];
+                order[base + i] = order[base + i - 1];
+                i--;
+            }
+            cells[base + i] = cell;
+            order[base + i] = key;
+            return count;
+        }
+
+        /**
+         * Move ordering: winning or blocking a win first, then by what the cell is worth
+         * to the side to move, and to a lesser degree to its opponent
+         */
+        private int orderKey(int cell, boolean xToMove) {
+            windowGains(cell);
+            return xToMove ? 2 * gainX + gainO : 2 * gainO + gainX;
+        }
+
+        /**
+         * Sets gainX and gainO to how much the score of the windows through an empty
+         * cell improves for X, or for O, by playing there
+         */
+        private void windowGains(int cell) {
+            int row = cell / size;
+            int col = cell % size;
+            int x = 0;
+            int o = 0;
+            for (int d = 0; d < 4; d++) {
+                int dr = DIRECTION_ROW[d];
+                int dc = DIRECTION_COL[d];
+
+                // The cells within winLength - 1 steps on both sides, up to the edges
+                int back = 0;
+                while (back < winLength - 1 && inside(row - (back + 1) * dr, col - (back + 1) * dc)) {
+                    back++;
+                }
+                int ahead = 0;
+                while (ahead < winLength - 1 && inside(row + (ahead + 1) * dr, col + (ahead + 1) * dc)) {
+                    ahead++;
+                }
+                int length = back + ahead + 1;
+                if (length < winLength) {
+                    continue;
+                }
+                for (int i = 0; i < length; i++) {
+                    int at = (row + (i - back) * dr) * size + col + (i - back) * dc;
+                    line[i] = marks[at];
+                }
+
+                // Slide a window of winLength along the line; every position contains cell
+                int xs = 0;
+                int os = 0;
+                for (int i = 0; i < winLength; i++) {
+                    xs += line[i] & 1;
+                    os += line[i] >> 1;
+                }
+                for (int start = 0; ; start++) {
+                    int before = value(xs, os);
+                    x += value(xs + 1, os) - before;
+                    o += before - value(xs, os + 1);
+                    if (start + winLength >= length) {
+                        break;
+                    }
+                    xs += (line[start + winLength] & 1) - (line[start] & 1);
+                    os += (line[start + winLength] >> 1) - (line[start] >> 1);
+                }
+            }
+            gainX = x;
+            gainO = o;
+        }
+
+        /**
+         * A window's score from X's point of view
+         */
+        private int value(int xs, int os) {
+            if (xs > 0) {
+                return os > 0 ? 0 : weights[xs];
+            }
+            return os > 0 ? -weights[os] : 0;
+        }
+
+        private boolean inside(int row, int col) {
+            return row >= 0 && row < size && col >= 0 && col < size;
+        }
+
+        /**
+         * Scores every window of the board from X's point of view
+         */
+        private int staticEval() {
+            int eval = 0;
+            for (int cell = 0; cell < board.getCells(); cell++) {
+                int row = cell / size;
+                int col = cell % size;
+                for (int d = 0; d < 4; d++) {
+                    int endRow = row + (winLength - 1) * DIRECTION_ROW[d];
+                    int endCol = col + (winLength - 1) * DIRECTION_COL[d];
+                    if (!inside(endRow, endCol)) {
+                        continue;
+                    }
+                    int xs = 0;
+                    int os = 0;
+                    for (int i = 0; i < winLength; i++) {
+                        int at = (row + i * DIRECTION_ROW[d]) * size + col + i * DIRECTION_COL[d];
+                        xs += marks[at] & 1;
+                        os += marks[at] >> 1;
+                    }
+                    eval += value(xs, os);
+                }
+            }
+            return eval;
+        }
+
+        private void addNear(int cell, int delta) {
+            int row = cell / size;
+            int col = cell % size;
+            for (int r = Math.max(0, row - NEIGHBOURHOOD); r <= Math.min(size - 1, row + NEIGHBOURHOOD); r++) {
+                for (int c = Math.max(0, col - NEIGHBOURHOOD); c <= Math.min(size - 1, col + NEIGHBOURHOOD); c++) {
+                    near[r * size + c] += delta;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Startup options for TicTacToeServer.
+ * Usage: java TicTacToeServer [port] [--name=value ...]
+ */
+public class ServerConfig {
+
+    int port = 8901;
+
+    // This server's number when several run behind a TicTacToeRouter (0-127); its game
+    // ids start at nodeId << 24, so the router can tell which node holds a game
+    int nodeId = 0;
+
+    // "thread" (one thread per connection) or "nio" (selector event loops)
+    String transport = "thread";
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    // Offer BinaryProtocol framing in the WELCOME handshake
+    boolean binaryProtocol = true;
+
+    // Matchmaking queues, each "name" (3x3) or "name:size/winLength"; new connections wait in the first one
+    String[] queues = {"casual", "ranked"};
+
+    // Offer per-move DELTA updates, and resend the full board every this many deltas (0 = only on SYNC)
+    boolean deltaUpdates = true;
+    int snapshotInterval = 0;
+
+    // Offer REMATCH: clients that accept it stay connected between games, for up to
+    // rematchTimeoutSeconds before choosing a rematch or a new game (0 = no limit)
+    boolean rematch = true;
+    int rematchTimeoutSeconds = 120;
+
+    // Seconds a player may wait alone before getting a bot opponent (0 = never)
+    int botAfterSeconds = 30;
+
+    // Bots on boards other than 3x3 search each move for up to botThinkMillis, on
+    // searchThreads shared threads with one searchTableMegabytes transposition table
+    int botThinkMillis = 500;
+    int searchThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int searchTableMegabytes = 64;
+
+    // Journal every move to segment files in this directory and rebuild running games
+    // from it on startup ("" = off); segments are journalSegmentMegabytes each and
+    // forced to disk every journalSyncMillis. Rebuilt games wait resumeTimeoutSeconds
+    // for their players to send RESUME.
+    String journalDir = "";
+    int journalSegmentMegabytes = 64;
+    int journalSyncMillis = 10;
+    int resumeTimeoutSeconds = 300;
+
+    // Append every game that ends in a win or draw to files in this directory, for
+    // GameAnalytics ("" = off); a new file is started every archiveSegmentMegabytes
+    String archiveDir = "";
+    int archiveSegmentMegabytes = 256;
+
+    // Send PING to a client that has been quiet for heartbeatSeconds, and disconnect
+    // one that has sent nothing for idleTimeoutSeconds; while it is a player's turn
+    // only turnTimeoutSeconds applies, after which the player loses (0 = off, each).
+    // Until a client first answers PING, it gets idleGraceSeconds more, for older
+    // clients that don't know PING.
+    int heartbeatSeconds = 15;
+    int idleTimeoutSeconds = 45;
+    int idleGraceSeconds = 300;
+    int turnTimeoutSeconds = 300;
+
+    // Output that may queue up for a client that reads slowly, and what happens to
+    // messages beyond that: drop them, disconnect the client, or make the sender wait
+    int maxQueuedKilobytes = 256;
+    Connection.Overflow slowClient = Connection.Overflow.DISCONNECT;
+
+    // Messages a client may send per second, with bursts of up to messageBurst, counted per
+    // connection and, if ipMessageRate is above 0, over all connections from one address.
+    // A client over budget is read more slowly; one over budget for floodSeconds is
+    // disconnected (0 = never). An INVALID reply costs it RateLimiter.INVALID_PENALTY more.
+    double messageRate = 50;
+    int messageBurst = 100;
+    double ipMessageRate = 0;
+    int ipMessageBurst = 1000;
+    int floodSeconds = 10;
+
+    // Longest line a client may send; a longer one closes the connection unparsed
+    int maxLineLength = 1024;
+
+    // Log to this file, starting a new one every logFileMegabytes ("" = standard output).
+    // Lines wait in a ring of logBufferEntries for the writer thread; beyond that they
+    // are dropped and counted, so logging never holds up a game thread.
+    String logFile = "";
+    int logFileMegabytes = 64;
+    int logBufferEntries = 8192;
+
+    // Serve metrics over HTTP at 127.0.0.1:metricsPort/metrics (0 = off; JMX is always on)
+    int metricsPort = 0;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                try {
+                    config.port = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid port number. Using default port 8901.");
+                }
+                continue;
+            }
+
+            int equals = arg.indexOf('=');
+            String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+
+            try {
+                switch (name) {
+                    case "transport":
+                        if (!value.equals("thread") && !value.equals("nio")) {
+                            throw new IllegalArgumentException("expected thread or nio");
+                        }
+                        config.transport = value;
+                        break;
+                    case "event-loops":
+                        config.eventLoops = Integer.parseInt(value);
+                        break;
+                    case "binary":
+                        config.binaryProtocol = Boolean.parseBoolean(value);
+                        break;
+                    case "queues":
+                        if (value.trim().isEmpty()) {
+                            throw new IllegalArgumentException("expected a comma-separated list");
+                        }
+                        for (String spec : value.split(",")) {
+                            Lobby.parseVariant(spec);
+                        }
+                        config.queues = value.split(",");
+                        break;
+                    case "delta":
+                        config.deltaUpdates = Boolean.parseBoolean(value);
+                        break;
+                    case "rematch":
+                        config.rematch = Boolean.parseBoolean(value);
+                        break;
+                    case "rematch-timeout":
+                        config.rematchTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "snapshot-interval":
+                        config.snapshotInterval = Integer.parseInt(value);
+                        break;
+                    case "bot-after":
+                        config.botAfterSeconds = Integer.parseInt(value);
+                        break;
+                    case "bot-think":
+                        config.botThinkMillis = Integer.parseInt(value);
+                        break;
+                    case "search-threads":
+                        config.searchThreads = Integer.parseInt(value);
+                        break;
+                    case "search-table-mb":
+                        config.searchTableMegabytes = Integer.parseInt(value);
+                        break;
+                    case "journal":
+                        config.journalDir = value;
+                        break;
+                    case "journal-segment-mb":
+                        config.journalSegmentMegabytes = Integer.parseInt(value);
+                        break;
+                    case "journal-sync-ms":
+                        config.journalSyncMillis = Integer.parseInt(value);
+                        break;
+                    case "node-id":
+                        int nodeId = Integer.parseInt(value);
+                        if (nodeId < 0 || nodeId > 127) {
+                            throw new IllegalArgumentException("expected 0 to 127");
+                        }
+                        config.nodeId = nodeId;
+                        break;
+                    case "archive":
+                        config.archiveDir = value;
+                        break;
+                    case "archive-segment-mb":
+                        config.archiveSegmentMegabytes = Integer.parseInt(value);
+                        break;
+                    case "resume-timeout":
+                        config.resumeTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "heartbeat":
+                        config.heartbeatSeconds = Integer.parseInt(value);
+                        break;
+                    case "idle-timeout":
+                        config.idleTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "idle-grace":
+                        config.idleGraceSeconds = Integer.parseInt(value);
+                        break;
+                    case "turn-timeout":
+                        config.turnTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "max-queued-kb":
+                        config.maxQueuedKilobytes = Integer.parseInt(value);
+                        break;
+                    case "slow-client":
+                        if (!value.equals("drop") && !value.equals("disconnect") && !value.equals("block")) {
+                            throw new IllegalArgumentException("expected drop, disconnect or block");
+                        }
+                        config.slowClient = Connection.Overflow.valueOf(value.toUpperCase());
+                        break;
+                    case "message-rate":
+                        config.messageRate = positive(Double.parseDouble(value));
+                        break;
+                    case "message-burst":
+                        config.messageBurst = (int) positive(Integer.parseInt(value));
+                        break;
+                    case "ip-message-rate":
+                        config.ipMessageRate = Double.parseDouble(value);
+                        break;
+                    case "ip-message-burst":
+                        config.ipMessageBurst = (int) positive(Integer.parseInt(value));
+                        break;
+                    case "flood-seconds":
+                        config.floodSeconds = Integer.parseInt(value);
+                        break;
+                    case "max-line":
+                        int maxLine = Integer.parseInt(value);
+                        if (maxLine < 64 || maxLine > 65536) {
+                            throw new IllegalArgumentException("expected 64 to 65536");
+                        }
+                        config.maxLineLength = maxLine;
+                        break;
+                    case "log-file":
+                        config.logFile = value;
+                        break;
+                    case "log-file-mb":
+                        config.logFileMegabytes = (int) positive(Integer.parseInt(value));
+                        break;
+                    case "log-buffer":
+                        config.logBufferEntries = (int) positive(Integer.parseInt(value));
+                        break;
+                    case "metrics-port":
+                        config.metricsPort = Integer.parseInt(value);
+                        break;
+                    default:
+                        System.out.println("Unknown option " + arg + " ignored.");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for --" + name + " (" + e.getMessage() + "). Using default.");
+            }
+        }
+        return config;
+    }
+
+    private static double positive(double value) {
+        if (!(value > 0)) {
+            throw new IllegalArgumentException("expected a number above 0");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. A game thread never writes or formats anything: it claims a slot
+ * in a preallocated ring, fills in the event's fields (game, player, cell, latency or
+ * a line of text) and moves on. A background thread turns the slots into lines and
+ * writes each batch with one call, to standard output or to a file that rolls over at
+ * a size limit. When the ring is full the event is dropped and counted rather than
+ * waited for, so logging never holds up a move.
+ * Until start() is called, as in the JMH benchmarks, lines go straight to System.out.
+ */
+public final class ServerLog implements Runnable {
+
+    // Event kinds; the writer thread turns each into its line
+    private static final int TEXT = 0;
+    private static final int MOVE = 1;
+    private static final int WIN = 2;
+    private static final int DRAW = 3;
+    private static final int PLAYER = 4;
+
+    // Rolled files kept besides the current one, as file.1 (newest) to file.N
+    private static final int ROLLED_FILES = 5;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+
+    /**
+     * One event. Written by the thread that claimed it, then published by setting
+     * sequence, after which only the writer thread reads it.
+     */
+    private static final class Entry {
+        volatile long sequence = -1;
+        long timeMillis;
+        int kind;
+        int game;
+        char player;
+        int cell;
+        long latencyNanos;
+        String text;
+    }
+
+    private static volatile ServerLog log;
+
+    private final Entry[] ring;
+    private final int mask;
+    // Next sequence to claim, and the next one the writer will read
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final Path file;
+    private final long maxFileBytes;
+    private OutputStream out;
+    private long fileBytes;
+
+    private final Thread writer;
+    private volatile boolean stopping;
+
+    private final DateTimeFormatter secondFormat =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private long formattedSecond = -1;
+    private String secondPrefix;
+
+    private ServerLog(int capacity, Path file, long maxFileBytes) throws IOException {
+        int size = Math.max(16, Integer.highestOneBit(capacity - 1) << 1);
+        ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        mask = size - 1;
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        if (file != null) {
+            out = new FileOutputStream(file.toFile(), true);
+            fileBytes = Files.size(file);
+        }
+        writer = new Thread(this, "log-writer");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts logging through a ring of capacity events, to path ("" = standard output),
+     * rolling the file over every fileMegabytes. Lines still in the ring are written
+     * when the JVM shuts down.
+     */
+    static void start(int capacity, String path, int fileMegabytes) throws IOException {
+        ServerLog started = new ServerLog(capacity, path.isEmpty() ? null : Paths.get(path), fileMegabytes * 1024L * 1024);
+        started.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(started::stop, "log-shutdown"));
+        log = started;
+    }
+
+    /**
+     * Any line of text
+     */
+    static void info(String text) {
+        append(TEXT, 0, ' ', 0, 0, text);
+    }
+
+    /**
+     * An accepted move; latencyNanos is how long ago the MOVE was read
+     */
+    static void move(int game, char player, int cell, long latencyNanos) {
+        append(MOVE, game, player, cell, latencyNanos, null);
+    }
+
+    /**
+     * A game won by player
+     */
+    static void win(int game, char player) {
+        append(WIN, game, player, 0, 0, null);
+    }
+
+    static void draw(int game) {
+        append(DRAW, game, ' ', 0, 0, null);
+    }
+
+    /**
+     * Something that happened to one player in a game, e.g. "disconnected"
+     */
+    static void player(int game, char player, String what) {
+        append(PLAYER, game, player, 0, 0, what);
+    }
+
+    /**
+     * Events dropped because the ring was full
+     */
+    static long getDropped() {
+        ServerLog current = log;
+        return current == null ? 0 : current.dropped.sum();
+    }
+
+    private static void append(int kind, int game, char player, int cell, long latencyNanos, String text) {
+        ServerLog current = log;
+        if (current == null) {
+            StringBuilder line = new StringBuilder(64);
+            format(line, kind, game, player, cell, latencyNanos, text);
+            System.out.println(line);
+            return;
+        }
+        current.publish(kind, game, player, cell, latencyNanos, text);
+    }
+
+    private void publish(int kind, int game, char player, int cell, long latencyNanos, String text) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) sequence & mask];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.kind = kind;
+        entry.game = game;
+        entry.player = player;
+        entry.cell = cell;
+        entry.latencyNanos = latencyNanos;
+        entry.text = text;
+        entry.sequence = sequence;
+    }
+
+    public void run() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            boolean last = stopping;
+            drain(batch);
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            } else if (!last) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Formats every published event into batch, in order, and frees their slots
+     */
+    private void drain(StringBuilder batch) {
+        long next = consumed;
+        Entry entry;
+        while ((entry = ring[(int) next & mask]).sequence == next) {
+            appendTime(batch, entry.timeMillis);
+            format(batch, entry.kind, entry.game, entry.player, entry.cell, entry.latencyNanos, entry.text);
+            batch.append('\n');
+            entry.text = null;
+            next++;
+            // Free slots as we go, so a long batch doesn't make the producers drop
+            if ((next & 1023) == 0) {
+                consumed = next;
+            }
+        }
+        consumed = next;
+
+        long lost = dropped.sum();
+        if (lost > droppedReported) {
+            appendTime(batch, System.currentTimeMillis());
+            batch.append(lost - droppedReported).append(" log lines dropped; the log writer fell behind.\n");
+            droppedReported = lost;
+        }
+    }
+
+    private void appendTime(StringBuilder batch, long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            secondPrefix = secondFormat.format(Instant.ofEpochSecond(second));
+        }
+        int millis = (int) (timeMillis % 1000);
+        batch.append(secondPrefix).append('.').append((char) ('0' + millis / 100))
+            .append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10)).append(' ');
+    }
+
+    private static void format(StringBuilder line, int kind, int game, char player, int cell, long latencyNanos, String text) {
+        switch (kind) {
+            case MOVE:
+                line.append("Game ").append(game).append(": Player ").append(player).append(" moved to position ")
+                    .append(cell + 1).append(" (").append(latencyNanos / 1000).append(" us)");
+                break;
+            case WIN:
+                line.append("Game ").append(game).append(": Player ").append(player).append(" wins!");
+                break;
+            case DRAW:
+                line.append("Game ").append(game).append(" ended in a draw.");
+                break;
+            case PLAYER:
+                line.append("Game ").append(game).append(": Player ").append(player).append(' ').append(text).append('.');
+                break;
+            default:
+                line.append(text);
+        }
+    }
+
+    /**
+     * Writes one batch with a single call, rolling the file over first if it would pass its limit
+     */
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file == null) {
+                System.out.write(bytes, 0, bytes.length);
+                System.out.flush();
+                return;
+            }
+            if (fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+                roll();
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            System.out.println("Log write failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves file to file.1, file.1 to file.2 and so on, dropping the oldest, and starts a new file
+     */
+    private void roll() throws IOException {
+        out.close();
+        for (int i = ROLLED_FILES - 1; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        out = new FileOutputStream(file.toFile(), true);
+        fileBytes = 0;
+    }
+
+    /**
+     * Writes what is left in the ring and waits for it, for shutdown
+     */
+    private void stop() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and the move latency histogram. Recording goes through
+ * striped LongAdders, so the game threads never contend on a shared counter;
+ * reads add up the stripes and are only paid for by JMX and the HTTP endpoint.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    static final String OBJECT_NAME = "TicTacToe:type=ServerMetrics";
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder gamesEnded = new LongAdder();
+    private final LongAdder rematches = new LongAdder();
+    private final LongAdder invalidMoves = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder turnTimeouts = new LongAdder();
+    private final LongAdder messagesThrottled = new LongAdder();
+    private final LongAdder floodDisconnects = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    // One sample per valid move whose update reached the opponent's socket
+    private final LatencyHistogram moveLatency = new LatencyHistogram();
+
+    // Previous sample for getMovesPerSecond(), guarded by this
+    private long rateSampledAt = System.nanoTime();
+    private long rateSampledMoves;
+    private double movesPerSecond;
+
+    void connectionOpened() {
+        connectionsAccepted.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void gameStarted() {
+        gamesStarted.increment();
+    }
+
+    void gameEnded() {
+        gamesEnded.increment();
+    }
+
+    /**
+     * A game started as a rematch on connections kept from the last one
+     */
+    void rematchStarted() {
+        rematches.increment();
+    }
+
+    /**
+     * A valid move
+     */
+    void moveProcessed() {
+        moves.increment();
+    }
+
+    /**
+     * The update for a valid move has been written to the opponent's socket; readAt is
+     * the System.nanoTime() at which the MOVE was read
+     */
+    void moveWritten(long readAt) {
+        moveLatency.record(System.nanoTime() - readAt);
+    }
+
+    void invalidMove() {
+        invalidMoves.increment();
+    }
+
+    /**
+     * A player that left a game before it was over
+     */
+    void playerDisconnected() {
+        disconnects.increment();
+    }
+
+    /**
+     * A connection dropped for sending nothing for the idle timeout
+     */
+    void idleTimedOut() {
+        idleTimeouts.increment();
+    }
+
+    /**
+     * A player that lost a game by running out of time on its turn
+     */
+    void turnTimedOut() {
+        turnTimeouts.increment();
+    }
+
+    /**
+     * A message after which a client over its rate limit had to wait
+     */
+    void messagesThrottled() {
+        messagesThrottled.increment();
+    }
+
+    /**
+     * A client disconnected for staying over its rate limit
+     */
+    void floodDisconnected() {
+        floodDisconnects.increment();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return connectionsAccepted.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    @Override
+    public long getActiveGames() {
+        return gamesStarted.sum() - gamesEnded.sum();
+    }
+
+    @Override
+    public long getRematches() {
+        return rematches.sum();
+    }
+
+    @Override
+    public long getMovesProcessed() {
+        return moves.sum();
+    }
+
+    @Override
+    public long getInvalidMoves() {
+        return invalidMoves.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public long getTurnTimeouts() {
+        return turnTimeouts.sum();
+    }
+
+    @Override
+    public long getMessagesThrottled() {
+        return messagesThrottled.sum();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return ServerLog.getDropped();
+    }
+
+    /**
+     * Moves per second since the previous call, or over the last reading if
+     * that was less than a second ago
+     */
+    @Override
+    public synchronized double getMovesPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateSampledAt >= 1_000_000_000L) {
+            long total = moves.sum();
+            movesPerSecond = (total - rateSampledMoves) * 1e9 / (now - rateSampledAt);
+            rateSampledMoves = total;
+            rateSampledAt = now;
+        }
+        return movesPerSecond;
+    }
+
+    @Override
+    public double getMoveLatencyMeanMicros() {
+        return moveLatency.getMean() / 1e3;
+    }
+
+    @Override
+    public long getMoveLatencyP50Micros() {
+        return moveLatency.getPercentile(50) / 1_000;
+    }
+
+    @Override
+    public long getMoveLatencyP99Micros() {
+        return moveLatency.getPercentile(99) / 1_000;
+    }
+
+    @Override
+    public long getMoveLatencyP999Micros() {
+        return moveLatency.getPercentile(99.9) / 1_000;
+    }
+
+    @Override
+    public long getMoveLatencyMaxMicros() {
+        return moveLatency.getMax() / 1_000;
+    }
+
+    /**
+     * All metrics plus the lobby's queue statistics, one "name value" line each
+     * (the Prometheus text format)
+     */
+    String toText(Lobby lobby) {
+        StringBuilder text = new StringBuilder(1024);
+        line(text, "tictactoe_node_id", TicTacToeServer.config.nodeId);
+        line(text, "tictactoe_connections_accepted_total", getConnectionsAccepted());
+        line(text, "tictactoe_connections_open", getOpenConnections());
+        line(text, "tictactoe_games_started_total", getGamesStarted());
+        line(text, "tictactoe_games_active", getActiveGames());
+        line(text, "tictactoe_rematches_total", getRematches());
+        line(text, "tictactoe_moves_total", getMovesProcessed());
+        line(text, "tictactoe_invalid_moves_total", getInvalidMoves());
+        line(text, "tictactoe_disconnects_total", getDisconnects());
+        line(text, "tictactoe_idle_timeouts_total", getIdleTimeouts());
+        line(text, "tictactoe_turn_timeouts_total", getTurnTimeouts());
+        line(text, "tictactoe_messages_throttled_total", getMessagesThrottled());
+        line(text, "tictactoe_flood_disconnects_total", getFloodDisconnects());
+        line(text, "tictactoe_log_lines_dropped_total", getLogLinesDropped());
+        line(text, "tictactoe_moves_per_second", getMovesPerSecond());
+        line(text, "tictactoe_move_latency_micros{quantile=\"0.5\"}", getMoveLatencyP50Micros());
+        line(text, "tictactoe_move_latency_micros{quantile=\"0.99\"}", getMoveLatencyP99Micros());
+        line(text, "tictactoe_move_latency_micros{quantile=\"0.999\"}", getMoveLatencyP999Micros());
+        line(text, "tictactoe_move_latency_micros{quantile=\"1\"}", getMoveLatencyMaxMicros());
+        line(text, "tictactoe_move_latency_micros_count", getMovesProcessed());
+
+        if (lobby != null) {
+            for (Lobby.MatchQueue queue : lobby.getQueues()) {
+                String label = "{queue=\"" + queue.getName() + "\"}";
+                line(text, "tictactoe_queue_depth" + label, queue.getDepth());
+                line(text, "tictactoe_queue_matches_total" + label, queue.getMatches());
+                line(text, "tictactoe_queue_bot_matches_total" + label, queue.getBotMatches());
+                line(text, "tictactoe_queue_wait_millis_avg" + label, queue.getAverageWaitMillis());
+                line(text, "tictactoe_queue_wait_millis_max" + label, queue.getMaxWaitMillis());
+            }
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder text, String name, double value) {
+        text.append(name).append(' ').append(String.format(Locale.ROOT, "%.2f", value)).append('\n');
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, for jconsole and friends
+     */
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves toText() at http://127.0.0.1:port/metrics. Only bound to loopback;
+     * anything wider belongs behind a proper scraper.
+     */
+    HttpServer startHttp(int port, Lobby lobby) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toText(lobby).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * JMX view of ServerMetrics, registered as TicTacToe:type=ServerMetrics.
+ * Latencies are the time from reading a MOVE to writing the opponent's TURN.
+ */
+public interface ServerMetricsMBean {
+
+    long getConnectionsAccepted();
+
+    long getOpenConnections();
+
+    long getGamesStarted();
+
+    long getActiveGames();
+
+    long getRematches();
+
+    long getMovesProcessed();
+
+    long getInvalidMoves();
+
+    long getDisconnects();
+
+    long getIdleTimeouts();
+
+    long getTurnTimeouts();
+
+    long getMessagesThrottled();
+
+    long getFloodDisconnects();
+
+    long getLogLinesDropped();
+
+    double getMovesPerSecond();
+
+    double getMoveLatencyMeanMicros();
+
+    long getMoveLatencyP50Micros();
+
+    long getMoveLatencyP99Micros();
+
+    long getMoveLatencyP999Micros();
+
+    long getMoveLatencyMaxMicros();
+}
@@ -0,0 +1,205 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks --slow-client=block on both transports, runnable on its own without a server.
+ * Usage: java SlowClientTest
+ *
+ * Five clients connect; on --transport=nio they land on two event loops in turn, so
+ * clients 0, 2 and 4 share one loop and 1 and 3 the other. Clients 0 and 3 never read.
+ * Client 1 (second loop) sends to client 0 (first loop), and client 2 sends to client 3
+ * the other way round, as opponents' moves would. Senders must never wait for those
+ * slow readers: clients 1 and 2 keep getting their replies, and the slow readers are
+ * disconnected. Client 4 floods itself with replies without reading; it must only be
+ * paused, and get every reply once it reads again. Exits with status 1 on failure.
+ */
+public class SlowClientTest {
+
+    private static final int CLIENTS = 5;
+    private static final int MAX_QUEUED_BYTES = 8 * 1024;
+    private static final int ROUNDS = 200;
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final String PAYLOAD = "MESSAGE " + "x".repeat(64 * 1024);
+
+    // Who each client's MOVE 1 is passed on to; -1 if nobody
+    private static final int[] PARTNER = {-1, 0, 3, -1, -1};
+
+    private final Connection[] connections = new Connection[CLIENTS];
+    private final CountDownLatch[] closed = new CountDownLatch[CLIENTS];
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    SlowClientTest() {
+        for (int i = 0; i < CLIENTS; i++) {
+            closed[i] = new CountDownLatch(1);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            new SlowClientTest().run("nio");
+            new SlowClientTest().run("thread");
+        } catch (IllegalStateException | IOException | InterruptedException e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    void run(String transport) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int port = transport.equals("nio") ? startNio() : startThreads();
+
+        Socket[] clients = new Socket[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = new Socket();
+            if (i == 0 || i == 3 || i == 4) {
+                clients[i].setReceiveBufferSize(4096);
+            }
+            clients[i].connect(new InetSocketAddress("localhost", port));
+            clients[i].setSoTimeout(TIMEOUT_MILLIS);
+            // Accepted one at a time, so the event loops are taken in order
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+            while (accepted.get() <= i) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException(transport + ": client " + i + " was not accepted");
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        OutputStream self = clients[4].getOutputStream();
+        for (int r = 0; r < ROUNDS; r++) {
+            self.write("MOVE 2\n".getBytes(StandardCharsets.UTF_8));
+        }
+        self.flush();
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int sender : new int[] {1, 2}) {
+            Socket client = clients[sender];
+            Thread thread = new Thread(() -> {
+                try {
+                    sendRounds(client);
+                } catch (SocketTimeoutException e) {
+                    failure.compareAndSet(null, transport + ": client " + sender
+                        + " stalled behind a slow reader on another client");
+                } catch (IOException e) {
+                    failure.compareAndSet(null, transport + ": client " + sender + " failed: " + e.getMessage());
+                }
+            });
+            thread.start();
+            senders.add(thread);
+        }
+        for (Thread thread : senders) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+
+        for (int slow : new int[] {0, 3}) {
+            if (!closed[slow].await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException(transport + ": slow reader " + slow + " was not disconnected");
+            }
+        }
+        if (closed[4].getCount() == 0) {
+            throw new IllegalStateException(transport + ": client 4 was disconnected for its own replies");
+        }
+
+        BufferedReader replies = new BufferedReader(new InputStreamReader(clients[4].getInputStream(), StandardCharsets.UTF_8));
+        for (int r = 0; r < ROUNDS; r++) {
+            String line;
+            try {
+                line = replies.readLine();
+            } catch (SocketTimeoutException e) {
+                line = null;
+            }
+            if (!PAYLOAD.equals(line)) {
+                throw new IllegalStateException(transport + ": client 4 got " + r + " of its " + ROUNDS + " replies");
+            }
+        }
+
+        for (Socket client : clients) {
+            client.close();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("OK: " + transport + " in " + millis + " ms");
+    }
+
+    /**
+     * Has the partner sent a payload, then waits for the reply, ROUNDS times
+     */
+    private static void sendRounds(Socket client) throws IOException {
+        OutputStream output = client.getOutputStream();
+        BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        for (int r = 0; r < ROUNDS; r++) {
+            output.write("MOVE 1\n".getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            String line = input.readLine();
+            if (!"MESSAGE ok".equals(line)) {
+                throw new IOException("unexpected reply " + line);
+            }
+        }
+    }
+
+    private int startNio() throws IOException {
+        NioTransport transport = new NioTransport(0, 2, 1024, this::accept);
+        transport.start();
+        return transport.getLocalPort();
+    }
+
+    private int startThreads() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    ThreadConnection connection = new ThreadConnection(server.accept(), 1024);
+                    accept(connection);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // The test is over
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    private void accept(Connection connection) {
+        int index = accepted.get();
+        connection.setOutboundLimit(MAX_QUEUED_BYTES, Connection.Overflow.BLOCK);
+        connection.setHandler(new Connection.Handler() {
+            public void onMessage(ProtocolCodec message) {
+                if (message.type() != ProtocolCodec.Type.MOVE) {
+                    return;
+                }
+                if (message.cell() == 1) {
+                    connections[PARTNER[index]].send(PAYLOAD);
+                    connection.send("MESSAGE ok");
+                } else {
+                    connection.send(PAYLOAD);
+                }
+            }
+
+            public void onClose() {
+                closed[index].countDown();
+            }
+        });
+        connections[index] = connection;
+        accepted.incrementAndGet();
+    }
+}
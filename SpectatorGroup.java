@@ -0,0 +1,156 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The spectators of one game. Each update is encoded once per protocol, and those
+ * same bytes are handed to every watcher's connection. Updates are sent by a shared
+ * pool of fan-out threads rather than the players' threads, so however slow a watcher
+ * is, the players never wait for it. A game's updates run one at a time, in order,
+ * through its own task queue, so the watcher list needs no lock.
+ */
+public class SpectatorGroup {
+
+    private static final ExecutorService fanOut = Executors.newFixedThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors() / 2), task -> {
+            Thread thread = new Thread(task, "spectator-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final GameSession session;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // Watchers joined or joining; updates are only encoded while this is non-zero
+    private final AtomicInteger watcherCount = new AtomicInteger();
+
+    // Only used by the task being drained
+    private final List<TicTacToeServer.Player> watchers = new ArrayList<>();
+    private boolean finished;
+
+    /**
+     * One update in both encodings: a board, plus a closing message at the end of the game
+     */
+    private static final class Update {
+        final byte[] text;
+        final byte[] binary;
+
+        Update(Board board, String message) {
+            String lines = board.toProtocolString() + "\n";
+            byte[] frame = BinaryProtocol.board(board);
+            if (message == null) {
+                text = lines.getBytes(StandardCharsets.UTF_8);
+                binary = frame;
+                return;
+            }
+            text = (lines + "MESSAGE " + message + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] messageFrame = BinaryProtocol.withText(BinaryProtocol.MESSAGE, message);
+            binary = new byte[frame.length + messageFrame.length];
+            System.arraycopy(frame, 0, binary, 0, frame.length);
+            System.arraycopy(messageFrame, 0, binary, frame.length, messageFrame.length);
+        }
+    }
+
+    SpectatorGroup(GameSession session) {
+        this.session = session;
+    }
+
+    public int getWatcherCount() {
+        return watcherCount.get();
+    }
+
+    /**
+     * Adds a watcher; it gets the current board, then every update until the game ends
+     */
+    void watch(TicTacToeServer.Player player) {
+        watcherCount.incrementAndGet();
+        submit(() -> {
+            if (finished) {
+                watcherCount.decrementAndGet();
+                player.sendMessage("Game " + session.id + " is over.");
+                player.connection.close();
+                return;
+            }
+            player.sendSpectating(session.id, session.getBoardSize(), session.getWinLength());
+            player.sendBoard(session.getBoardSnapshot());
+            watchers.add(player);
+        });
+    }
+
+    /**
+     * Sends the board after a move to every watcher; called by the player that moved
+     */
+    void publish() {
+        if (watcherCount.get() > 0) {
+            Board snapshot = session.getBoardSnapshot();
+            submit(() -> broadcast(new Update(snapshot, null)));
+        }
+    }
+
+    /**
+     * Sends the final board and result, then closes every watcher's connection
+     */
+    void finish(String result) {
+        Board snapshot = session.getBoardSnapshot();
+        submit(() -> {
+            finished = true;
+            if (!watchers.isEmpty()) {
+                broadcast(new Update(snapshot, "Game over: " + result));
+            }
+            for (TicTacToeServer.Player watcher : watchers) {
+                watcher.connection.close();
+            }
+            watcherCount.addAndGet(-watchers.size());
+            watchers.clear();
+        });
+    }
+
+    private void broadcast(Update update) {
+        int i = 0;
+        while (i < watchers.size()) {
+            TicTacToeServer.Player watcher = watchers.get(i);
+            if (!watcher.connected) {
+                // Swap-remove: order among watchers doesn't matter
+                watchers.set(i, watchers.get(watchers.size() - 1));
+                watchers.remove(watchers.size() - 1);
+                watcherCount.decrementAndGet();
+                continue;
+            }
+            watcher.connection.sendEncoded(watcher.sendsBinary() ? update.binary : update.text);
+            i++;
+        }
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        if (draining.compareAndSet(false, true)) {
+            fanOut.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs this game's queued tasks in order; only one thread drains a game at a time
+     */
+    private void drain() {
+        while (true) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info("Game " + session.id + ": spectator update failed: " + e.getMessage());
+                }
+            }
+            draining.set(false);
+            if (tasks.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
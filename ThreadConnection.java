@@ -0,0 +1,235 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Classic transport: one platform thread per socket, blocked reading the next message.
+ * Output is queued and written by a shared pool of writer threads, so a thread sending
+ * to a slow client never waits on its socket; whatever has queued up meanwhile goes
+ * out in a single flush.
+ */
+public class ThreadConnection extends Connection implements Runnable {
+
+    // Threads are only held while a connection has output to write
+    private static final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "connection-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final ProtocolReader input;
+    private final OutputStream output;
+
+    // Guarded by this; queuedBytes includes the batch being written
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>(4);
+    private long queuedBytes;
+    private boolean writing;
+    private boolean closing;
+    private boolean closed;
+
+    /**
+     * maxLineLength bounds an incoming line; a longer one closes the connection before any of it is parsed
+     */
+    public ThreadConnection(Socket socket, int maxLineLength) throws IOException {
+        this.socket = socket;
+        input = new ProtocolReader(socket.getInputStream(), maxLineLength);
+        output = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Starts the reader thread. Call after the handler has been set.
+     */
+    public void start() {
+        new Thread(this, "connection-" + socket.getPort()).start();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                if (!(binaryInput ? input.readFrame(decoder) : input.readLine(decoder))) {
+                    break;
+                }
+                dispatchMessage();
+                awaitOutput();
+
+                // A client over its message budget waits with its input in the socket
+                long pause = inboundPauseNanos();
+                if (pause < 0) {
+                    break;
+                }
+                if (pause > 0) {
+                    Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                }
+            }
+        } catch (SocketException e) {
+            // Closed by the client or by close()
+        } catch (Exception e) {
+            ServerLog.info("Connection error from " + getRemoteAddress() + ": " + e.getMessage());
+        } finally {
+            abort();
+            dispatchClose();
+        }
+    }
+
+    @Override
+    public void send(String line) {
+        write((line + "\n").getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    @Override
+    public void sendFrame(byte[] frame) {
+        write(frame, false);
+    }
+
+    @Override
+    public void sendEncoded(byte[] encoded) {
+        write(encoded, true);
+    }
+
+    /**
+     * Queues a message, shared with other connections or not, applying the overflow
+     * policy if the client is behind, and starts a writer unless one is already at work.
+     * Never waits; under BLOCK the reader thread waits instead, in awaitOutput().
+     */
+    private void write(byte[] bytes, boolean shared) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closing || closed) {
+                return;
+            }
+            if (!fits(queuedBytes, bytes.length)) {
+                Overflow policy = overflowFor(shared);
+                if (policy != Overflow.BLOCK) {
+                    logOverflow(queuedBytes, policy);
+                    if (policy == Overflow.DROP) {
+                        return;
+                    }
+                    disconnect = true;
+                }
+            }
+            if (!disconnect) {
+                queue.add(bytes);
+                queuedBytes += bytes.length;
+                queued(bytes.length);
+                if (writing) {
+                    return;
+                }
+                writing = true;
+            }
+        }
+        if (disconnect) {
+            abort();
+        } else {
+            writers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Stops reading, on the reader thread, while BLOCK has let this client's output
+     * run past its limit; the client's next message waits in its socket
+     */
+    private synchronized void awaitOutput() throws InterruptedException {
+        while (!closed && outputBlocked(queuedBytes)) {
+            wait();
+        }
+    }
+
+    /**
+     * Writes queued messages until there are none left, each batch with one flush;
+     * then finishes a close() that was waiting for them
+     */
+    private void drain() {
+        while (true) {
+            byte[][] batch;
+            synchronized (this) {
+                if (queue.isEmpty() || closed) {
+                    writing = false;
+                    if (!closing || closed) {
+                        return;
+                    }
+                    closed = true;
+                    batch = null;
+                } else {
+                    batch = queue.toArray(new byte[0][]);
+                    queue.clear();
+                }
+            }
+            if (batch == null) {
+                closeSocket();
+                return;
+            }
+            long written = 0;
+            try {
+                for (byte[] bytes : batch) {
+                    output.write(bytes);
+                    written += bytes.length;
+                }
+                output.flush();
+            } catch (IOException e) {
+                // The reader thread notices the broken socket and cleans up
+                abort();
+                return;
+            }
+            synchronized (this) {
+                queuedBytes -= written;
+                written(written);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes the socket once queued output has been written
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closing || closed) {
+                return;
+            }
+            closing = true;
+            if (writing) {
+                return;
+            }
+            closed = true;
+        }
+        closeSocket();
+    }
+
+    @Override
+    public void abort() {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+            discarded();
+            notifyAll();
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (Exception e) {
+            ServerLog.info("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
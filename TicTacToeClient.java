@@ -1,5 +1,5 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
@@ -8,30 +8,136 @@ import java.util.Scanner;
 public class TicTacToeClient {
 
     private static String[] board = new String[9];
+    private static int boardSize = 3;
     private static String myMark = "";
     private static boolean gameActive = true;
+    // Watching someone else's game: boards are printed as they arrive
+    private static boolean spectating = false;
+
+    // Set once BinaryProtocol is negotiated for each direction
+    private static boolean binaryInput = false;
+    private static boolean binaryOutput = false;
+
+    // Set once the server agreed to keep the connection between games, and while we
+    // wait for the rematch or new opponent asked for after one
+    private static boolean staysConnected = false;
+    private static boolean betweenGames = false;
+
+    private static PrintWriter out;
+    private static OutputStream rawOut;
 
     static void printBoard() {
+        // Every cell is as wide as the largest cell number
+        int width = String.valueOf(board.length).length();
+        String edge = " |" + "-".repeat(width + 2).concat("|").repeat(boardSize) + " ";
+        String divider = " |" + "-".repeat(boardSize * (width + 3) - 1) + "| ";
+
         System.out.println();
-        System.out.println(" |---|---|---| ");
-        System.out.println(" | " + board[0] + " | " + board[1] + " | " + board[2] + " | ");
-        System.out.println(" |-----------| ");
-        System.out.println(" | " + board[3] + " | " + board[4] + " | " + board[5] + " | ");
-        System.out.println(" |-----------| ");
-        System.out.println(" | " + board[6] + " | " + board[7] + " | " + board[8] + " | ");
-        System.out.println(" |---|---|---| ");
+        System.out.println(edge);
+        for (int row = 0; row < boardSize; row++) {
+            StringBuilder line = new StringBuilder(" |");
+            for (int col = 0; col < boardSize; col++) {
+                String cell = board[row * boardSize + col];
+                line.append(' ').append(" ".repeat(width - cell.length())).append(cell).append(" |");
+            }
+            System.out.println(line.append(' '));
+            System.out.println(row < boardSize - 1 ? divider : edge);
+        }
         System.out.println();
     }
 
     /**
-     * Updates the local board array from a server message
+     * Starts an empty size x size board, each cell showing its number
+     */
+    static void resetBoard(int size) {
+        boardSize = size;
+        board = new String[size * size];
+        for (int i = 0; i < board.length; i++) {
+            board[i] = String.valueOf(i + 1);
+        }
+    }
+
+    /**
+     * Updates the local board array from a BOARD message
+     */
+    static void updateBoard(ProtocolCodec message) {
+        if (message.size() != boardSize) {
+            resetBoard(message.size());
+        }
+        for (int i = 0; i < board.length; i++) {
+            char mark = message.cellMark(i);
+            board[i] = mark == 'X' ? "X" : mark == 'O' ? "O" : String.valueOf(i + 1);
+        }
+    }
+
+    /**
+     * Applies a single-cell update; asks the server for the full board if it
+     * doesn't fit what we have, which means an earlier update was missed
+     */
+    static void applyDelta(int cell, String mark) throws IOException {
+        if (cell < 0 || cell >= board.length || board[cell].equals(mark.equals("X") ? "O" : "X")) {
+            sendCommand(BinaryProtocol.sync(), "SYNC");
+            return;
+        }
+        board[cell] = mark;
+    }
+
+    /**
+     * Reads the next server message into message and returns its type, or null at end
+     * of stream. Boards are applied here, and so are deltas: a delta's TURN or WAIT is
+     * returned as that message, and END is skipped.
+     */
+    static ProtocolCodec.Type readMessage(ProtocolReader in, ProtocolCodec message) throws IOException {
+        while (binaryInput ? in.readFrame(message) : in.readLine(message)) {
+            if (message.type() == ProtocolCodec.Type.BOARD) {
+                updateBoard(message);
+            } else if (message.type() == ProtocolCodec.Type.DELTA) {
+                applyDelta(message.cell(), message.mark() == 'X' ? "X" : "O");
+                if (message.status() == BinaryProtocol.TURN) {
+                    return ProtocolCodec.Type.TURN;
+                }
+                if (message.status() == BinaryProtocol.WAIT) {
+                    return ProtocolCodec.Type.WAIT;
+                }
+                continue;
+            }
+            return message.type();
+        }
+        return null;
+    }
+
+    /**
+     * Sends a command as a frame or a text line, whichever was negotiated
      */
-    static void updateBoard(String boardState) {
-        String[] parts = boardState.split(",");
-        if (parts.length == 9) {
-            for (int i = 0; i < 9; i++) {
-                board[i] = parts[i];
+    static void sendCommand(byte[] frame, String line) throws IOException {
+        if (binaryOutput) {
+            rawOut.write(frame);
+            rawOut.flush();
+        } else {
+            out.println(line);
+        }
+    }
+
+    /**
+     * After a game on a connection the server keeps: asks whether to play the same
+     * opponent again, someone new, or stop. Returns false to stop.
+     */
+    static boolean chooseNextGame(Scanner sc) throws IOException {
+        System.out.print("Play again? [r]ematch, [n]ew opponent or [q]uit: ");
+        while (true) {
+            String choice = sc.hasNextLine() ? sc.nextLine().trim().toLowerCase() : "q";
+            if (choice.startsWith("r")) {
+                sendCommand(BinaryProtocol.rematch(), "REMATCH");
+            } else if (choice.startsWith("n")) {
+                sendCommand(BinaryProtocol.newGame(null), "NEWGAME");
+            } else if (choice.startsWith("q")) {
+                return false;
+            } else {
+                System.out.print("Enter r, n or q: ");
+                continue;
             }
+            betweenGames = true;
+            return true;
         }
     }
 
@@ -60,97 +166,170 @@ public class TicTacToeClient {
         }
 
         Socket socket = null;
-        BufferedReader in = null;
-        PrintWriter out = null;
+        ProtocolReader in = null;
 
         try {
             System.out.println("Connecting to " + serverAddress + ":" + port + "...");
             socket = new Socket(serverAddress, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new ProtocolReader(socket.getInputStream(), 64 * 1024);
+            rawOut = socket.getOutputStream();
+            out = new PrintWriter(rawOut, true);
 
             System.out.println("Connected to server. Waiting for game to start...");
+            
+            // Optional matchmaking queue, e.g. "java TicTacToeClient ranked", "bot" to play the
+            // server's bot, "resume <game> <code>" to rejoin a game after a server restart,
+            // or "watch <game>" to watch a game being played
+            if (args.length > 0 && args[0].equalsIgnoreCase("bot")) {
+                out.println("BOT");
+            } else if (args.length == 2 && args[0].equalsIgnoreCase("watch")) {
+                out.println("SPECTATE " + args[1]);
+            } else if (args.length == 3 && args[0].equalsIgnoreCase("resume")) {
+                out.println("RESUME " + args[1] + " " + args[2]);
+            } else if (args.length > 0) {
+                out.println("QUEUE " + args[0]);
+            }
 
-            String line;
-            while (gameActive && (line = in.readLine()) != null) {
-                
-                if (line.startsWith("WELCOME")) {
-                    myMark = line.split(" ")[1];
-                    System.out.println("\n=== You are Player " + myMark + " ===");
+            ProtocolCodec message = new ProtocolCodec();
+            ProtocolCodec.Type type;
+            while (gameActive && (type = readMessage(in, message)) != null) {
+                switch (type) {
+                    case WELCOME: {
+                        myMark = message.mark() == 'X' ? "X" : "O";
+                        betweenGames = false;
+                    
+                        // Ask for the protocol features the server offers; only the first
+                        // WELCOME of a connection offers any, and REMATCH must go before BINARY
+                        if (message.offersDelta()) {
+                            out.println(BinaryProtocol.DELTA_NEGOTIATE_LINE);
+                        }
+                        if (message.offersRematch()) {
+                            out.println(BinaryProtocol.REMATCH_NEGOTIATE_LINE);
+                            staysConnected = true;
+                        }
+                        if (message.offersBinary()) {
+                            out.println(BinaryProtocol.NEGOTIATE_LINE);
+                            binaryOutput = true;
+                        }
+                        int size = message.size();
+                        System.out.println("\n=== You are Player " + myMark + " ===");
+                        if (size != 3) {
+                            System.out.println("=== " + size + "x" + size + " board, "
+                                + message.winLength() + " in a row wins ===");
+                        }
                     
-                    // Initialize empty board for display
-                    for (int i = 0; i < 9; i++) {
-                        board[i] = String.valueOf(i + 1);
+                        // Initialize empty board for display
+                        resetBoard(size);
+                        break;
                     }
                     
-                } else if (line.startsWith("MESSAGE")) {
-                    System.out.println(">>> " + line.substring(8));
+                    case SPECTATING: {
+                        int size = message.size();
+                        System.out.println("\n=== Watching game " + message.gameId() + ": " + size + "x" + size
+                            + " board, " + message.winLength() + " in a row wins ===");
+                        spectating = true;
+                        resetBoard(size);
+                        break;
+                    }
+
+                    case MESSAGE:
+                        System.out.println(">>> " + message.text());
+                        break;
+
+                    case PING:
+                        // The server checks we're still here
+                        sendCommand(BinaryProtocol.pong(), "PONG");
+                        break;
                     
-                } else if (line.matches("[XO0-9, ]+") && line.contains(",")) {
-                    // Board state update - update immediately and check next command
-                    updateBoard(line);
+                    case PROTOCOL_BINARY:
+                        // Server acknowledged; everything after this line is framed
+                        binaryInput = true;
+                        break;
                     
-                } else if (line.startsWith("TURN")) {
-                    printBoard();
-                    System.out.println("=== YOUR TURN ===");
-                    System.out.print("Enter a slot number (1-9): ");
+                    case BOARD:
+                        // Already applied by readMessage
+                        if (spectating) {
+                            printBoard();
+                        }
+                        break;
                     
-                    int numInput = -1;
-                    boolean validInput = false;
+                    case TURN: {
+                        printBoard();
+                        System.out.println("=== YOUR TURN ===");
+                        System.out.print("Enter a slot number (1-" + board.length + "): ");
                     
-                    while (!validInput) {
-                        try {
-                            if (sc.hasNextInt()) {
-                                numInput = sc.nextInt();
-                                sc.nextLine(); // Clear buffer
+                        int numInput = -1;
+                        boolean validInput = false;
+                    
+                        while (!validInput) {
+                            try {
+                                if (sc.hasNextInt()) {
+                                    numInput = sc.nextInt();
+                                    sc.nextLine(); // Clear buffer
                                 
-                                if (numInput >= 1 && numInput <= 9) {
-                                    validInput = true;
-                                    out.println("MOVE " + (numInput - 1)); // Send 0-indexed move
+                                    if (numInput >= 1 && numInput <= board.length) {
+                                        validInput = true;
+                                        // Send 0-indexed move
+                                        sendCommand(BinaryProtocol.move(numInput - 1), "MOVE " + (numInput - 1));
+                                    } else {
+                                        System.out.print("Invalid input. Enter a number between 1-" + board.length + ": ");
+                                    }
                                 } else {
-                                    System.out.print("Invalid input. Enter a number between 1-9: ");
+                                    sc.nextLine(); // Clear invalid input
+                                    System.out.print("Invalid input. Enter a number between 1-" + board.length + ": ");
                                 }
-                            } else {
-                                sc.nextLine(); // Clear invalid input
-                                System.out.print("Invalid input. Enter a number between 1-9: ");
+                            } catch (Exception e) {
+                                System.out.print("Error reading input. Try again: ");
+                                sc.nextLine(); // Clear buffer
                             }
-                        } catch (Exception e) {
-                            System.out.print("Error reading input. Try again: ");
-                            sc.nextLine(); // Clear buffer
                         }
+                        break;
                     }
 
-                } else if (line.startsWith("WAIT")) {
-                    printBoard();
-                    System.out.println("\n>>> Waiting for opponent's move...");
+                    case WAIT:
+                        printBoard();
+                        System.out.println("\n>>> Waiting for opponent's move...");
+                        break;
                     
-                } else if (line.startsWith("VICTORY")) {
-                    System.out.println("\n╔═══════════════════════════════╗");
-                    System.out.println("║   🎉 CONGRATULATIONS! 🎉      ║");
-                    System.out.println("║         YOU WON!              ║");
-                    System.out.println("╚═══════════════════════════════╝\n");
-                    gameActive = false;
-                    break;
+                    case VICTORY:
+                        System.out.println("\n╔═══════════════════════════════╗");
+                        System.out.println("║   🎉 CONGRATULATIONS! 🎉      ║");
+                        System.out.println("║         YOU WON!              ║");
+                        System.out.println("╚═══════════════════════════════╝\n");
+                        gameActive = false;
+                        break;
                     
-                } else if (line.startsWith("DEFEAT")) {
-                    String winner = line.split(" ")[1];
-                    System.out.println("\n╔═══════════════════════════════╗");
-                    System.out.println("║      Game Over - You Lost     ║");
-                    System.out.println("║   Player " + winner + " wins the game!    ║");
-                    System.out.println("╚═══════════════════════════════╝\n");
-                    gameActive = false;
-                    break;
+                    case DEFEAT:
+                        char winner = message.mark();
+                        System.out.println("\n╔═══════════════════════════════╗");
+                        System.out.println("║      Game Over - You Lost     ║");
+                        System.out.println("║   Player " + winner + " wins the game!    ║");
+                        System.out.println("╚═══════════════════════════════╝\n");
+                        gameActive = false;
+                        break;
                     
-                } else if (line.startsWith("DRAW")) {
-                    System.out.println("\n╔═══════════════════════════════╗");
-                    System.out.println("║      Game Over - Draw!        ║");
-                    System.out.println("║     Well played both!         ║");
-                    System.out.println("╚═══════════════════════════════╝\n");
-                    gameActive = false;
-                    break;
+                    case DRAW:
+                        System.out.println("\n╔═══════════════════════════════╗");
+                        System.out.println("║      Game Over - Draw!        ║");
+                        System.out.println("║     Well played both!         ║");
+                        System.out.println("╚═══════════════════════════════╝\n");
+                        gameActive = false;
+                        break;
                     
-                } else if (line.startsWith("INVALID")) {
-                    System.out.println(">>> " + line);
+                    case INVALID:
+                        System.out.println(">>> INVALID " + message.text());
+                        if (betweenGames) {
+                            // The rematch or new game we asked for fell through
+                            gameActive = false;
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+                if (!gameActive && staysConnected) {
+                    // The server keeps the connection: play again on it, or stop here
+                    gameActive = chooseNextGame(sc);
                 }
             }
             
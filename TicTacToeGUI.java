@@ -1,31 +1,64 @@
 import java.awt.*;
 import java.awt.event.*;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import javax.swing.*;
 
 public class TicTacToeGUI extends JFrame {
     
-    private JButton[] buttons = new JButton[9];
+    private BoardView board;
     private JLabel statusLabel;
+    private JLabel latencyLabel;
     private JTextArea messageArea;
     private String myMark = "";
     private boolean myTurn = false;
     private boolean gameActive = true;
     
-    private Socket socket;
-    private BufferedReader in;
+    private String serverAddress;
+    private int serverPort;
+    private volatile Socket socket;
+    private ProtocolReader in;
     private PrintWriter out;
+    private OutputStream rawOut;
     
-    private static final Color BACKGROUND_COLOR = new Color(44, 62, 80);
-    private static final Color BUTTON_COLOR = new Color(52, 73, 94);
-    private static final Color BUTTON_HOVER = new Color(71, 85, 105);
-    private static final Color X_COLOR = new Color(231, 76, 60);
-    private static final Color O_COLOR = new Color(52, 152, 219);
+    // Moves drawn before the server confirmed them, oldest first; EDT only. The server
+    // answers every MOVE in order, with an update or INVALID, so the head is always
+    // the move its next answer is about.
+    private final ArrayDeque<PendingMove> pendingMoves = new ArrayDeque<>();
+    private int nextMoveSeq = 1;
+    private long confirmedNanos;
+    private int confirmedMoves;
+    
+    // Set once BinaryProtocol is negotiated for each direction
+    private boolean binaryInput = false;
+    private volatile boolean binaryOutput = false;
+    
+    // Set once the server agreed to keep the connection between games; then the end
+    // of a game offers a rematch or a new opponent instead of reconnecting
+    private volatile boolean staysConnected = false;
+    // Asked for a rematch or a new opponent and waiting for the next game; EDT only
+    private boolean awaitingNextGame = false;
+    
+    private static final Color BACKGROUND_COLOR = BoardView.BACKGROUND_COLOR;
     private static final Color TEXT_COLOR = new Color(236, 240, 241);
     
+    /**
+     * A move shown on the board that the server hasn't answered yet
+     */
+    private static final class PendingMove {
+        final int seq;
+        final int cell;
+        final long sentAt;
+        
+        PendingMove(int seq, int cell, long sentAt) {
+            this.seq = seq;
+            this.cell = cell;
+            this.sentAt = sentAt;
+        }
+    }
+    
     public TicTacToeGUI() {
         setTitle("Tic Tac Toe - Multiplayer");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -43,53 +76,24 @@ public class TicTacToeGUI extends JFrame {
         getContentPane().setBackground(BACKGROUND_COLOR);
         
         // Status panel at top
-        JPanel statusPanel = new JPanel();
+        JPanel statusPanel = new JPanel(new BorderLayout());
         statusPanel.setBackground(BACKGROUND_COLOR);
-        statusLabel = new JLabel("Connecting to server...");
+        statusPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        statusLabel = new JLabel("Connecting to server...", SwingConstants.CENTER);
         statusLabel.setFont(new Font("Arial", Font.BOLD, 18));
         statusLabel.setForeground(TEXT_COLOR);
-        statusPanel.add(statusLabel);
-        add(statusPanel, BorderLayout.NORTH);
-        
-        // Game board panel (3x3 grid)
-        JPanel boardPanel = new JPanel();
-        boardPanel.setLayout(new GridLayout(3, 3, 10, 10));
-        boardPanel.setBackground(BACKGROUND_COLOR);
-        boardPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        statusPanel.add(statusLabel, BorderLayout.CENTER);
         
-        for (int i = 0; i < 9; i++) {
-            final int index = i;
-            buttons[i] = new JButton(String.valueOf(i + 1));
-            buttons[i].setFont(new Font("Arial", Font.BOLD, 48));
-            buttons[i].setFocusPainted(false);
-            buttons[i].setBackground(BUTTON_COLOR);
-            buttons[i].setForeground(Color.LIGHT_GRAY);
-            buttons[i].setBorder(BorderFactory.createLineBorder(BACKGROUND_COLOR, 2));
-            buttons[i].setPreferredSize(new Dimension(120, 120));
-            
-            // Hover effect
-            buttons[i].addMouseListener(new MouseAdapter() {
-                @Override
-                public void mouseEntered(MouseEvent e) {
-                    if (buttons[index].isEnabled() && myTurn) {
-                        buttons[index].setBackground(BUTTON_HOVER);
-                    }
-                }
-                
-                @Override
-                public void mouseExited(MouseEvent e) {
-                    if (buttons[index].isEnabled()) {
-                        buttons[index].setBackground(BUTTON_COLOR);
-                    }
-                }
-            });
-            
-            buttons[i].addActionListener(e -> makeMove(index));
-            buttons[i].setEnabled(false);
-            boardPanel.add(buttons[i]);
-        }
+        // How long the server took to confirm moves that were drawn at once
+        latencyLabel = new JLabel(" ", SwingConstants.CENTER);
+        latencyLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        latencyLabel.setForeground(Color.LIGHT_GRAY);
+        statusPanel.add(latencyLabel, BorderLayout.SOUTH);
+        add(statusPanel, BorderLayout.NORTH);
         
-        add(boardPanel, BorderLayout.CENTER);
+        // Game board; 3x3 until the server announces another size
+        board = new BoardView(3, this::makeMove);
+        add(board, BorderLayout.CENTER);
         
         // Message area at bottom
         JPanel messagePanel = new JPanel(new BorderLayout());
@@ -123,6 +127,7 @@ public class TicTacToeGUI extends JFrame {
         if (serverAddress == null || serverAddress.trim().isEmpty()) {
             serverAddress = "127.0.0.1";
         }
+        this.serverAddress = serverAddress;
         
         String portStr = JOptionPane.showInputDialog(
             this,
@@ -140,24 +145,84 @@ public class TicTacToeGUI extends JFrame {
             }
         }
         
-        final String finalAddress = serverAddress;
-        final int finalPort = port;
-        
+        serverPort = port;
+        connect();
+    }
+    
+    /**
+     * Opens a connection to the chosen server and reads from it on a thread of its own
+     * until the server closes it
+     */
+    private void connect() {
         new Thread(() -> {
+            Socket connection = null;
             try {
-                addMessage("Connecting to " + finalAddress + ":" + finalPort + "...");
-                socket = new Socket(finalAddress, finalPort);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                addMessage("Connecting to " + serverAddress + ":" + serverPort + "...");
+                connection = new Socket(serverAddress, serverPort);
+                socket = connection;
+                in = new ProtocolReader(connection.getInputStream(), 64 * 1024);
+                rawOut = connection.getOutputStream();
+                out = new PrintWriter(rawOut, true);
                 
                 addMessage("Connected! Waiting for game to start...");
                 
-                String line;
-                while (gameActive && (line = in.readLine()) != null) {
-                    processServerMessage(line);
+                // Messages are decoded on this thread; the EDT only gets what it needs from each
+                ProtocolCodec message = new ProtocolCodec();
+                while (binaryInput ? in.readFrame(message) : in.readLine(message)) {
+                    switch (message.type()) {
+                        case WELCOME:
+                            // Protocol negotiation happens on this thread, before the next read;
+                            // only the first WELCOME of a connection offers anything
+                            if (message.offersDelta()) {
+                                out.println(BinaryProtocol.DELTA_NEGOTIATE_LINE);
+                            }
+                            if (message.offersRematch()) {
+                                // Still in text: the server reads this line before switching
+                                out.println(BinaryProtocol.REMATCH_NEGOTIATE_LINE);
+                                staysConnected = true;
+                            }
+                            if (message.offersBinary()) {
+                                out.println(BinaryProtocol.NEGOTIATE_LINE);
+                                binaryOutput = true;
+                            }
+                            String mark = message.mark() == 'X' ? "X" : "O";
+                            int size = message.size();
+                            int winLength = message.winLength();
+                            SwingUtilities.invokeLater(() -> showWelcome(mark, size, winLength));
+                            break;
+                        case PROTOCOL_BINARY:
+                            binaryInput = true;
+                            break;
+                        case DELTA:
+                            handleDelta(message.cell(), message.mark() == 'X' ? "X" : "O", message.status());
+                            break;
+                        case BOARD:
+                            char[] marks = message.copyMarks();
+                            SwingUtilities.invokeLater(() -> applyBoard(marks));
+                            break;
+                        case VICTORY:
+                        case DEFEAT:
+                            processServerMessage(message.type(), message.mark() == 'X' ? "X" : "O");
+                            break;
+                        case MESSAGE:
+                        case INVALID:
+                            processServerMessage(message.type(), message.text());
+                            break;
+                        default:
+                            processServerMessage(message.type(), null);
+                            break;
+                    }
+                }
+                if (connection == socket && staysConnected) {
+                    // Between games this is the only sign; the next game will need a new connection
+                    staysConnected = false;
+                    addMessage("Server closed the connection.");
                 }
                 
             } catch (Exception e) {
+                if (connection != null && connection != socket) {
+                    return; // Closed by reconnect() for the next game
+                }
                 addMessage("Error: " + e.getMessage());
                 JOptionPane.showMessageDialog(this, 
                     "Failed to connect to server: " + e.getMessage(),
@@ -167,112 +232,219 @@ public class TicTacToeGUI extends JFrame {
         }).start();
     }
     
-    private void processServerMessage(String message) {
+    /**
+     * Starts a game in this window, after the last one if there was one: the board is
+     * cleared in place and only laid out again if its size changes
+     */
+    private void showWelcome(String mark, int size, int winLength) {
+        myMark = mark;
+        gameActive = true;
+        awaitingNextGame = false;
+        myTurn = false;
+        statusLabel.setText("You are Player " + myMark);
+        addMessage("=== You are Player " + myMark + " ===");
+        
+        if (size != 3) {
+            addMessage("=== " + size + "x" + size + " board, " + winLength + " in a row wins ===");
+        }
+        pendingMoves.clear();
+        board.setPending(-1);
+        if (size != board.getBoardSize()) {
+            board.setBoardSize(size);
+            pack();
+            setLocationRelativeTo(null);
+        } else {
+            board.setMarks(new char[size * size]);
+        }
+    }
+    
+    /**
+     * Shows any other server message on the EDT; detail is the text of a MESSAGE or
+     * INVALID, or the winner of a VICTORY or DEFEAT
+     */
+    private void processServerMessage(ProtocolCodec.Type type, String detail) {
         SwingUtilities.invokeLater(() -> {
-            if (message.startsWith("WELCOME")) {
-                myMark = message.split(" ")[1];
-                statusLabel.setText("You are Player " + myMark);
-                addMessage("=== You are Player " + myMark + " ===");
-                
-            } else if (message.startsWith("MESSAGE")) {
-                String msg = message.substring(8);
-                addMessage(">>> " + msg);
-                
-            } else if (message.matches("[XO0-9, ]+") && message.contains(",")) {
-                // Board state update
-                updateBoard(message);
+            if (type == ProtocolCodec.Type.MESSAGE) {
+                addMessage(">>> " + detail);
+
+            } else if (type == ProtocolCodec.Type.PING) {
+                // The server checks we're still here
+                sendCommand(BinaryProtocol.pong(), "PONG");
                 
-            } else if (message.startsWith("TURN")) {
+            } else if (type == ProtocolCodec.Type.TURN) {
                 myTurn = true;
                 statusLabel.setText("Your Turn, Player " + myMark + "!");
                 statusLabel.setForeground(new Color(46, 204, 113));
-                enableButtons(true);
+                board.setInteractive(true);
                 addMessage("=== YOUR TURN ===");
                 
-            } else if (message.startsWith("WAIT")) {
+            } else if (type == ProtocolCodec.Type.WAIT) {
                 myTurn = false;
                 statusLabel.setText("Waiting for opponent...");
                 statusLabel.setForeground(new Color(241, 196, 15));
-                enableButtons(false);
+                board.setInteractive(false);
                 addMessage(">>> Waiting for opponent's move...");
                 
-            } else if (message.startsWith("VICTORY")) {
+            } else if (type == ProtocolCodec.Type.VICTORY) {
                 gameActive = false;
+                pendingMoves.clear();
                 statusLabel.setText("🎉 YOU WON! 🎉");
                 statusLabel.setForeground(new Color(46, 204, 113));
                 addMessage("\n╔═══════════════════════════════╗");
                 addMessage("║   🎉 CONGRATULATIONS! 🎉      ║");
                 addMessage("║         YOU WON!              ║");
                 addMessage("╚═══════════════════════════════╝");
-                enableButtons(false);
+                board.setInteractive(false);
                 showEndGameDialog("Congratulations! You Won!", "Victory!");
                 
-            } else if (message.startsWith("DEFEAT")) {
+            } else if (type == ProtocolCodec.Type.DEFEAT) {
                 gameActive = false;
-                String winner = message.split(" ")[1];
+                pendingMoves.clear();
+                String winner = detail;
                 statusLabel.setText("Game Over - Player " + winner + " Wins");
-                statusLabel.setForeground(X_COLOR);
+                statusLabel.setForeground(BoardView.X_COLOR);
                 addMessage("\n╔═══════════════════════════════╗");
                 addMessage("║      Game Over - You Lost     ║");
                 addMessage("║   Player " + winner + " wins!         ║");
                 addMessage("╚═══════════════════════════════╝");
-                enableButtons(false);
+                board.setInteractive(false);
                 showEndGameDialog("Player " + winner + " wins!", "Game Over");
                 
-            } else if (message.startsWith("DRAW")) {
+            } else if (type == ProtocolCodec.Type.DRAW) {
                 gameActive = false;
+                pendingMoves.clear();
                 statusLabel.setText("Game Over - Draw!");
                 statusLabel.setForeground(new Color(241, 196, 15));
                 addMessage("\n╔═══════════════════════════════╗");
                 addMessage("║      Game Over - Draw!        ║");
                 addMessage("║     Well played both!         ║");
                 addMessage("╚═══════════════════════════════╝");
-                enableButtons(false);
+                board.setInteractive(false);
                 showEndGameDialog("It's a draw! Well played both!", "Draw");
                 
-            } else if (message.startsWith("INVALID")) {
-                addMessage(">>> " + message);
+            } else if (type == ProtocolCodec.Type.INVALID) {
+                addMessage(">>> INVALID " + detail);
+                if (awaitingNextGame) {
+                    // The rematch or queue we asked for fell through; choose again
+                    awaitingNextGame = false;
+                    showEndGameDialog(detail, "No Rematch");
+                } else {
+                    rejectMove();
+                }
             }
         });
     }
     
-    private void updateBoard(String boardState) {
-        String[] positions = boardState.split(",");
-        if (positions.length == 9) {
-            for (int i = 0; i < 9; i++) {
-                String value = positions[i];
-                buttons[i].setText(value);
-                
-                if (value.equals("X")) {
-                    buttons[i].setForeground(X_COLOR);
-                    buttons[i].setEnabled(false);
-                } else if (value.equals("O")) {
-                    buttons[i].setForeground(O_COLOR);
-                    buttons[i].setEnabled(false);
-                } else {
-                    buttons[i].setForeground(Color.LIGHT_GRAY);
-                    if (myTurn) {
-                        buttons[i].setEnabled(true);
-                    }
-                }
+    /**
+     * Queues a single-cell update for the EDT, followed by the TURN or WAIT it carries
+     */
+    private void handleDelta(int cell, String mark, int status) {
+        SwingUtilities.invokeLater(() -> applyDelta(cell, mark));
+        if (status != BinaryProtocol.DELTA_END) {
+            processServerMessage(status == BinaryProtocol.TURN ? ProtocolCodec.Type.TURN : ProtocolCodec.Type.WAIT, null);
+        }
+    }
+    
+    /**
+     * Updates the one cell a move changed. If that cell already holds the
+     * other mark an earlier update was missed, so ask for the full board.
+     */
+    private void applyDelta(int cell, String mark) {
+        char placed = mark.charAt(0);
+        PendingMove head = pendingMoves.peek();
+        if (head != null && head.cell == cell && placed == myMark.charAt(0)) {
+            confirmMove();
+            return;
+        }
+        if (cell < 0 || cell >= board.getBoardSize() * board.getBoardSize()
+            || board.getMark(cell) == (placed == 'X' ? 'O' : 'X')) {
+            sendCommand(BinaryProtocol.sync(), "SYNC");
+            return;
+        }
+        board.setMark(cell, placed);
+    }
+    
+    /**
+     * Applies a full board. Pending moves it contains are confirmed; the rest haven't
+     * been reached by the server yet, so they stay drawn.
+     */
+    private void applyBoard(char[] marks) {
+        char mine = myMark.isEmpty() ? 0 : myMark.charAt(0);
+        while (!pendingMoves.isEmpty() && pendingMoves.peek().cell < marks.length
+            && marks[pendingMoves.peek().cell] == mine) {
+            confirmMove();
+        }
+        for (PendingMove move : pendingMoves) {
+            if (move.cell < marks.length && marks[move.cell] == 0) {
+                marks[move.cell] = mine;
             }
         }
+        board.setMarks(marks);
     }
     
-    private void makeMove(int position) {
-        if (myTurn && gameActive && buttons[position].isEnabled()) {
-            out.println("MOVE " + position);
-            myTurn = false;
-            enableButtons(false);
-            addMessage("You placed " + myMark + " at position " + (position + 1));
+    /**
+     * The server accepted the oldest pending move: draw it normally and show how long that took
+     */
+    private void confirmMove() {
+        PendingMove move = pendingMoves.poll();
+        PendingMove next = pendingMoves.peek();
+        board.setPending(next != null ? next.cell : -1);
+        long nanos = System.nanoTime() - move.sentAt;
+        confirmedNanos += nanos;
+        confirmedMoves++;
+        latencyLabel.setText(String.format("Move #%d confirmed after %.0f ms (average %.0f ms), shown at once",
+            move.seq, nanos / 1e6, confirmedNanos / 1e6 / confirmedMoves));
+    }
+    
+    /**
+     * The server turned down the oldest pending move: take it back off the board
+     */
+    private void rejectMove() {
+        PendingMove move = pendingMoves.poll();
+        if (move == null) {
+            return;
+        }
+        if (board.getMark(move.cell) == myMark.charAt(0)) {
+            board.setMark(move.cell, (char) 0);
         }
+        PendingMove next = pendingMoves.peek();
+        board.setPending(next != null ? next.cell : -1);
+        addMessage(">>> Move #" + move.seq + " at position " + (move.cell + 1) + " taken back.");
     }
     
-    private void enableButtons(boolean enable) {
-        for (int i = 0; i < 9; i++) {
-            if (buttons[i].getText().matches("[0-9]")) {
-                buttons[i].setEnabled(enable);
+    /**
+     * Sends a command as a frame or a text line, whichever was negotiated
+     */
+    private void sendCommand(byte[] frame, String line) {
+        if (binaryOutput) {
+            try {
+                synchronized (rawOut) {
+                    rawOut.write(frame);
+                    rawOut.flush();
+                }
+            } catch (Exception e) {
+                addMessage("Error: " + e.getMessage());
             }
+        } else {
+            out.println(line);
+        }
+    }
+    
+    private void sendMove(int position) {
+        sendCommand(BinaryProtocol.move(position), "MOVE " + position);
+    }
+    
+    private void makeMove(int position) {
+        if (myTurn && gameActive && board.getMark(position) == 0) {
+            // Drawn right away, faded until the server's answer confirms or rejects it
+            PendingMove move = new PendingMove(nextMoveSeq++, position, System.nanoTime());
+            pendingMoves.add(move);
+            board.setMark(position, myMark.charAt(0));
+            board.setPending(position);
+            sendMove(position);
+            myTurn = false;
+            board.setInteractive(false);
+            addMessage("You placed " + myMark + " at position " + (position + 1) + " (move #" + move.seq + ")");
         }
     }
     
@@ -281,24 +453,62 @@ public class TicTacToeGUI extends JFrame {
         messageArea.setCaretPosition(messageArea.getDocument().getLength());
     }
     
+    /**
+     * Asks what to do after a game. On a connection the server keeps, the next game is
+     * a rematch or a new opponent on it; otherwise play again reconnects. Either way
+     * the next game is played in this window.
+     */
     private void showEndGameDialog(String message, String title) {
+        String[] options = staysConnected
+            ? new String[]{"Rematch", "New Opponent", "Exit"}
+            : new String[]{"Play Again", "Exit"};
         int choice = JOptionPane.showOptionDialog(
             this,
             message + "\n\nWould you like to play again?",
             title,
-            JOptionPane.YES_NO_OPTION,
+            JOptionPane.DEFAULT_OPTION,
             JOptionPane.INFORMATION_MESSAGE,
             null,
-            new String[]{"Play Again", "Exit"},
-            "Play Again"
+            options,
+            options[0]
         );
         
-        if (choice == JOptionPane.YES_OPTION) {
-            dispose();
-            new TicTacToeGUI();
-        } else {
+        if (choice < 0 || choice == options.length - 1) {
             System.exit(0);
+        } else if (!staysConnected) {
+            reconnect();
+        } else if (choice == 0) {
+            awaitingNextGame = true;
+            statusLabel.setText("Waiting for opponent to accept the rematch...");
+            statusLabel.setForeground(new Color(241, 196, 15));
+            sendCommand(BinaryProtocol.rematch(), "REMATCH");
+        } else {
+            awaitingNextGame = true;
+            statusLabel.setText("Looking for a new opponent...");
+            statusLabel.setForeground(new Color(241, 196, 15));
+            sendCommand(BinaryProtocol.newGame(null), "NEWGAME");
+        }
+    }
+    
+    /**
+     * Connects again to the same server for the next game, for servers that close the
+     * connection when a game ends
+     */
+    private void reconnect() {
+        Socket last = socket;
+        socket = null;
+        try {
+            if (last != null) {
+                last.close();
+            }
+        } catch (Exception e) {
+            // Done with it either way
         }
+        binaryInput = false;
+        binaryOutput = false;
+        statusLabel.setText("Connecting to server...");
+        statusLabel.setForeground(TEXT_COLOR);
+        connect();
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,593 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: many bot clients connect to a running TicTacToeServer and
+ * play complete games against each other, back to back: reconnecting for each game, or,
+ * with --next=rematch or --next=newgame, on one connection for as long as the server keeps it.
+ * Usage: java TicTacToeLoadTest [--name=value ...]
+ *
+ * Reports TCP connect latency, time from connecting to being matched, move round trip
+ * (MOVE sent until the server's answer arrives), games and moves per second, and errors,
+ * every few seconds and once more at the end. Exits with status 1 if any errors were seen.
+ */
+public class TicTacToeLoadTest {
+
+    /**
+     * Command-line options, parsed the same way as ServerConfig
+     */
+    static final class Options {
+        String host = "127.0.0.1";
+        int port = 8901;
+
+        // Concurrent bot connections; pairs of them play each other
+        int bots = 100;
+
+        // Games each bot plays before stopping (0 = until the duration is up)
+        int games = 0;
+        int durationSeconds = 30;
+        int rampMillis = 1000;
+        int reportSeconds = 5;
+
+        // Average pause before each move; the actual pause is 50-150% of it
+        int thinkMillis = 0;
+
+        // "random", "lowest" (lowest free cell) or "script" (first free cell of script)
+        String strategy = "random";
+        int[] script = {4, 0, 2, 6, 8, 1, 3, 5, 7};
+        long seed = System.nanoTime();
+
+        // "text", "delta" (text with per-move updates) or "binary" (binary frames and deltas)
+        String protocol = "binary";
+        String queue = null;
+
+        // After a game: "reconnect", or stay connected and send "rematch" or "newgame"
+        // when the server offers REMATCH
+        String next = "reconnect";
+    }
+
+    /**
+     * Counters and histograms shared by all bots
+     */
+    static final class Stats {
+        final AtomicLong connects = new AtomicLong();
+        final AtomicLong games = new AtomicLong();
+        final AtomicLong moves = new AtomicLong();
+        final AtomicLong abandoned = new AtomicLong();
+        final AtomicLong invalid = new AtomicLong();
+        final AtomicLong queueRejected = new AtomicLong();
+        final AtomicLong connectFailures = new AtomicLong();
+        final AtomicLong disconnects = new AtomicLong();
+
+        final LatencyHistogram connectLatency = new LatencyHistogram();
+        final LatencyHistogram matchLatency = new LatencyHistogram();
+        final LatencyHistogram moveRoundTrip = new LatencyHistogram();
+
+        // Reset after each periodic report
+        final LatencyHistogram recentRoundTrip = new LatencyHistogram();
+
+        long errors() {
+            return invalid.get() + connectFailures.get() + disconnects.get();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = parse(args);
+        if (options.bots < 2) {
+            System.out.println("Need at least 2 bots.");
+            return;
+        }
+
+        System.out.println("Load test: " + options.bots + " bots against " + options.host + ":" + options.port
+            + " (" + options.protocol + ", " + options.strategy + ", think " + options.thinkMillis + "ms"
+            + (options.queue != null ? ", queue " + options.queue : "") + ", next game by " + options.next + ")");
+
+        Stats stats = new Stats();
+        Bot[] bots = new Bot[options.bots];
+        Thread[] threads = new Thread[options.bots];
+        long start = System.nanoTime();
+        long rampNanos = options.rampMillis * 1_000_000L;
+        int launched = 0;
+        long deadline = options.durationSeconds > 0 ? start + options.durationSeconds * 1_000_000_000L : Long.MAX_VALUE;
+        long nextReport = start + options.reportSeconds * 1_000_000_000L;
+        long lastGames = 0;
+        long lastMoves = 0;
+        long lastReport = start;
+        while (System.nanoTime() < deadline && (launched < options.bots || anyAlive(threads))) {
+            // Start bots on schedule, evenly spread over the ramp-up time
+            long launchUntil = Math.min(System.nanoTime() + 100_000_000L, deadline);
+            while (launched < options.bots && System.nanoTime() - start >= rampNanos * launched / options.bots
+                    && System.nanoTime() < launchUntil) {
+                bots[launched] = new Bot(options, stats, new Random(options.seed + launched));
+                // Thousands of bots mostly sit in blocking reads; they don't need full-size stacks
+                threads[launched] = new Thread(null, bots[launched], "load-bot-" + launched, 256 * 1024);
+                threads[launched].start();
+                launched++;
+            }
+            Thread.sleep(launched < options.bots ? 1 : 100);
+            long now = System.nanoTime();
+            if (options.reportSeconds > 0 && now >= nextReport) {
+                double seconds = (now - lastReport) / 1e9;
+                long games = stats.games.get();
+                long moves = stats.moves.get();
+                System.out.printf("[%4ds] games/s %,9.1f  moves/s %,10.1f  rtt %s  errors %d%n",
+                    (now - start) / 1_000_000_000L, (games - lastGames) / seconds, (moves - lastMoves) / seconds,
+                    stats.recentRoundTrip.summary(), stats.errors());
+                stats.recentRoundTrip.reset();
+                lastGames = games;
+                lastMoves = moves;
+                lastReport = now;
+                nextReport += options.reportSeconds * 1_000_000_000L;
+            }
+        }
+
+        // Stop them all before closing anything, so nobody counts the shutdown as an error
+        for (int i = 0; i < launched; i++) {
+            bots[i].running = false;
+        }
+        for (int i = 0; i < launched; i++) {
+            bots[i].stop();
+        }
+        long joinDeadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < launched; i++) {
+            threads[i].join(Math.max(1, joinDeadline - System.currentTimeMillis()));
+        }
+        report(stats, (System.nanoTime() - start) / 1e9);
+        System.exit(stats.errors() > 0 ? 1 : 0);
+    }
+
+    private static boolean anyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread != null && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void report(Stats stats, double seconds) {
+        System.out.println();
+        System.out.printf("Ran %.1fs: %,d connections, %,d games (%,.1f/s), %,d moves (%,.1f/s)%n",
+            seconds, stats.connects.get(), stats.games.get(), stats.games.get() / seconds,
+            stats.moves.get(), stats.moves.get() / seconds);
+        System.out.println("Connect:    " + stats.connectLatency.summary());
+        System.out.println("Match wait: " + stats.matchLatency.summary());
+        System.out.println("Move RTT:   " + stats.moveRoundTrip.summary());
+        System.out.println("Errors:     " + stats.connectFailures.get() + " connect failures, "
+            + stats.disconnects.get() + " unexpected disconnects, " + stats.invalid.get() + " invalid replies"
+            + (stats.abandoned.get() > 0 ? " (" + stats.abandoned.get() + " games won by opponent disconnect)" : ""));
+        if (stats.queueRejected.get() > 0) {
+            // The server matches in its default queue as soon as we connect; QUEUE can arrive too late
+            System.out.println("Queue:      " + stats.queueRejected.get() + " bots were matched before their QUEUE arrived");
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = !arg.startsWith("--") ? "" : equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+
+            try {
+                switch (name) {
+                    case "host":
+                        options.host = value;
+                        break;
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "bots":
+                        options.bots = Integer.parseInt(value);
+                        break;
+                    case "games":
+                        options.games = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "ramp":
+                        options.rampMillis = Integer.parseInt(value);
+                        break;
+                    case "report":
+                        options.reportSeconds = Integer.parseInt(value);
+                        break;
+                    case "think":
+                        options.thinkMillis = Integer.parseInt(value);
+                        break;
+                    case "strategy":
+                        if (!value.equals("random") && !value.equals("lowest") && !value.equals("script")) {
+                            throw new IllegalArgumentException("expected random, lowest or script");
+                        }
+                        options.strategy = value;
+                        break;
+                    case "script":
+                        String[] cells = value.split(",");
+                        int[] script = new int[cells.length];
+                        for (int i = 0; i < cells.length; i++) {
+                            script[i] = Integer.parseInt(cells[i].trim());
+                            if (script[i] < 0) {
+                                throw new IllegalArgumentException("negative cell");
+                            }
+                        }
+                        options.script = script;
+                        options.strategy = "script";
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "protocol":
+                        if (!value.equals("text") && !value.equals("delta") && !value.equals("binary")) {
+                            throw new IllegalArgumentException("expected text, delta or binary");
+                        }
+                        options.protocol = value;
+                        break;
+                    case "queue":
+                        options.queue = value;
+                        break;
+                    case "next":
+                        if (!value.equals("reconnect") && !value.equals("rematch") && !value.equals("newgame")) {
+                            throw new IllegalArgumentException("expected reconnect, rematch or newgame");
+                        }
+                        options.next = value;
+                        break;
+                    default:
+                        System.out.println("Unknown option " + arg + " ignored.");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for --" + name + " (" + e.getMessage() + "). Using default.");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * One bot connection: connects, plays a game to the end, and either reconnects for
+     * the next or asks for it on the same connection
+     */
+    static final class Bot implements Runnable {
+        private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+        private final Options options;
+        private final Stats stats;
+        private final Random random;
+        private final boolean binary;
+        private final boolean delta;
+        private volatile boolean running = true;
+        private volatile Socket socket;
+
+        private OutputStream out;
+        // Decodes every message the bot reads, reused for the next
+        private final ProtocolCodec message = new ProtocolCodec();
+        // Filled cells of the current game, sized from WELCOME
+        private boolean[] occupied = new boolean[9];
+        private int filled;
+        private boolean binaryInput;
+        private boolean binaryOutput;
+        private boolean playingX;
+        private boolean opponentLeft;
+        private boolean finished;
+        // The server keeps this connection between games, and we asked it for the next one
+        private boolean staysConnected;
+        private boolean awaitingNextGame;
+        // When the bot started waiting for its next game: on connecting, or on asking for it
+        private long waitingSince;
+        private long moveSentAt;
+
+        Bot(Options options, Stats stats, Random random) {
+            this.options = options;
+            this.stats = stats;
+            this.random = random;
+            this.binary = options.protocol.equals("binary");
+            this.delta = !options.protocol.equals("text");
+        }
+
+        /**
+         * Stops after the current game, closing the socket if it is blocked mid-game
+         */
+        void stop() {
+            running = false;
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+
+        public void run() {
+            int played = 0;
+            while (running && (options.games == 0 || played < options.games)) {
+                Socket socket = new Socket();
+                this.socket = socket;
+                long connectStart = System.nanoTime();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(options.host, options.port), CONNECT_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    if (running) {
+                        stats.connectFailures.incrementAndGet();
+                        try {
+                            Thread.sleep(100); // Don't spin against a server that refuses connections
+                        } catch (InterruptedException interrupted) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                waitingSince = System.nanoTime();
+                stats.connectLatency.record(waitingSince - connectStart);
+                stats.connects.incrementAndGet();
+                if (!running) {
+                    closeQuietly(socket);
+                    return;
+                }
+
+                try {
+                    ProtocolReader in = new ProtocolReader(socket.getInputStream(), 64 * 1024);
+                    connected(socket.getOutputStream());
+                    while (true) {
+                        playGame(in);
+                        if (!finished) {
+                            if (running) {
+                                stats.disconnects.incrementAndGet();
+                            }
+                            break;
+                        }
+                        played++;
+                        if (!staysConnected || !running || options.games != 0 && played >= options.games) {
+                            break;
+                        }
+                        askForNextGame(options.next.equals("rematch"));
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        stats.disconnects.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+
+        /**
+         * Starts over on a new connection, in text until the handshake says otherwise
+         */
+        private void connected(OutputStream out) throws IOException {
+            this.out = out;
+            binaryInput = false;
+            binaryOutput = false;
+            staysConnected = false;
+            awaitingNextGame = false;
+            if (options.queue != null) {
+                sendLine("QUEUE " + options.queue);
+            }
+        }
+
+        /**
+         * Asks the server for another game on this connection: the same opponent
+         * again, or a new one from the lobby
+         */
+        private void askForNextGame(boolean rematch) throws IOException {
+            awaitingNextGame = true;
+            waitingSince = System.nanoTime();
+            if (binaryOutput) {
+                out.write(rematch ? BinaryProtocol.rematch() : BinaryProtocol.newGame(options.queue));
+                out.flush();
+            } else {
+                sendLine(rematch ? "REMATCH" : options.queue != null ? "NEWGAME " + options.queue : "NEWGAME");
+            }
+        }
+
+        /**
+         * Plays one game on the current connection, from waiting for it to its result
+         */
+        private void playGame(ProtocolReader in) throws IOException, InterruptedException {
+            resetBoard(Board.CLASSIC_SIZE);
+            playingX = false;
+            opponentLeft = false;
+            finished = false;
+            moveSentAt = 0;
+
+            while (!finished) {
+                if (!(binaryInput ? in.readFrame(message) : in.readLine(message))) {
+                    return;
+                }
+                handle(message);
+            }
+        }
+
+        /**
+         * Acts on one message from the server, line or frame alike
+         */
+        private void handle(ProtocolCodec message) throws IOException, InterruptedException {
+            switch (message.type()) {
+                case MESSAGE:
+                    opponentLeft |= message.text().contains("Opponent disconnected");
+                    return;
+                case PING:
+                    if (binaryOutput) {
+                        out.write(BinaryProtocol.pong());
+                        out.flush();
+                    } else {
+                        sendLine("PONG");
+                    }
+                    return;
+                case PROTOCOL_BINARY:
+                    binaryInput = true;
+                    return;
+                case WELCOME:
+                    // Only the first WELCOME of a connection, always a line, offers anything
+                    welcome(message.mark() == 'X', message.size());
+                    if (delta && message.offersDelta()) {
+                        sendLine(BinaryProtocol.DELTA_NEGOTIATE_LINE);
+                    }
+                    if (!options.next.equals("reconnect") && message.offersRematch()) {
+                        // Before PROTOCOL BINARY, while the server still reads lines
+                        sendLine(BinaryProtocol.REMATCH_NEGOTIATE_LINE);
+                        staysConnected = true;
+                    }
+                    if (binary && message.offersBinary()) {
+                        sendLine(BinaryProtocol.NEGOTIATE_LINE);
+                        binaryOutput = true;
+                    }
+                    return;
+                default:
+                    break;
+            }
+
+            answered();
+            switch (message.type()) {
+                case BOARD:
+                    resetBoard(message.size());
+                    for (int i = 0; i < message.cellCount() && i < occupied.length; i++) {
+                        if (message.cellMark(i) != 0) {
+                            fill(i);
+                        }
+                    }
+                    break;
+                case DELTA:
+                    fill(message.cell());
+                    if (message.status() == BinaryProtocol.TURN) {
+                        move();
+                    }
+                    break;
+                case TURN:
+                    move();
+                    break;
+                case INVALID:
+                    invalid(message.text());
+                    break;
+                case VICTORY:
+                case DEFEAT:
+                case DRAW:
+                    gameOver();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * The first update after our MOVE is the server's answer to it
+         */
+        private void answered() {
+            if (moveSentAt != 0) {
+                long roundTrip = System.nanoTime() - moveSentAt;
+                stats.moveRoundTrip.record(roundTrip);
+                stats.recentRoundTrip.record(roundTrip);
+                moveSentAt = 0;
+            }
+        }
+
+        private void welcome(boolean isX, int size) {
+            stats.matchLatency.record(System.nanoTime() - waitingSince);
+            awaitingNextGame = false;
+            playingX = isX;
+            resetBoard(size);
+        }
+
+        private void invalid(String reason) throws IOException {
+            if (awaitingNextGame && reason.contains("Send NEWGAME")) {
+                // The opponent moved on or left instead of taking the rematch
+                askForNextGame(false);
+                return;
+            }
+            if (reason.contains("Cannot join queue")) {
+                stats.queueRejected.incrementAndGet();
+            } else {
+                stats.invalid.incrementAndGet();
+            }
+        }
+
+        private void gameOver() {
+            finished = true;
+            if (!running) {
+                return; // Our own shutdown, not a game result
+            }
+            if (opponentLeft) {
+                stats.abandoned.incrementAndGet();
+            } else if (playingX) {
+                // Both players see the result; only X counts it
+                stats.games.incrementAndGet();
+            }
+        }
+
+        private void move() throws IOException, InterruptedException {
+            if (options.thinkMillis > 0) {
+                Thread.sleep(options.thinkMillis / 2 + random.nextInt(options.thinkMillis + 1));
+            }
+
+            int cell = chooseCell();
+            moveSentAt = System.nanoTime();
+            if (binaryOutput) {
+                out.write(BinaryProtocol.move(cell));
+                out.flush();
+            } else {
+                sendLine("MOVE " + cell);
+            }
+            stats.moves.incrementAndGet();
+        }
+
+        private void resetBoard(int size) {
+            if (occupied.length != size * size) {
+                occupied = new boolean[size * size];
+            } else {
+                Arrays.fill(occupied, false);
+            }
+            filled = 0;
+        }
+
+        private void fill(int cell) {
+            if (cell >= 0 && cell < occupied.length && !occupied[cell]) {
+                occupied[cell] = true;
+                filled++;
+            }
+        }
+
+        private int chooseCell() {
+            switch (options.strategy) {
+                case "script":
+                    for (int cell : options.script) {
+                        if (cell < occupied.length && !occupied[cell]) {
+                            return cell;
+                        }
+                    }
+                    return nthFreeCell(0);
+                case "random":
+                    return nthFreeCell(random.nextInt(Math.max(1, occupied.length - filled)));
+                default:
+                    return nthFreeCell(0);
+            }
+        }
+
+        private int nthFreeCell(int n) {
+            for (int cell = 0; cell < occupied.length; cell++) {
+                if (!occupied[cell] && n-- == 0) {
+                    return cell;
+                }
+            }
+            return 0;
+        }
+
+        private void sendLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+}
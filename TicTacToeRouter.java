@@ -0,0 +1,669 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs several TicTacToeServer nodes as one: clients connect to the router, which picks
+ * a node for each new connection and from then on only copies bytes both ways.
+ * Usage: java TicTacToeRouter [--name=value ...]
+ *
+ * Every node's /metrics endpoint is polled for its open connections and queue depths.
+ * A connection for a queue in which a node has a player waiting goes to that node, so
+ * the two are matched there and their game stays on one node; otherwise it goes to the
+ * node with the fewest connections. Before choosing, the router gives the client
+ * FIRST_LINE_MILLIS to send its first line: QUEUE names the queue, and RESUME or
+ * SPECTATE go to the node that owns the game, as each node numbers its games from its
+ * --node-id times 2^24. Nodes that report the same node id are logged and left out of
+ * that, since the router can't tell which of them owns a game.
+ *
+ * Nodes that stop answering get no new connections until they answer again, and with
+ * --nodes-file the node list can be changed while the router runs. Connections stay on
+ * the node they were given.
+ */
+public class TicTacToeRouter {
+
+    private static final long FIRST_LINE_MILLIS = 50;
+    private static final int BUFFER_SIZE = 4096;
+    private static final int POLL_TIMEOUT_MILLIS = 500;
+    private static final int ACCEPT_BACKLOG = 4096;
+    static final int NODE_ID_SHIFT = 24;
+
+    /**
+     * Command-line options, parsed the same way as ServerConfig
+     */
+    static final class Options {
+        int port = 8901;
+
+        // Nodes as host:port:metricsPort, comma-separated; the file holds one per line
+        // and is read again whenever it changes
+        String nodes = "";
+        String nodesFile = "";
+
+        int pollMillis = 200;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * A server node and what the router knows of its load. The counts are the last
+     * polled ones, plus the connections routed to it since.
+     */
+    static final class Node {
+        final String spec;
+        final String host;
+        final int port;
+        final int metricsPort;
+
+        // Guarded by the router
+        boolean up;
+        int nodeId = -1;
+        // Another up node has the same node id, so game ids don't say which one owns a game
+        boolean sharedId;
+        int connections;
+        String defaultQueue = "";
+        Map<String, Integer> waiting = new HashMap<>();
+
+        Node(String spec) {
+            String[] parts = spec.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("expected host:port:metricsPort, got " + spec);
+            }
+            this.spec = spec.trim();
+            this.host = parts[0];
+            this.port = Integer.parseInt(parts[1]);
+            this.metricsPort = Integer.parseInt(parts[2]);
+        }
+    }
+
+    private final Options options;
+    private final EventLoop[] loops;
+
+    // Guarded by this; replaced whenever the node list changes
+    private List<Node> nodes = new ArrayList<>();
+    private long nodesFileModified;
+    // The last shared node ids logged, so each change is logged once
+    private String sharedIds = "";
+
+    TicTacToeRouter(Options options) throws IOException {
+        this.options = options;
+        this.loops = new EventLoop[Math.max(1, options.eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = parse(args);
+        TicTacToeRouter router = new TicTacToeRouter(options);
+        router.updateNodes();
+        synchronized (router) {
+            if (router.nodes.isEmpty()) {
+                System.out.println("No nodes given; use --nodes=host:port:metricsPort,... or --nodes-file=path");
+                return;
+            }
+        }
+        router.start();
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = !arg.startsWith("--") ? "" : equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+
+            try {
+                switch (name) {
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "nodes":
+                        options.nodes = value;
+                        break;
+                    case "nodes-file":
+                        options.nodesFile = value;
+                        break;
+                    case "poll":
+                        options.pollMillis = Math.max(10, Integer.parseInt(value));
+                        break;
+                    case "event-loops":
+                        options.eventLoops = Integer.parseInt(value);
+                        break;
+                    default:
+                        System.out.println("Unknown option " + arg + " ignored.");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for --" + name + " (" + e.getMessage() + "). Using default.");
+            }
+        }
+        return options;
+    }
+
+    void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(options.port), ACCEPT_BACKLOG);
+        pollNodes();
+
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "router-loop-" + i).start();
+        }
+        Thread poller = new Thread(this::pollLoop, "router-poll");
+        poller.setDaemon(true);
+        poller.start();
+
+        System.out.println("Tic Tac Toe Router is running on port " + options.port + " (" + loops.length + " event loops).");
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel client = server.accept();
+                loops[next].add(client);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                System.out.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the node list from the options and, if it changed, the nodes file; nodes
+     * already known keep their state
+     */
+    private void updateNodes() {
+        List<String> specs = new ArrayList<>();
+        for (String spec : options.nodes.split(",")) {
+            if (!spec.trim().isEmpty()) {
+                specs.add(spec.trim());
+            }
+        }
+        if (!options.nodesFile.isEmpty()) {
+            Path file = Paths.get(options.nodesFile);
+            try {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                synchronized (this) {
+                    if (modified == nodesFileModified && !nodes.isEmpty()) {
+                        return;
+                    }
+                    nodesFileModified = modified;
+                }
+                for (String line : Files.readAllLines(file)) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        specs.add(line.trim());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        synchronized (this) {
+            List<Node> updated = new ArrayList<>();
+            for (String spec : specs) {
+                Node node = null;
+                for (Node known : nodes) {
+                    if (known.spec.equals(spec)) {
+                        node = known;
+                    }
+                }
+                if (node == null) {
+                    try {
+                        node = new Node(spec);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Ignoring node: " + e.getMessage());
+                        continue;
+                    }
+                    System.out.println("Node " + spec + " added.");
+                }
+                updated.add(node);
+            }
+            for (Node known : nodes) {
+                if (!updated.contains(known)) {
+                    System.out.println("Node " + known.spec + " removed; its games carry on there.");
+                }
+            }
+            nodes = updated;
+        }
+    }
+
+    private void pollNodes() {
+        updateNodes();
+        List<Node> current;
+        synchronized (this) {
+            current = nodes;
+        }
+        for (Node node : current) {
+            poll(node);
+        }
+        checkNodeIds();
+    }
+
+    /**
+     * Marks up nodes that report the same node id, and logs them when that changes
+     */
+    private synchronized void checkNodeIds() {
+        Map<Integer, List<String>> byId = new TreeMap<>();
+        for (Node node : nodes) {
+            if (node.up) {
+                byId.computeIfAbsent(node.nodeId, id -> new ArrayList<>()).add(node.spec);
+            }
+        }
+        StringBuilder shared = new StringBuilder();
+        for (Node node : nodes) {
+            node.sharedId = node.up && byId.get(node.nodeId).size() > 1;
+        }
+        for (Map.Entry<Integer, List<String>> entry : byId.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                shared.append(shared.length() == 0 ? "" : "; ")
+                    .append(String.join(", ", entry.getValue())).append(" all have node id ").append(entry.getKey());
+            }
+        }
+        if (!shared.toString().equals(sharedIds)) {
+            sharedIds = shared.toString();
+            System.out.println(sharedIds.isEmpty() ? "Every node has its own node id again."
+                : "Nodes " + sharedIds + "; RESUME and SPECTATE for their games can't be routed."
+                    + " Give each node its own --node-id.");
+        }
+    }
+
+    private void pollLoop() {
+        while (true) {
+            pollNodes();
+            try {
+                Thread.sleep(options.pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fetches one node's metrics; a node that doesn't answer is marked down
+     */
+    private void poll(Node node) {
+        int nodeId = -1;
+        int connections = 0;
+        String defaultQueue = "";
+        Map<String, Integer> waiting = new HashMap<>();
+        boolean up;
+        try {
+            HttpURLConnection http = (HttpURLConnection) new URL("http://" + node.host + ":" + node.metricsPort + "/metrics").openConnection();
+            http.setConnectTimeout(POLL_TIMEOUT_MILLIS);
+            http.setReadTimeout(POLL_TIMEOUT_MILLIS);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(http.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.lastIndexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, space);
+                    String value = line.substring(space + 1);
+                    if (name.equals("tictactoe_node_id")) {
+                        nodeId = Integer.parseInt(value);
+                    } else if (name.equals("tictactoe_connections_open")) {
+                        connections = Integer.parseInt(value);
+                    } else if (name.startsWith("tictactoe_queue_depth{queue=\"")) {
+                        String queue = name.substring(name.indexOf('"') + 1, name.lastIndexOf('"'));
+                        if (waiting.isEmpty()) {
+                            defaultQueue = queue;
+                        }
+                        waiting.put(queue, Integer.parseInt(value));
+                    }
+                }
+            }
+            up = true;
+        } catch (IOException | RuntimeException e) {
+            up = false;
+        }
+
+        synchronized (this) {
+            if (up != node.up) {
+                System.out.println("Node " + node.spec + (up ? " is up (node id " + nodeId + ")." : " is down."));
+            }
+            node.up = up;
+            if (up) {
+                node.nodeId = nodeId;
+                node.connections = connections;
+                node.defaultQueue = defaultQueue;
+                node.waiting = waiting;
+            }
+        }
+    }
+
+    /**
+     * Takes a node that refused a connection out of rotation until it answers a poll again
+     */
+    synchronized void nodeFailed(String spec) {
+        for (Node node : nodes) {
+            if (node.spec.equals(spec) && node.up) {
+                node.up = false;
+                System.out.println("Node " + spec + " is down.");
+            }
+        }
+    }
+
+    /**
+     * Picks the node for a new connection. gameId is the game named by RESUME or SPECTATE,
+     * or -1; queue is the queue it asked for, null for the node's default queue, or ""
+     * if it won't wait in a queue at all (e.g. it asked for a bot).
+     */
+    synchronized Node choose(String queue, int gameId) {
+        if (gameId >= 0) {
+            for (Node node : nodes) {
+                if (node.up && !node.sharedId && node.nodeId == gameId >>> NODE_ID_SHIFT) {
+                    node.connections++;
+                    return node;
+                }
+            }
+        }
+
+        Node best = null;
+        for (Node node : nodes) {
+            if (!node.up) {
+                continue;
+            }
+            String name = queue != null ? queue : node.defaultQueue;
+            int depth = node.waiting.getOrDefault(name, 0);
+            if (!name.isEmpty() && depth > 0) {
+                // Someone is waiting here: this connection makes their game
+                node.waiting.put(name, depth - 1);
+                node.connections++;
+                return node;
+            }
+            if (best == null || node.connections < best.connections) {
+                best = node;
+            }
+        }
+        if (best != null) {
+            best.connections++;
+            String name = queue != null ? queue : best.defaultQueue;
+            if (!name.isEmpty() && gameId < 0) {
+                best.waiting.merge(name, 1, Integer::sum);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Works out from a client's first line where it should go, then picks the node
+     */
+    Node route(String firstLine) {
+        if (firstLine == null) {
+            return choose(null, -1);
+        }
+        String[] parts = firstLine.trim().split(" ");
+        if ((parts[0].equals("RESUME") || parts[0].equals("SPECTATE")) && parts.length >= 2) {
+            try {
+                return choose("", Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                return choose("", -1);
+            }
+        }
+        if (parts[0].equals("QUEUE") && parts.length == 2) {
+            return choose(parts[1], -1);
+        }
+        if (parts[0].equals("BOT")) {
+            return choose("", -1);
+        }
+        return choose(null, -1);
+    }
+
+    /**
+     * A client connection and the node connection it was given; bytes read from one
+     * side wait in a buffer until the other side has taken them
+     */
+    private final class Route {
+        final SocketChannel client;
+        final long deadline = System.nanoTime() + FIRST_LINE_MILLIS * 1_000_000;
+        SelectionKey clientKey;
+        SocketChannel node;
+        String nodeSpec;
+        SelectionKey nodeKey;
+        boolean connected;
+        boolean clientDone;
+        boolean nodeDone;
+        boolean closed;
+
+        // Both kept ready for filling: position is the end of the bytes waiting to go out
+        final ByteBuffer toNode = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer toClient = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Route(SocketChannel client) {
+            this.client = client;
+        }
+
+        boolean decided() {
+            return node != null || closed;
+        }
+
+        /**
+         * The client's first line, if it has sent a complete one
+         */
+        String firstLine() {
+            byte[] bytes = toNode.array();
+            for (int i = 0; i < toNode.position(); i++) {
+                if (bytes[i] == '\n') {
+                    return new String(bytes, 0, i, StandardCharsets.UTF_8).trim();
+                }
+            }
+            return null;
+        }
+
+        void decide(Selector selector) {
+            Node target = route(firstLine());
+            if (target == null) {
+                toClient.put("MESSAGE No game servers are available. Try again later.\n".getBytes(StandardCharsets.UTF_8));
+                nodeDone = true;
+                update();
+                return;
+            }
+            nodeSpec = target.spec;
+            try {
+                node = SocketChannel.open();
+                node.configureBlocking(false);
+                node.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                node.connect(new InetSocketAddress(target.host, target.port));
+                nodeKey = node.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                System.out.println("Could not reach node " + target.spec + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Completes the connection to the node; if it is refused, the node is taken out
+         * of rotation and the client is routed again
+         */
+        void finishConnect(Selector selector) {
+            try {
+                node.finishConnect();
+                connected = true;
+                update();
+            } catch (IOException e) {
+                nodeFailed(nodeSpec);
+                try {
+                    node.close();
+                } catch (IOException closeFailed) {
+                    // Already gone
+                }
+                node = null;
+                decide(selector);
+            }
+        }
+
+        void read(SocketChannel from) {
+            ByteBuffer buffer = from == client ? toNode : toClient;
+            try {
+                if (from.read(buffer) < 0) {
+                    if (from == client) {
+                        clientDone = true;
+                    } else {
+                        nodeDone = true;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            update();
+        }
+
+        /**
+         * Writes what each side can take, then asks only for the events that can make
+         * progress; closes both sides once one has finished and its bytes are delivered
+         */
+        void update() {
+            if (closed) {
+                return;
+            }
+            try {
+                if (connected) {
+                    write(toNode, node);
+                }
+                write(toClient, client);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (clientDone && (toNode.position() == 0 || !connected && node == null)
+                    || nodeDone && toClient.position() == 0) {
+                close();
+                return;
+            }
+            clientKey.interestOps((!clientDone && toNode.hasRemaining() ? SelectionKey.OP_READ : 0)
+                | (toClient.position() > 0 ? SelectionKey.OP_WRITE : 0));
+            if (connected) {
+                nodeKey.interestOps((!nodeDone && toClient.hasRemaining() ? SelectionKey.OP_READ : 0)
+                    | (toNode.position() > 0 ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        private void write(ByteBuffer buffer, SocketChannel to) throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            to.write(buffer);
+            buffer.compact();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            if (node != null) {
+                try {
+                    node.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+        }
+    }
+
+    /**
+     * One selector thread handling the routes of the clients handed to it
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // Routes still waiting for the client's first line, oldest first
+        private final ArrayDeque<Route> undecided = new ArrayDeque<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel client) {
+            accepted.add(client);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    register();
+                    long wait = 0;
+                    if (!undecided.isEmpty()) {
+                        wait = Math.max(1, (undecided.peek().deadline - System.nanoTime()) / 1_000_000);
+                    }
+                    selector.select(wait);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Route route = (Route) key.attachment();
+                        if (!key.isValid() || route.closed) {
+                            continue;
+                        }
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        if (key.isConnectable()) {
+                            route.finishConnect(selector);
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            route.read(channel);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            route.update();
+                        }
+                        if (!route.decided() && (route.firstLine() != null || !route.toNode.hasRemaining() || route.clientDone)) {
+                            route.decide(selector);
+                        }
+                    }
+
+                    // Clients that said nothing in time get the default queue
+                    long now = System.nanoTime();
+                    while (!undecided.isEmpty() && (undecided.peek().decided() || undecided.peek().deadline <= now)) {
+                        Route route = undecided.poll();
+                        if (!route.decided()) {
+                            route.decide(selector);
+                        }
+                    }
+                } catch (Exception e) {
+                    System.out.println("Router loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void register() {
+            SocketChannel client;
+            while ((client = accepted.poll()) != null) {
+                Route route = new Route(client);
+                try {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    route.clientKey = client.register(selector, SelectionKey.OP_READ, route);
+                    undecided.add(route);
+                } catch (IOException e) {
+                    route.close();
+                }
+            }
+        }
+    }
+}
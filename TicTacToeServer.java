@@ -1,281 +1,1060 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
 
 public class TicTacToeServer {
 
-    private static String[] board = new String[9];
-    private static String turn = "X";
-    private static Player playerX;
-    private static Player playerO;
-    private static volatile boolean gameActive = true;
+    static ServerConfig config = new ServerConfig();
+    static Lobby lobby;
+    static final ServerMetrics metrics = new ServerMetrics();
+    // Passed to Connection.whenWritten() for each move, so it is only created once
+    private static final LongConsumer moveWritten = metrics::moveWritten;
+    static SearchEngine searchEngine;
+    static MoveJournal journal;
+    static GameArchive archive;
+    // Null when clients may send as fast as they like, as in the JMH benchmarks
+    static RateLimiter limiter;
+
+    // One wheel holds every connection's heartbeat and timeout check; null when all are off
+    static TimerWheel timers;
+    // Sends what the checks decide, so a stuck socket never holds up the wheel
+    static ExecutorService liveness;
+    static long livenessCheckMillis;
+
+    // Running games by id, for SPECTATE
+    static final Map<Integer, GameSession> games = new ConcurrentHashMap<>();
+
+    // Games rebuilt from the journal, by id, until both players are back
+    static final Map<Integer, Resumable> resumable = new ConcurrentHashMap<>();
 
     public static void main(String[] args) throws Exception {
-        int port = 8901;
-        
-        // Allow custom port via command line
-        if (args.length > 0) {
-            try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid port number. Using default port 8901.");
-            }
+        config = ServerConfig.parse(args);
+        ServerLog.start(config.logBufferEntries, config.logFile, config.logFileMegabytes);
+        int port = config.port;
+        GameSession.reserveIds(config.nodeId << TicTacToeRouter.NODE_ID_SHIFT);
+
+        startJournal();
+        startArchive();
+        startTimers();
+        startLimits();
+        startLobby();
+        startMetrics();
+
+        if (config.transport.equals("nio")) {
+            startNio();
+            ServerLog.info("Tic Tac Toe Server is Running on port " + port
+                + " (nio, " + config.eventLoops + " event loops)...");
+            ServerLog.info("Server will accept multiple games. Press Ctrl+C to stop.");
+            return;
         }
-        
+
         ServerSocket listener = new ServerSocket(port);
-        System.out.println("Tic Tac Toe Server is Running on port " + port + "...");
-        System.out.println("Server will accept multiple games. Press Ctrl+C to stop.");
-        
-        // Keep server running indefinitely
+        ServerLog.info("Tic Tac Toe Server is Running on port " + port + "...");
+        ServerLog.info("Server will accept multiple games. Press Ctrl+C to stop.");
+        ServerLog.info("=== Waiting for players to connect ===");
+
+        // Keep server running indefinitely; the lobby pairs connections into games
         while (true) {
             try {
-                System.out.println("\n=== Waiting for players to connect for a new game ===");
-                
-                // Reset game state for new game
-                gameActive = true;
-                turn = "X";
-                
-                // Wait for Player X to connect
-                playerX = new Player(listener.accept(), "X");
-                System.out.println("Player X connected from " + playerX.socket.getInetAddress());
-                playerX.output.println("WELCOME X");
-                playerX.output.println("MESSAGE Waiting for opponent to connect...");
-
-                // Wait for Player O to connect
-                playerO = new Player(listener.accept(), "O");
-                System.out.println("Player O connected from " + playerO.socket.getInetAddress());
-                playerO.output.println("WELCOME O");
-                
-                playerX.output.println("MESSAGE Both players connected. Game starting!");
-                playerO.output.println("MESSAGE Both players connected. X starts first.");
-
-                // Link players
-                playerX.setOpponent(playerO);
-                playerO.setOpponent(playerX);
-
-                // Initialize board
-                for (int i = 0; i < 9; i++) {
-                    board[i] = String.valueOf(i + 1);
-                }
+                Socket socket = listener.accept();
+                ThreadConnection connection = new ThreadConnection(socket, config.maxLineLength);
+                playerConnected(connection);
+                connection.start();
 
-                // Start the game threads
-                playerX.start();
-                playerO.start();
-                
-                // Give initial turn to Player X
-                playerX.output.println(getBoardState());
-                playerX.output.println("TURN");
+            } catch (Exception e) {
+                ServerLog.info("Connection error: " + e);
+            }
+        }
+    }
 
-                playerO.output.println(getBoardState());
-                playerO.output.println("WAIT");
+    static void startLobby() {
+        searchEngine = new SearchEngine(config.searchThreads, config.searchTableMegabytes);
+        lobby = new Lobby(config.queues, TicTacToeServer::startGame,
+            config.botAfterSeconds * 1000L, () -> new BotConnection().getPlayer());
+        lobby.start();
+        ServerLog.info("Bot opponents ready: " + PerfectPlay.positions() + " positions solved in "
+            + PerfectPlay.buildMillis() + " ms; larger boards searched for up to " + config.botThinkMillis
+            + " ms a move (search threads: " + searchEngine.getThreads() + ")"
+            + (config.botAfterSeconds > 0 ? ", joining after " + config.botAfterSeconds + " s alone." : "."));
+    }
 
-                // Wait for this game to finish before accepting new players
-                playerX.join();
-                playerO.join();
-                
-                System.out.println("Game ended. Ready for next game.");
+    /**
+     * Opens the move journal, if configured, and holds the games it rebuilt for their players
+     */
+    static void startJournal() throws IOException {
+        if (config.journalDir.isEmpty()) {
+            return;
+        }
+        journal = new MoveJournal(Paths.get(config.journalDir), config.journalSegmentMegabytes, config.journalSyncMillis);
+        for (MoveJournal.RecoveredGame game : journal.getRecoveredGames()) {
+            GameSession.reserveIds(game.id);
+            resumable.put(game.id, new Resumable(game));
+        }
+        ServerLog.info("Journal in " + config.journalDir + ": " + resumable.size() + " running games rebuilt from "
+            + journal.getRecoveredRecords() + " records in " + journal.getRecoveryMillis() + " ms.");
 
-            } catch (Exception e) {
-                System.out.println("Game error: " + e.getMessage());
-                e.printStackTrace();
+        if (!resumable.isEmpty() && config.resumeTimeoutSeconds > 0) {
+            Thread expiry = new Thread(() -> {
+                try {
+                    Thread.sleep(config.resumeTimeoutSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expireResumable();
+            }, "resume-expiry");
+            expiry.setDaemon(true);
+            expiry.start();
+        }
+    }
+
+    /**
+     * Starts the heartbeat and timeout checks. Each connection has one entry on a shared
+     * TimerWheel, rescheduled as it runs, rather than a thread or scheduled task of its own.
+     */
+    static void startTimers() {
+        long shortest = Long.MAX_VALUE;
+        int rematchTimeout = config.rematch ? config.rematchTimeoutSeconds : 0;
+        for (int seconds : new int[] {config.heartbeatSeconds, config.idleTimeoutSeconds, config.turnTimeoutSeconds, rematchTimeout}) {
+            if (seconds > 0) {
+                shortest = Math.min(shortest, seconds);
             }
         }
+        if (shortest == Long.MAX_VALUE) {
+            return;
+        }
+        // Checks also run this often, so they notice a turn starting
+        livenessCheckMillis = shortest * 1000;
+        timers = new TimerWheel(100, 512).start("timer-wheel");
+        liveness = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "liveness");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ServerLog.info("Heartbeat every " + config.heartbeatSeconds + " s; idle timeout "
+            + config.idleTimeoutSeconds + " s (+" + config.idleGraceSeconds + " s before the first PONG); turn timeout " + config.turnTimeoutSeconds + " s; rematch timeout "
+            + rematchTimeout + " s (0 = off).");
+    }
+
+    static void startLimits() {
+        limiter = new RateLimiter(config.messageRate, config.messageBurst,
+            config.ipMessageRate, config.ipMessageBurst, config.floodSeconds);
+        ServerLog.info("Clients may send " + config.messageRate + " messages/s (bursts of " + config.messageBurst
+            + ")" + (config.ipMessageRate > 0 ? ", " + config.ipMessageRate + "/s per address" : "")
+            + "; lines up to " + config.maxLineLength + " bytes.");
+    }
+
+    static void startArchive() throws IOException {
+        if (config.archiveDir.isEmpty()) {
+            return;
+        }
+        archive = new GameArchive(Paths.get(config.archiveDir), config.archiveSegmentMegabytes);
+        Runtime.getRuntime().addShutdownHook(new Thread(archive::flush, "archive-shutdown"));
+        ServerLog.info("Finished games are archived in " + config.archiveDir + ".");
+    }
+
+    /**
+     * Adds a decided game to the archive, if there is one; winner is "X", "O" or "draw"
+     */
+    static void archiveGame(GameSession session, String winner) {
+        if (archive == null) {
+            return;
+        }
+        int result = winner.equals("X") ? GameArchive.X_WINS : winner.equals("O") ? GameArchive.O_WINS : GameArchive.DRAW;
+        int flags = (session.playerX.connection instanceof BotConnection ? GameArchive.X_BOT : 0)
+            | (session.playerO.connection instanceof BotConnection ? GameArchive.O_BOT : 0);
+        archive.record(session.id, session.getBoardSize(), session.getWinLength(), result, flags, session.getMoves());
+    }
+
+    static void startMetrics() throws IOException {
+        metrics.registerMBean();
+        if (config.metricsPort > 0) {
+            metrics.startHttp(config.metricsPort, lobby);
+            ServerLog.info("Metrics at http://127.0.0.1:" + config.metricsPort + "/metrics");
+        }
+    }
+
+    /**
+     * Starts the non-blocking transport on config.port; port 0 picks a free port.
+     * Also used to host the server in-process, e.g. by the JMH benchmarks.
+     */
+    static NioTransport startNio() throws IOException {
+        NioTransport transport = new NioTransport(config.port, config.eventLoops, config.maxLineLength,
+            TicTacToeServer::playerConnected);
+        transport.start();
+        return transport;
+    }
+
+    /**
+     * Called by the transport for every new connection: the player waits in the
+     * default queue until the lobby finds an opponent, or until it asks for another
+     * queue with "QUEUE name"
+     */
+    static void playerConnected(Connection connection) {
+        connection.setOutboundLimit(config.maxQueuedKilobytes * 1024, config.slowClient);
+        if (limiter != null) {
+            connection.setInboundLimit(limiter.open(connection.getRemoteHost()));
+        }
+        Player player = new Player(connection);
+        metrics.connectionOpened();
+        ServerLog.info("Player connected from " + connection.getRemoteAddress());
+        player.startLivenessChecks();
+        player.sendMessage("Waiting for opponent to connect...");
+        lobby.join(player, lobby.getDefaultQueue());
+    }
+
+    /**
+     * Links two matched players into a new game session; called by the lobby's matcher.
+     * Marks are assigned here, so WELCOME is only sent once the game is about to start.
+     */
+    static GameSession startGame(Player playerX, Player playerO, Lobby.MatchQueue queue, long waitNanos) {
+        GameSession session = newSession(playerX, playerO, queue.getBoardSize(), queue.getWinLength());
+        playerX.queueName = queue.getName();
+        playerO.queueName = queue.getName();
+        ServerLog.info("Game " + session.id + " starting (queue " + queue.getName()
+            + ", matched after " + waitNanos / 1_000_000 + " ms, " + queue.getDepth() + " still waiting).");
+        beginGame(session, "Both players connected. Game starting!", "Both players connected. X starts first.");
+        return session;
+    }
+
+    /**
+     * Assigns the marks and opens a new game, with its journal entry, that beginGame
+     * has yet to announce
+     */
+    private static GameSession newSession(Player playerX, Player playerO, int boardSize, int winLength) {
+        playerX.playerMark = "X";
+        playerO.playerMark = "O";
+
+        GameSession session = new GameSession(playerX, playerO, new Board(boardSize, winLength));
+        metrics.gameStarted();
+        if (journal != null) {
+            // Bots need no token: a bot seat is filled by a new bot when the game resumes
+            playerX.resumeToken = playerX.connection instanceof BotConnection ? 0 : journal.newToken();
+            playerO.resumeToken = playerO.connection instanceof BotConnection ? 0 : journal.newToken();
+            journal.start(session.id, session.getBoardSize(), session.getWinLength(),
+                playerX.resumeToken, playerO.resumeToken);
+        }
+        return session;
+    }
+
+    /**
+     * Greets both players of a new or resumed session, links them, and hands out the turn
+     */
+    private static void beginGame(GameSession session, String messageX, String messageO) {
+        Player playerX = session.playerX;
+        Player playerO = session.playerO;
+
+        playerX.sendWelcome(session.getBoardSize(), session.getWinLength());
+        playerO.sendWelcome(session.getBoardSize(), session.getWinLength());
+        playerX.sendMessage(messageX);
+        playerO.sendMessage(messageO);
+        playerX.sendResumeCode(session.id);
+        playerO.sendResumeCode(session.id);
+
+        // Link players
+        playerX.setOpponent(playerO);
+        playerO.setOpponent(playerX);
+        playerX.session = session;
+        playerO.session = session;
+        games.put(session.id, session);
+
+        // Give the turn to whoever moves next: X in a new game
+        boolean xTurn = session.getTurn().equals("X");
+        Board board = session.getBoardSnapshot();
+        playerX.sendBoard(board);
+        playerO.sendBoard(board);
+        if (xTurn) {
+            playerX.sendTurn();
+            playerO.sendWait();
+        } else {
+            playerO.sendTurn();
+            playerX.sendWait();
+        }
+
+        // A player who dropped while being matched forfeits straight away
+        if (!playerX.connected) {
+            playerX.leaveGame();
+        }
+        if (!playerO.connected) {
+            playerO.leaveGame();
+        }
     }
 
     /**
-     * Gets the current board state as a comma-separated string
+     * A game rebuilt from the journal and the players that have come back to it so far
      */
-    public static synchronized String getBoardState() {
-        return String.join(",", board);
+    static final class Resumable {
+        final MoveJournal.RecoveredGame game;
+        // Guarded by this
+        Player playerX;
+        Player playerO;
+
+        Resumable(MoveJournal.RecoveredGame game) {
+            this.game = game;
+        }
     }
 
     /**
-     * Checks if a move is valid
+     * Seats a player in a rebuilt game, identified by the resume code it was given; the
+     * game carries on once both seats are taken. Returns false for an unknown game, a
+     * wrong code, a seat already taken, or a player that has just been matched.
      */
-    public static synchronized boolean isValidMove(int location, Player player) {
-        if (!gameActive) {
+    static boolean resume(Player player, int gameId, long token) {
+        Resumable waiting = resumable.get(gameId);
+        if (waiting == null || token == 0) {
             return false;
         }
-        
-        if (player.playerMark.equals(turn) &&
-            location >= 0 && location <= 8 &&
-            board[location].equals(String.valueOf(location + 1))) 
-        {
-            return true;
+        boolean isX = token == waiting.game.tokenX;
+        if (!isX && token != waiting.game.tokenO) {
+            return false;
         }
-        return false;
+
+        synchronized (waiting) {
+            Player seated = isX ? waiting.playerX : waiting.playerO;
+            if (seated != null && seated.connected || resumable.get(gameId) != waiting || !lobby.leave(player)) {
+                return false;
+            }
+            player.resumeToken = token;
+            if (isX) {
+                waiting.playerX = player;
+            } else {
+                waiting.playerO = player;
+            }
+            if (waiting.playerX == null && waiting.game.tokenX != 0
+                    || waiting.playerO == null && waiting.game.tokenO != 0) {
+                player.sendMessage("Waiting for your opponent to resume game " + gameId + "...");
+                return true;
+            }
+            resumable.remove(gameId);
+        }
+
+        Player playerX = waiting.playerX != null ? waiting.playerX : new BotConnection().getPlayer();
+        Player playerO = waiting.playerO != null ? waiting.playerO : new BotConnection().getPlayer();
+        playerX.playerMark = "X";
+        playerO.playerMark = "O";
+        GameSession session = new GameSession(gameId, playerX, playerO, waiting.game.toBoard(), waiting.game.getMoves());
+        metrics.gameStarted();
+        ServerLog.info("Game " + gameId + " resumed after " + waiting.game.getMoveCount() + " moves.");
+        beginGame(session, "Game resumed. You are still X.", "Game resumed. You are still O.");
+        return true;
     }
 
     /**
-     * Apply a move to the board
+     * Ends the rebuilt games whose players did not all come back in time
      */
-    public static synchronized void applyMove(int location, String mark) {
-        board[location] = mark;
-        turn = mark.equals("X") ? "O" : "X";
+    private static void expireResumable() {
+        for (Resumable waiting : resumable.values()) {
+            synchronized (waiting) {
+                if (!resumable.remove(waiting.game.id, waiting)) {
+                    continue;
+                }
+                journal.end(waiting.game.id);
+                ServerLog.info("Game " + waiting.game.id + " expired before its players came back.");
+                for (Player player : new Player[] {waiting.playerX, waiting.playerO}) {
+                    if (player != null && player.connected) {
+                        player.sendMessage("Your opponent did not come back. Game " + waiting.game.id + " is over.");
+                        player.connection.close();
+                    }
+                }
+            }
+        }
     }
 
     /**
-     * Represents a player as a thread
+     * Represents a player: handles the commands read from its connection
+     * and encodes outgoing messages in the protocol it negotiated
      */
-    static class Player extends Thread {
-        Socket socket;
-        String playerMark;
-        BufferedReader input;
-        PrintWriter output;
+    static class Player implements Connection.Handler {
+        final Connection connection;
+        volatile String playerMark;
+        volatile Lobby.Ticket ticket;
         Player opponent;
+        volatile GameSession session;
+        // The game this connection watches instead of playing
+        volatile GameSession watching;
         volatile boolean connected = true;
+        // Lets the player reclaim its seat after a restart; 0 when the journal is off
+        volatile long resumeToken;
 
-        public Player(Socket socket, String mark) {
-            this.socket = socket;
-            this.playerMark = mark;
-            try {
-                input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                output = new PrintWriter(socket.getOutputStream(), true);
-            } catch (Exception e) {
-                System.out.println("Player creation failed: " + e);
-            }
+        // Set once the client sends PROTOCOL REMATCH: it stays connected between games
+        volatile boolean staysConnected;
+        // The game that ended last, until the player moves on, and the game it has asked
+        // to replay; both are only changed while holding that game's lock
+        volatile GameSession finished;
+        volatile GameSession rematchOf;
+        // When finished was set, for the rematch time limit
+        private volatile long finishedAtNanos;
+        // Queue of the last game, where NEWGAME looks for the next opponent by default
+        volatile String queueName;
+
+        // Guarded by this, so no message is encoded the old way after the switch
+        private boolean binaryOutput;
+        private boolean deltaUpdates;
+        private int deltasSinceSnapshot;
+
+        // Only used by the timer wheel: the next check, and the last read a PING has followed
+        private volatile TimerWheel.Timeout livenessCheck;
+        private long pingedAfterRead;
+        // Set on the first PONG; until then the idle timeout allows the grace period too
+        private volatile boolean answersPing;
+
+        public Player(Connection connection) {
+            this.connection = connection;
+            connection.setHandler(this);
         }
 
         public void setOpponent(Player opponent) {
             this.opponent = opponent;
         }
 
-        public void run() {
-            try {
-                String command;
-                while (gameActive && (command = input.readLine()) != null) {
-                    if (command.startsWith("MOVE")) {
-                        int location = Integer.parseInt(command.split(" ")[1]);
-                        
-                        if (isValidMove(location, this)) {
-                            // Apply move
-                            applyMove(location, playerMark);
-                            
-                            System.out.println("Player " + playerMark + " moved to position " + (location + 1));
-                            
-                            // Check for winner
-                            String winner = checkWinner();
-                            if (winner != null) {
-                                // Game over
-                                gameActive = false;
-                                
-                                // Send final board state BEFORE game result messages
-                                String finalBoard = getBoardState();
-                                output.println(finalBoard);
-                                if (opponent.connected) {
-                                    opponent.output.println(finalBoard);
-                                }
-                                
-                                if (winner.equals("draw")) {
-                                    output.println("DRAW");
-                                    if (opponent.connected) {
-                                        opponent.output.println("DRAW");
-                                    }
-                                    System.out.println("Game ended in a draw.");
-                                } else {
-                                    // Send victory/defeat messages based on who won
-                                    if (winner.equals(playerMark)) {
-                                        output.println("VICTORY " + winner);
-                                        if (opponent.connected) {
-                                            opponent.output.println("DEFEAT " + winner);
-                                        }
-                                    } else {
-                                        output.println("DEFEAT " + winner);
-                                        if (opponent.connected) {
-                                            opponent.output.println("VICTORY " + winner);
-                                        }
-                                    }
-                                    System.out.println("Player " + winner + " wins!");
-                                }
-                                
-                                break; // End game
-                            } else {
-                                // Continue game
-                                String currentBoard = getBoardState();
-                                
-                                output.println(currentBoard);
-                                output.println("WAIT");
-                                
-                                if (opponent.connected) {
-                                    opponent.output.println(currentBoard);
-                                    opponent.output.println("TURN");
-                                }
+        synchronized void sendWelcome(int boardSize, int winLength) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.welcome(playerMark, boardSize, winLength));
+                return;
+            }
+            connection.send("WELCOME " + playerMark
+                + (config.binaryProtocol ? " " + BinaryProtocol.WELCOME_FLAG : "")
+                + (config.deltaUpdates ? " " + BinaryProtocol.DELTA_FLAG : "")
+                + (config.rematch ? " " + BinaryProtocol.REMATCH_FLAG : "")
+                + BinaryProtocol.welcomeSuffix(boardSize, winLength));
+        }
+
+        synchronized void sendSpectating(int gameId, int boardSize, int winLength) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.spectating(gameId, boardSize, winLength));
+            } else {
+                connection.send(BinaryProtocol.spectatingLine(gameId, boardSize, winLength));
+            }
+        }
+
+        synchronized boolean sendsBinary() {
+            return binaryOutput;
+        }
+
+        void sendResumeCode(int gameId) {
+            if (resumeToken != 0) {
+                sendMessage("If the server restarts, rejoin this game with: RESUME " + gameId + " "
+                    + Long.toHexString(resumeToken));
+            }
+        }
+
+        synchronized void sendMessage(String text) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.withText(BinaryProtocol.MESSAGE, text));
+            } else {
+                connection.send("MESSAGE " + text);
+            }
+        }
+
+        /**
+         * Sends a board snapshot taken with GameSession.getBoardSnapshot()
+         */
+        synchronized void sendBoard(Board snapshot) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.board(snapshot));
+            } else {
+                connection.send(snapshot.toProtocolString());
+            }
+        }
+
+        synchronized void sendTurn() {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.turn());
+            } else {
+                connection.send("TURN");
+            }
+        }
+
+        synchronized void sendWait() {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.waitFrame());
+            } else {
+                connection.send("WAIT");
+            }
+        }
+
+        /**
+         * Tells this player about an accepted move in session and whose turn it is now.
+         * Delta clients get one DELTA message, others a full board plus TURN or WAIT.
+         * The session is passed in, since a disconnect may already have cleared this.session.
+         */
+        synchronized void sendMoveUpdate(GameSession session, int cell, String mark, boolean yourTurn) {
+            if (!deltaUpdates) {
+                sendBoard(session.getBoardSnapshot());
+                if (yourTurn) {
+                    sendTurn();
+                } else {
+                    sendWait();
+                }
+                return;
+            }
+
+            int status = yourTurn ? BinaryProtocol.TURN : BinaryProtocol.WAIT;
+            sendDelta(cell, mark, status);
+
+            // Periodic resync, in case the client ever missed an update
+            if (config.snapshotInterval > 0 && ++deltasSinceSnapshot >= config.snapshotInterval) {
+                deltasSinceSnapshot = 0;
+                sendBoard(session.getBoardSnapshot());
+            }
+        }
+
+        /**
+         * Tells this player about the move that ended session's game; the result message follows
+         */
+        synchronized void sendFinalUpdate(GameSession session, int cell, String mark) {
+            if (deltaUpdates) {
+                sendDelta(cell, mark, BinaryProtocol.DELTA_END);
+            } else {
+                sendBoard(session.getBoardSnapshot());
+            }
+        }
+
+        private void sendDelta(int cell, String mark, int status) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.delta(cell, mark, status));
+            } else {
+                connection.send("DELTA " + cell + " " + mark + " " + BinaryProtocol.deltaStatus(status));
+            }
+        }
+
+        /**
+         * Answers SYNC with the full board and, while the game runs, whose turn it is
+         */
+        private void sendSnapshot() {
+            GameSession session = this.session;
+            if (session == null) {
+                return;
+            }
+            synchronized (this) {
+                deltasSinceSnapshot = 0;
+                sendBoard(session.getBoardSnapshot());
+                if (session.isActive()) {
+                    if (session.getTurn().equals(playerMark)) {
+                        sendTurn();
+                    } else {
+                        sendWait();
+                    }
+                }
+            }
+        }
+
+        synchronized void sendVictory(String winner) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.withMark(BinaryProtocol.VICTORY, winner));
+            } else {
+                connection.send("VICTORY " + winner);
+            }
+        }
+
+        synchronized void sendDefeat(String winner) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.withMark(BinaryProtocol.DEFEAT, winner));
+            } else {
+                connection.send("DEFEAT " + winner);
+            }
+        }
+
+        synchronized void sendDraw() {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.draw());
+            } else {
+                connection.send("DRAW");
+            }
+        }
+
+        synchronized void sendPing() {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.ping());
+            } else {
+                connection.send("PING");
+            }
+        }
+
+        synchronized void sendInvalid(String reason) {
+            connection.penalize(RateLimiter.INVALID_PENALTY);
+            sendCancelled(reason);
+        }
+
+        /**
+         * An INVALID the client didn't cause, such as a rematch it was waiting for
+         * falling through, so it costs nothing against the rate limit
+         */
+        synchronized void sendCancelled(String reason) {
+            if (binaryOutput) {
+                connection.sendFrame(BinaryProtocol.withText(BinaryProtocol.INVALID, reason));
+            } else {
+                connection.send("INVALID " + reason);
+            }
+        }
+
+        /**
+         * Acknowledges the client's request for binary frames and switches both directions
+         */
+        private void switchToBinary() {
+            synchronized (this) {
+                connection.send(BinaryProtocol.NEGOTIATE_LINE);
+                binaryOutput = true;
+            }
+            connection.setBinaryInput(true);
+        }
+
+        @Override
+        public void onMessage(ProtocolCodec message) {
+            long readAt = System.nanoTime();
+            switch (message.type()) {
+                case MOVE:
+                    if (message.cell() < 0) {
+                        ServerLog.info("Player " + playerMark + " error: malformed command " + message);
+                        connection.close();
+                        return;
+                    }
+                    handleMove(message.cell(), readAt);
+                    return;
+                case SYNC:
+                    sendSnapshot();
+                    return;
+                case PONG:
+                    // Reading it was most of the point
+                    answersPing = true;
+                    return;
+                case SPECTATE:
+                    // Watch a running game instead of playing: "SPECTATE <game>"
+                    if (message.gameId() >= 0) {
+                        spectate(message.gameId());
+                    } else {
+                        sendInvalid("Cannot watch game " + message.text() + ".");
+                    }
+                    return;
+                case REMATCH:
+                    rematch();
+                    return;
+                case NEWGAME:
+                    newGame(message.text());
+                    return;
+                default:
+                    break;
+            }
+            if (message.isFrame()) {
+                ServerLog.info("Player " + playerMark + " error: unexpected " + message);
+                connection.close();
+                return;
+            }
+
+            switch (message.type()) {
+                case PROTOCOL_BINARY:
+                    if (config.binaryProtocol) {
+                        switchToBinary();
+                    }
+                    break;
+                case PROTOCOL_DELTA:
+                    if (config.deltaUpdates) {
+                        synchronized (this) {
+                            deltaUpdates = true;
+                        }
+                    }
+                    break;
+                case PROTOCOL_REMATCH:
+                    if (config.rematch) {
+                        staysConnected = true;
+                    }
+                    break;
+                case QUEUE:
+                    String queueName = message.text();
+                    if (session == null && watching == null && lobby.join(this, queueName)) {
+                        sendMessage("Waiting for opponent in queue " + queueName + "...");
+                    } else {
+                        sendInvalid("Cannot join queue " + queueName + ".");
+                    }
+                    break;
+                case RESUME:
+                    // Reclaim a seat in a game rebuilt from the journal: "RESUME <game> <code>"
+                    boolean resumed = message.gameId() >= 0 && session == null && watching == null
+                        && resume(this, message.gameId(), message.resumeCode());
+                    if (!resumed) {
+                        sendInvalid("Cannot resume game " + message.text() + ".");
+                    }
+                    break;
+                case BOT:
+                    // Play the built-in bot now instead of waiting; "BOT O" lets the bot start
+                    boolean playerIsX = message.mark() != 'O';
+                    if (session != null || !lobby.playBot(this, playerIsX)) {
+                        sendInvalid("Cannot play the bot now.");
+                    }
+                    break;
+                default:
+                    // Unknown lines are ignored
+                    break;
+            }
+        }
+
+        /**
+         * Leaves the lobby to watch a running game until it ends
+         */
+        private void spectate(int gameId) {
+            GameSession game = games.get(gameId);
+            if (game == null || session != null || watching != null || !lobby.leave(this)) {
+                sendInvalid("Cannot watch game " + gameId + ".");
+                return;
+            }
+            watching = game;
+            game.spectators.watch(this);
+        }
+
+        /**
+         * Asks for another game against the last opponent, with the marks swapped. It
+         * starts once both players have asked, or straight away against a bot.
+         */
+        private void rematch() {
+            GameSession last = lastGame();
+            Player other = opponent;
+            if (last == null || last.isActive() || !staysConnected) {
+                sendInvalid("No finished game to replay.");
+                return;
+            }
+
+            boolean againstBot = other.connection instanceof BotConnection;
+            boolean available;
+            GameSession next = null;
+            synchronized (last) {
+                available = againstBot || other.connected && other.staysConnected
+                    && (other.session == last || other.finished == last);
+                if (available && (againstBot || other.rematchOf == last)) {
+                    if (againstBot) {
+                        other = new BotConnection().getPlayer();
+                    }
+                    // Whoever was O gets the first move this time
+                    boolean wasX = playerMark.equals("X");
+                    next = newSession(wasX ? other : this, wasX ? this : other, last.getBoardSize(), last.getWinLength());
+                    for (Player player : new Player[] {this, other}) {
+                        // The new game is theirs before gameOver(last) can run late for either
+                        player.session = next;
+                        player.finished = null;
+                        player.rematchOf = null;
+                        player.ticket = null;
+                        player.queueName = queueName;
+                    }
+                } else if (available) {
+                    rematchOf = last;
+                }
+            }
+
+            if (next != null) {
+                metrics.rematchStarted();
+                ServerLog.info("Game " + next.id + " starting (rematch of game " + last.id + ").");
+                beginGame(next, "Rematch! You are X this time.", "Rematch! X starts first.");
+            } else if (!available) {
+                sendInvalid("Your opponent has moved on. Send NEWGAME to play someone else.");
+            } else {
+                sendMessage("Waiting for your opponent to accept the rematch...");
+                other.sendMessage("Your opponent wants a rematch. Send REMATCH to accept.");
+            }
+        }
+
+        /**
+         * Leaves the last game behind and waits for a new opponent in the named queue,
+         * or the last game's queue if the name is empty
+         */
+        private void newGame(String name) {
+            GameSession last = lastGame();
+            if (last != null && last.isActive() || watching != null) {
+                sendInvalid("Cannot start a new game now.");
+                return;
+            }
+            if (last != null) {
+                moveOn(last, "Your opponent went looking for a new game. Send NEWGAME to do the same.");
+            }
+
+            String queue = !name.isEmpty() ? name : queueName != null ? queueName : lobby.getDefaultQueue();
+            if (lobby.join(this, queue)) {
+                sendMessage("Waiting for opponent in queue " + queue + "...");
+            } else {
+                sendInvalid("Cannot join queue " + queue + ".");
+            }
+        }
+
+        /**
+         * The game this player is in or has just finished, or null
+         */
+        private GameSession lastGame() {
+            GameSession current = session;
+            return current != null ? current : finished;
+        }
+
+        /**
+         * Called on both players once their game is over and they have been told the
+         * result: a client that negotiated REMATCH stays connected and is asked what to
+         * play next; any other is disconnected
+         */
+        void gameOver(GameSession ended) {
+            if (!staysConnected || !connected) {
+                connection.close();
+                return;
+            }
+            boolean settled;
+            synchronized (ended) {
+                // Not if a rematch has already started, or the player has moved on
+                settled = session == ended;
+                if (settled) {
+                    session = null;
+                    ticket = null;
+                    finishedAtNanos = System.nanoTime();
+                    finished = ended;
+                }
+            }
+            if (settled) {
+                sendMessage("Game over. Send REMATCH to play again, or NEWGAME [queue] for a new opponent.");
+            }
+        }
+
+        /**
+         * Stops waiting on the finished game last, so the player can be matched again;
+         * an opponent still waiting for a rematch of it is told why it won't happen
+         */
+        private void moveOn(GameSession last, String reason) {
+            Player waiting = null;
+            synchronized (last) {
+                if (session == last || finished == last) {
+                    session = null;
+                    finished = null;
+                    ticket = null;
+                }
+                rematchOf = null;
+                if (opponent != null && opponent.rematchOf == last) {
+                    opponent.rematchOf = null;
+                    waiting = opponent;
+                }
+            }
+            if (waiting != null && waiting.connected) {
+                waiting.sendCancelled(reason);
+            }
+        }
+
+        /**
+         * readAt is when the MOVE was read, for the move latency metric
+         */
+        private void handleMove(int location, long readAt) {
+            GameSession session = this.session;
+            if (session == null || !session.isActive()) {
+                return;
+            }
+
+            // Checked and played under the session's lock, so nothing can end the game in between
+            int outcome = session.tryMove(location, this);
+            if (outcome == GameSession.GAME_OVER) {
+                return; // Ended by a timeout or a disconnect; the players have been told
+            }
+            if (outcome >= 0) {
+                ServerLog.move(session.id, playerMark.charAt(0), location, System.nanoTime() - readAt);
+
+                if (outcome != Board.IN_PROGRESS) {
+                    // Game over, and already ended by tryMove
+                    String winner = outcome == Board.DRAW ? "draw" : outcome == Board.X_WINS ? "X" : "O";
+                    metrics.gameEnded();
+                    session.spectators.finish(winner.equals("draw") ? "draw." : "Player " + winner + " wins.");
+                    archiveGame(session, winner);
+                    metrics.moveProcessed();
+
+                    // Send final board state BEFORE game result messages
+                    sendFinalUpdate(session, location, playerMark);
+                    if (opponent.connected) {
+                        opponent.sendFinalUpdate(session, location, playerMark);
+                    }
+                    // The move's latency runs until its update reaches the opponent's socket
+                    (opponent.connected ? opponent : this).connection.whenWritten(readAt, moveWritten);
+
+                    if (winner.equals("draw")) {
+                        sendDraw();
+                        if (opponent.connected) {
+                            opponent.sendDraw();
+                        }
+                        ServerLog.draw(session.id);
+                    } else {
+                        // Send victory/defeat messages based on who won
+                        if (winner.equals(playerMark)) {
+                            sendVictory(winner);
+                            if (opponent.connected) {
+                                opponent.sendDefeat(winner);
                             }
                         } else {
-                            if (!turn.equals(playerMark)) {
-                                output.println("INVALID Not your turn.");
-                            } else {
-                                output.println("INVALID Invalid move. Position already taken or out of range.");
+                            sendDefeat(winner);
+                            if (opponent.connected) {
+                                opponent.sendVictory(winner);
                             }
-                            output.println("TURN"); // Re-issue turn command
                         }
+                        ServerLog.win(session.id, winner.charAt(0));
                     }
+
+                    // End game
+                    gameOver(session);
+                    opponent.gameOver(session);
+                } else {
+                    // Continue game
+                    sendMoveUpdate(session, location, playerMark, false);
+
+                    if (opponent.connected) {
+                        opponent.sendMoveUpdate(session, location, playerMark, true);
+                    }
+                    metrics.moveProcessed();
+                    (opponent.connected ? opponent : this).connection.whenWritten(readAt, moveWritten);
+                    session.spectators.publish();
                 }
-            } catch (SocketException e) {
-                System.out.println("Player " + playerMark + " disconnected.");
-            } catch (Exception e) {
-                System.out.println("Player " + playerMark + " error: " + e.getMessage());
-            } finally {
-                connected = false;
-                gameActive = false;
-                
-                // Notify opponent of disconnection
-                if (opponent != null && opponent.connected) {
-                    opponent.output.println("MESSAGE Opponent disconnected. You win by default!");
-                    opponent.output.println("VICTORY " + opponent.playerMark);
-                }
-                
-                try { 
-                    socket.close(); 
-                } catch (Exception e) {
-                    System.out.println("Error closing socket: " + e.getMessage());
+            } else {
+                metrics.invalidMove();
+                if (outcome == GameSession.NOT_YOUR_TURN) {
+                    sendInvalid("Not your turn.");
+                } else {
+                    sendInvalid("Invalid move. Position already taken or out of range.");
                 }
+                sendTurn(); // Re-issue turn command
             }
         }
-    }
 
-    /**
-     * Check for winner or draw
-     * Returns "X", "O", "draw", or null if game is not over
-     */
-    static synchronized String checkWinner() {
-        // Check all winning combinations
-        int[][] winPatterns = {
-            {0, 1, 2}, {3, 4, 5}, {6, 7, 8}, // Rows
-            {0, 3, 6}, {1, 4, 7}, {2, 5, 8}, // Columns
-            {0, 4, 8}, {2, 4, 6}              // Diagonals
-        };
-        
-        for (int[] pattern : winPatterns) {
-            String pos1 = board[pattern[0]];
-            String pos2 = board[pattern[1]];
-            String pos3 = board[pattern[2]];
-            
-            if (pos1.equals(pos2) && pos2.equals(pos3)) {
-                if (pos1.equals("X")) {
-                    return "X";
-                } else if (pos1.equals("O")) {
-                    return "O";
-                }
+        @Override
+        public void onClose() {
+            connected = false;
+            TimerWheel.Timeout check = livenessCheck;
+            if (check != null) {
+                check.cancel();
+            }
+            metrics.connectionClosed();
+            lobby.leave(this);
+            leaveGame();
+            GameSession last = lastGame();
+            if (last != null && !last.isActive()) {
+                moveOn(last, "Your opponent has left. Send NEWGAME to play someone else.");
+            }
+        }
+
+        /**
+         * Ends this player's game, if it is still running, as a forfeit to the opponent
+         */
+        void leaveGame() {
+            GameSession session = this.session;
+            if (session == null || !session.end()) {
+                return;
+            }
+            metrics.playerDisconnected();
+            forfeited(session, "disconnected", "Opponent disconnected. You win by default!");
+        }
+
+        /**
+         * Ends this player's game as a loss if the turn that started at turnStarted is
+         * still running; the player is told, then disconnected unless it stays for a rematch
+         */
+        private void runOutOfTime(GameSession session, long turnStarted) {
+            if (!session.endTurnStartedAt(turnStarted)) {
+                return;
+            }
+            metrics.turnTimedOut();
+            forfeited(session, "ran out of time", "Opponent ran out of time. You win!");
+            sendMessage("You ran out of time.");
+            sendDefeat(opponent.playerMark);
+            gameOver(session);
+        }
+
+        /**
+         * Disconnects a player still deciding what to play after last once the rematch
+         * time limit has passed; onClose tells an opponent waiting on it
+         */
+        private void rematchExpired(GameSession last) {
+            if (session != null || finished != last) {
+                return;
             }
+            sendMessage("No rematch or new game chosen in " + config.rematchTimeoutSeconds + " s; disconnecting.");
+            connection.close();
         }
 
-        // Check for draw - all positions filled
-        boolean boardFull = true;
-        for (int i = 0; i < 9; i++) {
-            if (board[i].equals(String.valueOf(i + 1))) {
-                boardFull = false;
-                break;
+        /**
+         * Tells the opponent and spectators that this player lost a game it has just ended
+         */
+        private void forfeited(GameSession session, String reason, String opponentMessage) {
+            metrics.gameEnded();
+            ServerLog.player(session.id, playerMark.charAt(0), reason);
+            session.spectators.finish("Player " + playerMark + " " + reason + ", " + opponent.playerMark + " wins.");
+
+            if (opponent != null && opponent.connected) {
+                opponent.sendMessage(opponentMessage);
+                opponent.sendVictory(opponent.playerMark);
+                opponent.gameOver(session);
+            }
+        }
+
+        void startLivenessChecks() {
+            if (timers != null) {
+                pingedAfterRead = connection.getLastReadNanos() - 1;
+                livenessCheck = timers.schedule(livenessCheckMillis, this::checkLiveness);
             }
         }
-        
-        if (boardFull) {
-            return "draw";
+
+        /**
+         * Runs on the timer wheel: sends PING once the client has been quiet for the
+         * heartbeat, drops it after the idle timeout, and forfeits its game once it has
+         * sat on its turn past the turn timeout. A client that has never answered a PING
+         * gets the idle grace period on top of the idle timeout. Between games, the rematch
+         * time limit applies instead. Then schedules itself
+         * for the next of those deadlines.
+         */
+        private void checkLiveness() {
+            if (!connected) {
+                return;
+            }
+            long now = System.nanoTime();
+            long lastRead = connection.getLastReadNanos();
+            long nextCheck = livenessCheckMillis * 1_000_000;
+            GameSession session = this.session;
+            GameSession finished = this.finished;
+            boolean onTurn = session != null && session.isActive() && session.getTurn().equals(playerMark);
+
+            if (session == null && finished != null) {
+                // Between games the client may be waiting on its user; only the rematch limit applies
+                if (config.rematchTimeoutSeconds > 0) {
+                    long left = finishedAtNanos + config.rematchTimeoutSeconds * 1_000_000_000L - now;
+                    if (left <= 0) {
+                        liveness.execute(() -> rematchExpired(finished));
+                    } else {
+                        nextCheck = Math.min(nextCheck, left);
+                    }
+                }
+            } else if (onTurn && config.turnTimeoutSeconds > 0) {
+                // The human may well be thinking; only the turn timeout applies
+                long turnStarted = session.getTurnStartedNanos();
+                long left = turnStarted + config.turnTimeoutSeconds * 1_000_000_000L - now;
+                if (left <= 0) {
+                    liveness.execute(() -> runOutOfTime(session, turnStarted));
+                } else {
+                    nextCheck = Math.min(nextCheck, left);
+                }
+            } else if (!onTurn && config.idleTimeoutSeconds > 0) {
+                // The console client can't answer PING while it waits for its user to move,
+                // so the turn is left to the turn timeout
+                int idleSeconds = config.idleTimeoutSeconds + (answersPing ? 0 : Math.max(0, config.idleGraceSeconds));
+                long left = lastRead + idleSeconds * 1_000_000_000L - now;
+                if (left <= 0) {
+                    metrics.idleTimedOut();
+                    ServerLog.info("Player at " + connection.getRemoteAddress() + " sent nothing for "
+                        + idleSeconds + " s; disconnecting.");
+                    connection.abort();
+                    return;
+                }
+                nextCheck = Math.min(nextCheck, left);
+            }
+
+            if (config.heartbeatSeconds > 0) {
+                long left = lastRead + config.heartbeatSeconds * 1_000_000_000L - now;
+                if (left > 0) {
+                    nextCheck = Math.min(nextCheck, left);
+                } else if (pingedAfterRead != lastRead) {
+                    pingedAfterRead = lastRead;
+                    liveness.execute(this::sendPing);
+                }
+            }
+            livenessCheck = timers.schedule(nextCheck / 1_000_000, this::checkLiveness);
         }
-        
-        return null; // Game is not over
     }
 }
\ No newline at end of file
@@ -0,0 +1,360 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Round-robin tournament between move strategies, played in-process on GameEngine with
+ * no server or sockets involved. Every strategy plays every other one, games times as
+ * X and games times as O. The games are cut into batches that run on all cores; each
+ * batch has its own strategies, engine and seed, and search looks a fixed number of
+ * moves ahead rather than for a fixed time, so results don't depend on the number of
+ * threads or on how busy the machine is. Reports each pairing, the standings, and games and moves per second.
+ * Usage: java TicTacToeTournament [--name=value ...]
+ *
+ * Built-in strategies: random (any free cell), lowest (lowest free cell), center (free
+ * cell nearest the middle), greedy (win if it can, else block, else random), perfect
+ * (the solved 3x3 table) and search (SearchEngine, --depth moves ahead). Any other name
+ * is loaded as a class implementing GameEngine.Strategy with a no-argument constructor.
+ */
+public class TicTacToeTournament {
+
+    private static final int BATCH_GAMES = 10_000;
+
+    /**
+     * Command-line options, parsed the same way as ServerConfig
+     */
+    static final class Options {
+        String[] strategies = {"random", "lowest", "center", "greedy", "perfect"};
+
+        // Games of each ordered pairing, so every two strategies meet twice this often
+        int games = 100_000;
+
+        int size = Board.CLASSIC_SIZE;
+        int winLength = Board.CLASSIC_SIZE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 42;
+
+        // Moves the search strategy looks ahead
+        int depth = 6;
+    }
+
+    // Transposition table of each batch's search engine
+    private static final int SEARCH_TABLE_MEGABYTES = 4;
+
+    public static void main(String[] args) throws Exception {
+        Options options = parse(args);
+        String[] names = options.strategies;
+        for (String name : names) {
+            // Fail before starting anything if a strategy can't be made or can't play this board
+            try {
+                release(create(name, options, 0));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Cannot play " + name + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        System.out.println("Tournament: " + String.join(", ", names) + " on " + options.size + "x" + options.size
+            + " (" + options.winLength + " in a row), " + options.games + " games per pairing, "
+            + options.threads + " threads");
+
+        // One task per batch of each ordered pairing; results[x][o] are as playBatch returns them
+        ExecutorService pool = Executors.newFixedThreadPool(options.threads);
+        List<Future<long[]>> tasks = new ArrayList<>();
+        List<int[]> taskPairs = new ArrayList<>();
+        long start = System.nanoTime();
+        int taskIndex = 0;
+        for (int x = 0; x < names.length; x++) {
+            for (int o = 0; o < names.length; o++) {
+                if (x == o) {
+                    continue;
+                }
+                for (int first = 0; first < options.games; first += BATCH_GAMES) {
+                    int count = Math.min(BATCH_GAMES, options.games - first);
+                    long seed = options.seed * 1_000_003L + taskIndex++;
+                    String xName = names[x];
+                    String oName = names[o];
+                    tasks.add(pool.submit(() -> playBatch(xName, oName, count, options, seed)));
+                    taskPairs.add(new int[] {x, o});
+                }
+            }
+        }
+
+        long[][][] results = new long[names.length][names.length][5];
+        for (int i = 0; i < tasks.size(); i++) {
+            long[] batch = tasks.get(i).get();
+            long[] pairing = results[taskPairs.get(i)[0]][taskPairs.get(i)[1]];
+            for (int k = 0; k < batch.length; k++) {
+                pairing[k] += batch[k];
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        report(names, results, elapsed, options);
+        System.exit(0);
+    }
+
+    /**
+     * Plays count games between two fresh strategies; returns X wins, O wins, draws,
+     * forfeits (games lost by an illegal move) and moves played
+     */
+    private static long[] playBatch(String xName, String oName, int count, Options options, long seed) {
+        GameEngine.Strategy x = create(xName, options, seed);
+        GameEngine.Strategy o = create(oName, options, ~seed);
+        GameEngine game = new GameEngine(options.size, options.winLength);
+        long[] result = new long[5];
+        for (int i = 0; i < count; i++) {
+            game.reset();
+            int outcome = game.playOut(x, o);
+            if (outcome == Board.X_WINS) {
+                result[0]++;
+            } else if (outcome == Board.O_WINS) {
+                result[1]++;
+            } else {
+                result[2]++;
+            }
+            if (!game.isOver()) {
+                result[3]++;
+            }
+            result[4] += game.getMoveCount();
+        }
+        release(x);
+        release(o);
+        return result;
+    }
+
+    /**
+     * Stops the threads a strategy started, once it has played its last game
+     */
+    private static void release(GameEngine.Strategy strategy) {
+        if (strategy instanceof SearchStrategy) {
+            ((SearchStrategy) strategy).engine.shutdown();
+        }
+    }
+
+    private static void report(String[] names, long[][][] results, long elapsedNanos, Options options) {
+        int width = 8;
+        for (String name : names) {
+            width = Math.max(width, name.length());
+        }
+
+        System.out.println();
+        System.out.printf("%-" + (2 * width + 4) + "s %8s %8s %8s %9s%n", "X vs O", "X wins", "O wins", "draws", "forfeits");
+        long games = 0;
+        long moves = 0;
+        double[] points = new double[names.length];
+        long[][] record = new long[names.length][3];
+        for (int x = 0; x < names.length; x++) {
+            for (int o = 0; o < names.length; o++) {
+                if (x == o) {
+                    continue;
+                }
+                long[] r = results[x][o];
+                double total = r[0] + r[1] + r[2];
+                System.out.printf("%-" + width + "s vs %-" + width + "s %7.1f%% %7.1f%% %7.1f%% %9d%n",
+                    names[x], names[o], 100 * r[0] / total, 100 * r[1] / total, 100 * r[2] / total, r[3]);
+                games += r[0] + r[1] + r[2];
+                moves += r[4];
+                record[x][0] += r[0];
+                record[x][1] += r[2];
+                record[x][2] += r[1];
+                record[o][0] += r[1];
+                record[o][1] += r[2];
+                record[o][2] += r[0];
+            }
+        }
+
+        System.out.println();
+        System.out.println("Standings (win 1, draw 1/2):");
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < names.length; i++) {
+            order[i] = i;
+            points[i] = record[i][0] + record[i][1] / 2.0;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(points[b], points[a]));
+        for (int rank = 0; rank < order.length; rank++) {
+            int i = order[rank];
+            long played = record[i][0] + record[i][1] + record[i][2];
+            System.out.printf("%2d. %-" + width + "s %6.1f%%   won %,d  drawn %,d  lost %,d%n",
+                rank + 1, names[i], 100 * points[i] / Math.max(1, played), record[i][0], record[i][1], record[i][2]);
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%,d games, %,d moves in %.2f s on %d threads: %,.0f games/s, %,.0f moves/s%n",
+            games, moves, seconds, options.threads, games / seconds, moves / seconds);
+    }
+
+    /**
+     * A new instance of a strategy, for one thread
+     */
+    static GameEngine.Strategy create(String name, Options options, long seed) {
+        switch (name) {
+            case "random":
+                return random(new Random(seed));
+            case "lowest":
+                return game -> {
+                    Board board = game.getBoard();
+                    for (int cell = 0; cell < board.getCells(); cell++) {
+                        if (board.isEmpty(cell)) {
+                            return cell;
+                        }
+                    }
+                    return -1;
+                };
+            case "center":
+                int[] byDistance = cellsByDistanceFromCenter(options.size);
+                return game -> {
+                    for (int cell : byDistance) {
+                        if (game.getBoard().isEmpty(cell)) {
+                            return cell;
+                        }
+                    }
+                    return -1;
+                };
+            case "greedy":
+                GameEngine.Strategy fallback = random(new Random(seed));
+                return game -> {
+                    Board board = game.getBoard();
+                    boolean isX = game.isXTurn();
+                    int block = -1;
+                    for (int cell = 0; cell < board.getCells(); cell++) {
+                        if (board.isEmpty(cell)) {
+                            if (game.winsAt(cell, isX)) {
+                                return cell;
+                            }
+                            if (block < 0 && game.winsAt(cell, !isX)) {
+                                block = cell;
+                            }
+                        }
+                    }
+                    return block >= 0 ? block : fallback.chooseMove(game);
+                };
+            case "perfect":
+                if (options.size != Board.CLASSIC_SIZE || options.winLength != Board.CLASSIC_SIZE) {
+                    throw new IllegalArgumentException("perfect only plays the classic 3x3 board");
+                }
+                return game -> PerfectPlay.bestMove(game.getBoard().getXMask(), game.getBoard().getOMask());
+            case "search":
+                return new SearchStrategy(options.depth);
+            default:
+                try {
+                    return (GameEngine.Strategy) Class.forName(name).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("unknown strategy " + name + " (" + e + ")");
+                }
+        }
+    }
+
+    private static GameEngine.Strategy random(Random random) {
+        return game -> {
+            Board board = game.getBoard();
+            int free = board.getCells() - board.getMoveCount();
+            int n = random.nextInt(free);
+            for (int cell = 0; cell < board.getCells(); cell++) {
+                if (board.isEmpty(cell) && n-- == 0) {
+                    return cell;
+                }
+            }
+            return -1;
+        };
+    }
+
+    /**
+     * Every cell, nearest the middle of the board first; ties in cell order
+     */
+    private static int[] cellsByDistanceFromCenter(int size) {
+        Integer[] cells = new Integer[size * size];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+        }
+        Arrays.sort(cells, (a, b) -> Integer.compare(distance(a, size), distance(b, size)));
+        int[] order = new int[cells.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = cells[i];
+        }
+        return order;
+    }
+
+    /**
+     * Squared distance from the middle, doubled so it stays whole on even boards
+     */
+    private static int distance(int cell, int size) {
+        int dr = 2 * (cell / size) - (size - 1);
+        int dc = 2 * (cell % size) - (size - 1);
+        return dr * dr + dc * dc;
+    }
+
+    /**
+     * SearchEngine to a fixed depth, on one thread of its own: the batches already use
+     * every core, and a table of its own keeps other batches' entries out of its moves
+     */
+    private static final class SearchStrategy implements GameEngine.Strategy {
+        private final SearchEngine engine = new SearchEngine(1, SEARCH_TABLE_MEGABYTES);
+        private final int depth;
+
+        SearchStrategy(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        public int chooseMove(GameEngine game) {
+            return engine.search(game.getBoard(), depth).move;
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = !arg.startsWith("--") ? "" : equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+
+            try {
+                switch (name) {
+                    case "strategies":
+                        String[] strategies = value.split(",");
+                        if (strategies.length < 2) {
+                            throw new IllegalArgumentException("expected at least two");
+                        }
+                        options.strategies = strategies;
+                        break;
+                    case "games":
+                        options.games = Integer.parseInt(value);
+                        break;
+                    case "size":
+                        options.size = Integer.parseInt(value);
+                        break;
+                    case "win":
+                        options.winLength = Integer.parseInt(value);
+                        break;
+                    case "threads":
+                        options.threads = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "depth":
+                        options.depth = Math.max(1, Integer.parseInt(value));
+                        break;
+                    default:
+                        System.out.println("Unknown option " + arg + " ignored.");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for --" + name + " (" + e.getMessage() + "). Using default.");
+            }
+        }
+        if (options.size < 1 || options.size > Board.MAX_SIZE || options.winLength < 1 || options.winLength > options.size) {
+            System.out.println("Unsupported board " + options.size + "x" + options.size + " with "
+                + options.winLength + " in a row. Using 3x3.");
+            options.size = Board.CLASSIC_SIZE;
+            options.winLength = Board.CLASSIC_SIZE;
+        }
+        return options;
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel: every timeout in the server sits in one ring of buckets that a
+ * single thread advances one tick at a time, running what has come due. Scheduling is
+ * a queue insert, cancelling sets a flag, and a timeout costs nothing until its bucket
+ * comes round, so a hundred thousand connections with their own deadlines need one
+ * thread rather than a thread or scheduled task each. Timeouts run up to a tick late,
+ * on the wheel's thread, so they must not block.
+ */
+public final class TimerWheel implements Runnable {
+
+    /**
+     * A scheduled task; cancel() stops it from running if it hasn't yet
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long dueTick;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    // Singly linked lists of timeouts, only touched by the wheel thread
+    private final Timeout[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    /**
+     * A wheel of the given number of buckets (rounded up to a power of two) that
+     * advances every tickMillis; start() starts its thread
+     */
+    public TimerWheel(long tickMillis, int bucketCount) {
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000;
+        int size = Integer.highestOneBit(Math.max(2, bucketCount) * 2 - 1);
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    public TimerWheel start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayMillis) * 1_000_000);
+        added.add(timeout);
+        return timeout;
+    }
+
+    public void run() {
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            placeAdded();
+            expire(tick & mask);
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the bucket of the tick they are due in,
+     * which is never one already passed
+     */
+    private void placeAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long due = (timeout.deadline - startNanos + tickNanos - 1) / tickNanos;
+            timeout.dueTick = Math.max(due, tick);
+            int bucket = (int) (timeout.dueTick & mask);
+            timeout.next = buckets[bucket];
+            buckets[bucket] = timeout;
+        }
+    }
+
+    /**
+     * Runs the timeouts in a bucket that are due; those due in a later turn of the wheel stay
+     */
+    private void expire(long bucket) {
+        Timeout kept = null;
+        Timeout timeout = buckets[(int) bucket];
+        buckets[(int) bucket] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                // Dropped
+            } else if (timeout.dueTick <= tick) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info("Timer task failed: " + e.getMessage());
+                }
+            } else {
+                timeout.next = kept;
+                kept = timeout;
+            }
+            timeout = next;
+        }
+        // Anything the tasks scheduled is in added until the next tick, so nothing else is here
+        buckets[(int) bucket] = kept;
+    }
+}
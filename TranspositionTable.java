@@ -0,0 +1,112 @@
+/**
+ * Fixed-size table of search results, shared by every search thread without locks.
+ *
+ * Each slot is two longs: the key XOR the data, then the data. A reader that catches a
+ * slot half-written by another thread gets a key that doesn't match and sees a miss, so
+ * a torn entry is never used. Slots come in pairs: a result replaces the slot already
+ * holding its position, otherwise the less useful of the two, meaning one left by an
+ * older search, or else the one searched less deeply.
+ */
+final class TranspositionTable {
+
+    // Bound types: the stored score is exact, at least (LOWER) or at most (UPPER) the real one
+    static final int EXACT = 1;
+    static final int LOWER = 2;
+    static final int UPPER = 3;
+
+    // Data layout, from the lowest bit: score + SCORE_OFFSET (24), move + 1 (16), depth (8), bound (2), generation (8)
+    private static final int SCORE_OFFSET = 1 << 23;
+
+    private final long[] slots;
+    private final int bucketMask;
+    private volatile int generation;
+
+    /**
+     * A table of at most the given size; 16 bytes per entry, rounded down to a power of two
+     */
+    TranspositionTable(int megabytes) {
+        long entries = Math.max(1, megabytes) * (1L << 20) / 16;
+        int buckets = Integer.highestOneBit((int) Math.min(entries / 2, 1 << 26));
+        this.slots = new long[buckets * 4];
+        this.bucketMask = buckets - 1;
+    }
+
+    /**
+     * Starts a new search; entries from earlier ones become the first to be replaced
+     */
+    void nextGeneration() {
+        generation = (generation + 1) & 0xFF;
+    }
+
+    int capacity() {
+        return slots.length / 2;
+    }
+
+    /**
+     * The data stored for key, or 0 if there is none
+     */
+    long probe(long key) {
+        int base = ((int) key & bucketMask) << 2;
+        for (int i = base; i < base + 4; i += 2) {
+            long data = slots[i + 1];
+            if ((slots[i] ^ data) == key) {
+                return data;
+            }
+        }
+        return 0;
+    }
+
+    void store(long key, int score, int move, int depth, int bound) {
+        int current = generation;
+        long data = (long) (score + SCORE_OFFSET)
+            | (long) (move + 1) << 24
+            | (long) depth << 40
+            | (long) bound << 48
+            | (long) current << 50;
+
+        int base = ((int) key & bucketMask) << 2;
+        int slot = base;
+        if ((slots[base] ^ slots[base + 1]) != key) {
+            long first = slots[base + 1];
+            long second = slots[base + 3];
+            if ((slots[base + 2] ^ second) == key || worth(second, current) < worth(first, current)) {
+                slot = base + 2;
+            }
+        }
+        slots[slot] = key ^ data;
+        slots[slot + 1] = data;
+    }
+
+    /**
+     * How much an entry is worth keeping: stale ones least, then by depth
+     */
+    private static int worth(long data, int current) {
+        if (data == 0 || generation(data) != current) {
+            return -1;
+        }
+        return depth(data);
+    }
+
+    static int score(long data) {
+        return (int) (data & 0xFFFFFF) - SCORE_OFFSET;
+    }
+
+    /**
+     * The best move found, or -1 if the search failed low everywhere
+     */
+    static int move(long data) {
+        return (int) (data >>> 24 & 0xFFFF) - 1;
+    }
+
+    static int depth(long data) {
+        return (int) (data >>> 40 & 0xFF);
+    }
+
+    static int bound(long data) {
+        return (int) (data >>> 48 & 0x3);
+    }
+
+    private static int generation(long data) {
+        return (int) (data >>> 50 & 0xFF);
+    }
+}
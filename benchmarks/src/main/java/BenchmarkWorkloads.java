@@ -0,0 +1,559 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The work behind the JMH benchmarks in tictactoe.benchmarks, one operation per call.
+ * It sits in the unnamed package with the game, which a named package can't import, and
+ * each factory hands its workload over as a plain Consumer of a Blackhole. Every result
+ * goes to the Blackhole, so the JIT can't drop the measured work.
+ */
+public final class BenchmarkWorkloads {
+
+    private static final int GAMES = 1024;
+    private static final int GOMOKU_SIZE = 15;
+
+    private BenchmarkWorkloads() {
+    }
+
+    /**
+     * A workload that steps through count scripted inputs, one per operation
+     */
+    private abstract static class Cycle implements Consumer<Blackhole> {
+        private int next;
+
+        int next(int count) {
+            int index = next;
+            next = index + 1 == count ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    /**
+     * Scripted games: random move orders, plus the positions and messages they pass through
+     */
+    private static final class Scripts {
+        static final int[][] moveOrders = new int[GAMES][];
+        static final int[][] gomokuOrders = new int[GAMES][];
+        static final Board[] positions;
+        static final String[] textBoards;
+        static final byte[][] textBoardBytes;
+        static final byte[][] binaryBoards;
+        static final String[] moveLines;
+        static final byte[][] moveLineBytes;
+
+        static {
+            Random random = new Random(42);
+            List<Board> boards = new ArrayList<>();
+            for (int g = 0; g < GAMES; g++) {
+                int[] order = shuffled(9, random);
+                moveOrders[g] = order;
+                Board board = new Board();
+                for (int m = 0; m < order.length && board.outcome() == Board.IN_PROGRESS; m++) {
+                    board.place(order[m], m % 2 == 0);
+                    boards.add(board.copy());
+                }
+            }
+
+            int count = boards.size();
+            positions = boards.toArray(new Board[0]);
+            textBoards = new String[count];
+            textBoardBytes = new byte[count][];
+            binaryBoards = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                textBoards[i] = positions[i].toProtocolString();
+                textBoardBytes[i] = textBoards[i].getBytes(StandardCharsets.UTF_8);
+                byte[] frame = BinaryProtocol.board(positions[i]);
+                binaryBoards[i] = Arrays.copyOfRange(frame, 2, frame.length);
+            }
+
+            moveLines = new String[GOMOKU_SIZE * GOMOKU_SIZE];
+            moveLineBytes = new byte[moveLines.length][];
+            for (int i = 0; i < moveLines.length; i++) {
+                moveLines[i] = "MOVE " + i;
+                moveLineBytes[i] = moveLines[i].getBytes(StandardCharsets.UTF_8);
+            }
+
+            // Gomoku games: random orders over all 225 cells, played until someone has five
+            for (int g = 0; g < GAMES; g++) {
+                gomokuOrders[g] = shuffled(GOMOKU_SIZE * GOMOKU_SIZE, random);
+            }
+        }
+
+        private static int[] shuffled(int cells, Random random) {
+            int[] order = new int[cells];
+            for (int i = 0; i < cells; i++) {
+                order[i] = i;
+            }
+            for (int i = cells - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            return order;
+        }
+    }
+
+    // Engine: one operation is one scripted game played to its end
+
+    public static Consumer<Blackhole> boardGame() {
+        Board board = new Board();
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                int[] order = Scripts.moveOrders[next(GAMES)];
+                board.reset();
+                int outcome = Board.IN_PROGRESS;
+                for (int m = 0; m < order.length && outcome == Board.IN_PROGRESS; m++) {
+                    if (board.isEmpty(order[m])) {
+                        board.place(order[m], (m & 1) == 0);
+                    }
+                    outcome = board.outcome();
+                }
+                blackhole.consume(outcome);
+            }
+        };
+    }
+
+    /**
+     * 15x15 with five in a row; a move should cost about what it does on 3x3
+     */
+    public static Consumer<Blackhole> gomokuGame() {
+        Board board = new Board(GOMOKU_SIZE, 5);
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                int[] order = Scripts.gomokuOrders[next(GAMES)];
+                board.reset();
+                int outcome = Board.IN_PROGRESS;
+                for (int m = 0; m < order.length && outcome == Board.IN_PROGRESS; m++) {
+                    board.place(order[m], (m & 1) == 0);
+                    outcome = board.outcome();
+                }
+                blackhole.consume(outcome);
+            }
+        };
+    }
+
+    /**
+     * The original String[] board with the per-call win pattern table, kept as a baseline
+     */
+    public static Consumer<Blackhole> legacyGame() {
+        String[] board = new String[9];
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                int[] order = Scripts.moveOrders[next(GAMES)];
+                for (int i = 0; i < 9; i++) {
+                    board[i] = String.valueOf(i + 1);
+                }
+                String winner = null;
+                for (int m = 0; m < order.length && winner == null; m++) {
+                    int location = order[m];
+                    if (board[location].equals(String.valueOf(location + 1))) {
+                        board[location] = (m & 1) == 0 ? "X" : "O";
+                    }
+                    winner = legacyCheckWinner(board);
+                }
+                blackhole.consume(winner);
+            }
+        };
+    }
+
+    private static String legacyCheckWinner(String[] board) {
+        int[][] winPatterns = {
+            {0, 1, 2}, {3, 4, 5}, {6, 7, 8},
+            {0, 3, 6}, {1, 4, 7}, {2, 5, 8},
+            {0, 4, 8}, {2, 4, 6}
+        };
+        for (int[] pattern : winPatterns) {
+            String pos1 = board[pattern[0]];
+            String pos2 = board[pattern[1]];
+            String pos3 = board[pattern[2]];
+            if (pos1.equals(pos2) && pos2.equals(pos3)) {
+                if (pos1.equals("X")) {
+                    return "X";
+                } else if (pos1.equals("O")) {
+                    return "O";
+                }
+            }
+        }
+        for (int i = 0; i < 9; i++) {
+            if (board[i].equals(String.valueOf(i + 1))) {
+                return null;
+            }
+        }
+        return "draw";
+    }
+
+    /**
+     * A GameSession per game, as the server plays them, with connections that discard
+     * everything
+     */
+    public static Consumer<Blackhole> sessionGame() {
+        TicTacToeServer.Player playerX = new TicTacToeServer.Player(new NullConnection());
+        TicTacToeServer.Player playerO = new TicTacToeServer.Player(new NullConnection());
+        playerX.playerMark = "X";
+        playerO.playerMark = "O";
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                int[] order = Scripts.moveOrders[next(GAMES)];
+                GameSession session = new GameSession(playerX, playerO);
+                int outcome = Board.IN_PROGRESS;
+                for (int m = 0; m < order.length && outcome == Board.IN_PROGRESS; m++) {
+                    int result = session.tryMove(order[m], (m & 1) == 0 ? playerX : playerO);
+                    if (result >= 0) {
+                        outcome = result;
+                    }
+                }
+                blackhole.consume(outcome);
+            }
+        };
+    }
+
+    // Protocol: one operation is one board or MOVE encoded or decoded
+
+    public static Consumer<Blackhole> serializeText() {
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                blackhole.consume(Scripts.positions[next(Scripts.positions.length)].toProtocolString());
+            }
+        };
+    }
+
+    public static Consumer<Blackhole> serializeBinary() {
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                blackhole.consume(BinaryProtocol.board(Scripts.positions[next(Scripts.positions.length)]));
+            }
+        };
+    }
+
+    /**
+     * What both clients used to do for every text board line
+     */
+    public static Consumer<Blackhole> parseText() {
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                String line = Scripts.textBoards[next(Scripts.textBoards.length)];
+                if (line.contains(",") && line.matches("[XO0-9, ]+")) {
+                    blackhole.consume(line.split(","));
+                }
+            }
+        };
+    }
+
+    /**
+     * Reading a classic board frame's two masks straight from its bytes
+     */
+    public static Consumer<Blackhole> parseBinary() {
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                byte[] frame = Scripts.binaryBoards[next(Scripts.binaryBoards.length)];
+                if ((frame[0] & 0xFF) == BinaryProtocol.BOARD) {
+                    int x = (frame[1] & 0xFF) << 8 | frame[2] & 0xFF;
+                    int o = (frame[3] & 0xFF) << 8 | frame[4] & 0xFF;
+                    blackhole.consume(x ^ o);
+                }
+            }
+        };
+    }
+
+    /**
+     * What both clients now do for every text board line, straight from the bytes read
+     */
+    public static Consumer<Blackhole> parseCodecText() {
+        ProtocolCodec codec = new ProtocolCodec();
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                byte[] line = Scripts.textBoardBytes[next(Scripts.textBoardBytes.length)];
+                if (codec.decode(line, 0, line.length) == ProtocolCodec.Type.BOARD) {
+                    blackhole.consume(codec.cellMark(4));
+                }
+            }
+        };
+    }
+
+    public static Consumer<Blackhole> parseCodecBinary() {
+        ProtocolCodec codec = new ProtocolCodec();
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                if (codec.decodeFrame(Scripts.binaryBoards[next(Scripts.binaryBoards.length)]) == ProtocolCodec.Type.BOARD) {
+                    blackhole.consume(codec.cellMark(4));
+                }
+            }
+        };
+    }
+
+    /**
+     * What the server used to do for every MOVE line
+     */
+    public static Consumer<Blackhole> parseMoveSplit() {
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                String command = Scripts.moveLines[next(Scripts.moveLines.length)];
+                if (command.startsWith("MOVE")) {
+                    blackhole.consume(Integer.parseInt(command.split(" ")[1]));
+                }
+            }
+        };
+    }
+
+    /**
+     * What the server does for every MOVE line now, from the bytes a transport read
+     */
+    public static Consumer<Blackhole> parseMoveCodec() {
+        ProtocolCodec codec = new ProtocolCodec();
+        return new Cycle() {
+            @Override
+            public void accept(Blackhole blackhole) {
+                byte[] line = Scripts.moveLineBytes[next(Scripts.moveLineBytes.length)];
+                if (codec.decode(line, 0, line.length) == ProtocolCodec.Type.MOVE) {
+                    blackhole.consume(codec.cell());
+                }
+            }
+        };
+    }
+
+    // Server: what the server adds to every accepted move
+
+    // Shared by every thread measuring it, as the server's one ServerMetrics is
+    private static final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * A counter and a latency sample, as for each valid move
+     */
+    public static Consumer<Blackhole> recordMetrics() {
+        return blackhole -> {
+            metrics.moveProcessed();
+            metrics.moveWritten(System.nanoTime());
+        };
+    }
+
+    /**
+     * A MOVE record, as GameSession appends when the journal is on. No game is
+     * started, so the sync thread deletes each segment once it fills up. Closing it
+     * deletes the directory.
+     */
+    public static Consumer<Blackhole> appendMove() throws IOException {
+        Path directory = Files.createTempDirectory("tictactoe-journal");
+        MoveJournal journal = new MoveJournal(directory, 16, 10);
+        return new JournalAppends(directory, journal);
+    }
+
+    private static final class JournalAppends implements Consumer<Blackhole>, AutoCloseable {
+        private final Path directory;
+        private final MoveJournal journal;
+        private int next;
+
+        JournalAppends(Path directory, MoveJournal journal) {
+            this.directory = directory;
+            this.journal = journal;
+        }
+
+        @Override
+        public void accept(Blackhole blackhole) {
+            int i = next++;
+            journal.move(i & 1023, i & 255);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // End to end: a client plays the server's bot over loopback
+
+    private static int serverPort;
+
+    /**
+     * Starts TicTacToeServer in this JVM on a free port with the nio transport and no
+     * rate limits, once, and returns its port. The server logs every move; that goes
+     * nowhere, so it stays out of the report.
+     */
+    public static synchronized int startServer() throws IOException {
+        if (serverPort == 0) {
+            ServerConfig config = new ServerConfig();
+            config.port = 0;
+            config.transport = "nio";
+            config.eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            TicTacToeServer.config = config;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            TicTacToeServer.startLobby();
+            serverPort = TicTacToeServer.startNio().getLocalPort();
+        }
+        return serverPort;
+    }
+
+    /**
+     * One connection playing the server's bot, always taking the lowest free cell; one
+     * operation is one MOVE and the bot's answer, up to our next TURN. Games follow
+     * each other on the connection with REMATCH, so the marks swap every game. Closing
+     * it disconnects.
+     */
+    public static Consumer<Blackhole> botGame(int port, String protocol) throws IOException {
+        return new BotGame(port, protocol.equals("binary"));
+    }
+
+    private static final class BotGame implements Consumer<Blackhole>, AutoCloseable {
+        private final Socket socket = new Socket();
+        private final OutputStream out;
+        private final ProtocolReader in;
+        private final ProtocolCodec message = new ProtocolCodec();
+        private final boolean binary;
+        private boolean negotiated;
+        private boolean binaryInput;
+        private final boolean[] occupied = new boolean[Board.CLASSIC_SIZE * Board.CLASSIC_SIZE];
+
+        BotGame(int port, boolean binary) throws IOException {
+            this.binary = binary;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            out = socket.getOutputStream();
+            in = new ProtocolReader(socket.getInputStream(), 64 * 1024);
+            // Asked once the server has put us in the lobby and said so
+            if (!in.readLine(message)) {
+                throw new IOException("Connection closed");
+            }
+            sendLine("BOT X");
+            untilTurn();
+        }
+
+        @Override
+        public void accept(Blackhole blackhole) {
+            try {
+                int cell = 0;
+                while (occupied[cell]) {
+                    cell++;
+                }
+                occupied[cell] = true;
+                if (binary) {
+                    out.write(BinaryProtocol.move(cell));
+                } else {
+                    sendLine("MOVE " + cell);
+                }
+                out.flush();
+                untilTurn();
+                blackhole.consume(cell);
+            } catch (IOException e) {
+                throw new IllegalStateException("Lost the server: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Reads until it is our move, negotiating a game's protocol as it starts and
+         * asking for a rematch as it ends
+         */
+        private void untilTurn() throws IOException {
+            while (true) {
+                if (!(binaryInput ? in.readFrame(message) : in.readLine(message))) {
+                    throw new IOException("Connection closed");
+                }
+                switch (message.type()) {
+                    case WELCOME:
+                        Arrays.fill(occupied, false);
+                        if (!negotiated) {
+                            // REMATCH must come before BINARY, while the server still reads lines
+                            negotiated = true;
+                            sendLine(BinaryProtocol.REMATCH_NEGOTIATE_LINE);
+                            if (binary) {
+                                sendLine(BinaryProtocol.DELTA_NEGOTIATE_LINE);
+                                sendLine(BinaryProtocol.NEGOTIATE_LINE);
+                            }
+                            out.flush();
+                        }
+                        break;
+                    case PROTOCOL_BINARY:
+                        binaryInput = true;
+                        break;
+                    case BOARD:
+                        for (int i = 0; i < message.cellCount() && i < occupied.length; i++) {
+                            occupied[i] = message.cellMark(i) != 0;
+                        }
+                        break;
+                    case DELTA:
+                        occupied[message.cell()] = true;
+                        if (message.status() == BinaryProtocol.TURN) {
+                            return;
+                        }
+                        break;
+                    case TURN:
+                        return;
+                    case VICTORY:
+                    case DEFEAT:
+                    case DRAW:
+                        if (binary) {
+                            out.write(BinaryProtocol.rematch());
+                        } else {
+                            sendLine("REMATCH");
+                        }
+                        out.flush();
+                        break;
+                    case INVALID:
+                        throw new IOException("Server refused: " + message.text());
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void sendLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A connection that discards everything, for driving GameSession without sockets
+     */
+    static final class NullConnection extends Connection {
+        @Override
+        public void send(String line) {
+        }
+
+        @Override
+        public void sendFrame(byte[] frame) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "benchmark";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tictactoe.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A move through the whole server: TicTacToeServer runs in the benchmark's JVM on the
+ * nio transport, and each benchmark thread plays the server's bot over loopback. One
+ * operation is one MOVE and the bot's answer. Run with -t for concurrent games; with
+ * -prof gc, the bytes per move count the client, server and bot alike.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EndToEndBenchmarks {
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private Consumer<Blackhole> game;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int port = (Integer) Workloads.call("startServer");
+        game = Workloads.get("botGame", port, protocol);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Workloads.close(game);
+    }
+
+    @Benchmark
+    public void move(Blackhole blackhole) {
+        game.accept(blackhole);
+    }
+}
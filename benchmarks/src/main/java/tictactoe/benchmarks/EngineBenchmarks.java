@@ -0,0 +1,63 @@
+package tictactoe.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Move apply and win check: one operation is one scripted game played to its end, on
+ * the bitboard, on 15x15 gomoku, through GameSession, and on the original String board
+ * as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EngineBenchmarks {
+
+    private Consumer<Blackhole> board;
+    private Consumer<Blackhole> gomoku;
+    private Consumer<Blackhole> session;
+    private Consumer<Blackhole> legacy;
+
+    @Setup
+    public void setUp() {
+        board = Workloads.get("boardGame");
+        gomoku = Workloads.get("gomokuGame");
+        session = Workloads.get("sessionGame");
+        legacy = Workloads.get("legacyGame");
+    }
+
+    @Benchmark
+    public void board(Blackhole blackhole) {
+        board.accept(blackhole);
+    }
+
+    @Benchmark
+    public void gomoku(Blackhole blackhole) {
+        gomoku.accept(blackhole);
+    }
+
+    @Benchmark
+    public void session(Blackhole blackhole) {
+        session.accept(blackhole);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) {
+        legacy.accept(blackhole);
+    }
+}
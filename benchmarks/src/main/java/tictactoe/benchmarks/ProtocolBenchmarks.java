@@ -0,0 +1,91 @@
+package tictactoe.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Board serialization and parsing, text against binary, and the old regex and split
+ * parsing against ProtocolCodec, for board lines and MOVE commands. One operation is
+ * one message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProtocolBenchmarks {
+
+    private Consumer<Blackhole> serializeText;
+    private Consumer<Blackhole> serializeBinary;
+    private Consumer<Blackhole> parseText;
+    private Consumer<Blackhole> parseBinary;
+    private Consumer<Blackhole> parseCodecText;
+    private Consumer<Blackhole> parseCodecBinary;
+    private Consumer<Blackhole> parseMoveSplit;
+    private Consumer<Blackhole> parseMoveCodec;
+
+    @Setup
+    public void setUp() {
+        serializeText = Workloads.get("serializeText");
+        serializeBinary = Workloads.get("serializeBinary");
+        parseText = Workloads.get("parseText");
+        parseBinary = Workloads.get("parseBinary");
+        parseCodecText = Workloads.get("parseCodecText");
+        parseCodecBinary = Workloads.get("parseCodecBinary");
+        parseMoveSplit = Workloads.get("parseMoveSplit");
+        parseMoveCodec = Workloads.get("parseMoveCodec");
+    }
+
+    @Benchmark
+    public void serializeText(Blackhole blackhole) {
+        serializeText.accept(blackhole);
+    }
+
+    @Benchmark
+    public void serializeBinary(Blackhole blackhole) {
+        serializeBinary.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseText(Blackhole blackhole) {
+        parseText.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseBinary(Blackhole blackhole) {
+        parseBinary.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseCodecText(Blackhole blackhole) {
+        parseCodecText.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseCodecBinary(Blackhole blackhole) {
+        parseCodecBinary.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseMoveSplit(Blackhole blackhole) {
+        parseMoveSplit.accept(blackhole);
+    }
+
+    @Benchmark
+    public void parseMoveCodec(Blackhole blackhole) {
+        parseMoveCodec.accept(blackhole);
+    }
+}
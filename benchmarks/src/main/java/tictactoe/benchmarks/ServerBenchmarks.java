@@ -0,0 +1,55 @@
+package tictactoe.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the server adds to every accepted move: the metrics it records, and the
+ * journal record it appends when --journal is on. Run with -t to see them contended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ServerBenchmarks {
+
+    private Consumer<Blackhole> metrics;
+    private Consumer<Blackhole> journal;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        metrics = Workloads.get("recordMetrics");
+        journal = Workloads.get("appendMove");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Workloads.close(journal);
+    }
+
+    @Benchmark
+    public void recordMetrics(Blackhole blackhole) {
+        metrics.accept(blackhole);
+    }
+
+    @Benchmark
+    public void journalAppend(Blackhole blackhole) {
+        journal.accept(blackhole);
+    }
+}
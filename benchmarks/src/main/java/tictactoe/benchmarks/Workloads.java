@@ -0,0 +1,49 @@
+package tictactoe.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reaches the workloads in BenchmarkWorkloads. JMH refuses benchmarks in the unnamed
+ * package, and a named one can't import from it, so each workload is looked up once by
+ * name while setting up a trial. What comes back is a Consumer with one implementation
+ * per call site, which the JIT inlines like a direct call.
+ */
+final class Workloads {
+
+    private static final String CLASS_NAME = "BenchmarkWorkloads";
+
+    private Workloads() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Consumer<Blackhole> get(String name, Object... args) {
+        return (Consumer<Blackhole>) call(name, args);
+    }
+
+    static Object call(String name, Object... args) {
+        try {
+            for (java.lang.reflect.Method method : Class.forName(CLASS_NAME).getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                    return method.invoke(null, args);
+                }
+            }
+            throw new IllegalArgumentException("No workload " + name);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Workload " + name + " failed to start: " + e.getCause(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot reach workload " + name + ": " + e, e);
+        }
+    }
+
+    /**
+     * Releases what a workload holds, such as files or a socket
+     */
+    static void close(Consumer<Blackhole> workload) throws Exception {
+        if (workload instanceof AutoCloseable) {
+            ((AutoCloseable) workload).close();
+        }
+    }
+}